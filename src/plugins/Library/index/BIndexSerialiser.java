@@ -52,6 +52,7 @@ implements Archiver<ProtoIndex>,
 
 
 	final public static int TMBIN_MAX = 256;
+	final public static int TMBIN_CACHE = 64;
 
 
 	final protected Archiver<Map<String, Object>> subsrl;
@@ -244,6 +245,7 @@ implements Archiver<ProtoIndex>,
 		public TermEntrySerialiser() {
 			super(new TermEntryGroupSerialiser(), TMBIN_MAX, (Class<TreeSet<TokenEntry>>)((new TreeSet<TokenEntry>()).getClass()));
 			subsrl = (TermEntryGroupSerialiser)super.subsrl;
+			setCacheSize(TMBIN_CACHE);
 			tracker = new ProgressTracker<SortedSet<TokenEntry>, CompoundProgress>(CompoundProgress.class);
 		}
 
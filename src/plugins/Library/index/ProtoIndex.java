@@ -3,14 +3,10 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package plugins.Library.index;
 
-import plugins.Library.util.Skeleton;
 import plugins.Library.util.SkeletonMap;
 import plugins.Library.util.SkeletonTreeMap;
 import plugins.Library.util.SkeletonBTreeMap;
-import plugins.Library.util.DataNotLoadedException;
 import plugins.Library.serial.Serialiser;
-import plugins.Library.serial.TaskAbortException;
-import plugins.Library.serial.Progress;
 
 import freenet.keys.FreenetURI;
 
@@ -21,8 +17,8 @@ import java.util.Map;
 import java.util.SortedSet;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Stack;
 import java.util.Date;
+import java.util.concurrent.ExecutionException;
 
 /**
 ** Prototype B-tree based index. DOCUMENT
@@ -139,20 +135,10 @@ public class ProtoIndex {
 
 	public class getTermEntriesHandler extends AbstractRequest<Collection<TokenEntry>> implements Runnable {
 
-		final Stack<Object> objects = new Stack<Object>();
-
 		protected getTermEntriesHandler(String t) {
 			super(t);
 		}
 
-		protected Progress selectProgress(Object o) {
-			if (o instanceof SkeletonBTreeMap.GhostNode) {
-				return trackables[TTAB_KEYS].getTracker().getPullProgress(o);
-			} else {
-				return trackables[TTAB_DATA].getTracker().getPullProgress(o);
-			}
-		}
-
 		@Override public int partsDone() {
 			throw new UnsupportedOperationException("not implemented");
 		}
@@ -170,34 +156,28 @@ public class ProtoIndex {
 		}
 
 		@Override public String getCurrentStatus() {
-			if (objects.size() == 0) { return "nothing yet"; }
-			Progress p = selectProgress(objects.peek());
-			return (p == null)? "waiting for next stage to start": p.getStatus();
+			return "looking up " + subject;
 		}
 
 		@Override public String getCurrentStage() {
-			if (objects.size() == 0) { return "nothing yet"; }
-			Progress p = selectProgress(objects.peek());
-			return (p == null)? "waiting for next stage to start": p.getName();
+			return "looking up term";
 		}
 
+		/**
+		** Looks up the term through {@link SkeletonBTreeMap#getAsync(Object)},
+		** which loads the nodes and the value that it needs on the way. The
+		** tree has no resolver set, so this waits for the lookup in this
+		** thread.
+		*/
 		@Override public void run() {
-			for (;;) {
-				try {
-					result = ttab.get(subject);
-					break;
-				} catch (DataNotLoadedException d) {
-					Skeleton p = d.getParent();
-					objects.push(d.getValue());
-					try {
-						p.inflate((String)d.getKey());
-					} catch (TaskAbortException e) {
-						// DEBUG
-						throw new RuntimeException(e);
-						// TODO setError() or something...
-						//break;
-					}
-				}
+			try {
+				result = ttab.getAsync(subject).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				// DEBUG
+				throw new RuntimeException(e.getCause());
+				// TODO setError() or something...
 			}
 		}
 
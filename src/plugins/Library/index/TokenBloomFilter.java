@@ -3,6 +3,8 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package plugins.Library.index;
 
+import plugins.Library.util.BloomFilter;
+
 import freenet.keys.FreenetURI;
 
 /**
@@ -30,16 +32,21 @@ import freenet.keys.FreenetURI;
 ** Elements cannot be removed from the set, although this can be addressed with
 ** a CountingBloomFilter (not featured in this implementation).
 **
+** The filter itself is a {@link BloomFilter} over the hashes of the tokens.
+**
 ** @author infinity0
 */
-public class TokenBloomFilter implements TokenFilter {
+public class TokenBloomFilter extends BloomFilter implements TokenFilter {
 
-	// TODO
-	// filter data structure
+	public TokenBloomFilter(int m, int k) {
+		super(m, k);
+	}
 
-	// TODO: constructor
+	public TokenBloomFilter(byte[] data) {
+		super(data);
+	}
 
-	public boolean has(Token token) { return true; }
-	public void put(Token token) {}
+	public boolean has(Token token) { return super.has(token); }
+	public void put(Token token) { super.put(token); }
 
 }
@@ -46,4 +46,20 @@ public interface MapSerialiser<K, T> extends Serialiser<T> {
 	*/
 	public void push(Map<K, PushTask<T>> tasks, Object meta) throws TaskAbortException;
 
+	/**
+	** Represents a map serialiser which can tell whether the metadata of a
+	** task refers to its data on its own, or only along with the map-wide
+	** metadata. Data that has not been loaded can only be moved into another
+	** map in the first case.
+	*/
+	public interface Relocatable<K, T> extends MapSerialiser<K, T> {
+
+		/**
+		** Whether the given task metadata can be pulled with any map-wide
+		** metadata, and not just that of the map it came from.
+		*/
+		public boolean isSelfContained(Object meta);
+
+	}
+
 }
@@ -10,6 +10,7 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Set;
 import java.util.Map;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Comparator;
 import java.util.SortedSet;
@@ -17,6 +18,7 @@ import java.util.SortedMap;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.TreeMap;
 import java.util.TreeSet;
 
@@ -27,7 +29,7 @@ import java.util.TreeSet;
 ** @author infinity0
 */
 abstract public class Packer<K, T>
-implements MapSerialiser<K, T>,
+implements MapSerialiser.Relocatable<K, T>,
            Serialiser.Composite<IterableSerialiser<Map<K, T>>> {
 
 	/**
@@ -56,6 +58,50 @@ implements MapSerialiser<K, T>,
 	final protected IterableSerialiser<Map<K, T>> subsrl;
 	public IterableSerialiser<Map<K, T>> getChildSerialiser() { return subsrl; }
 
+	/**
+	** Bins that have already been pulled or pushed, by {@link #binKey(Object,
+	** Object)}, least recently used first. Only the partitions that were
+	** asked for are taken out of a bin when it is pulled, so this keeps the
+	** rest of it, which saves pulling it again if some of it is asked for
+	** later. This is {@code null} if the cache is off; see {@link
+	** #setCacheSize(int)}.
+	*/
+	protected LinkedHashMap<Object, Map<K, T>> bincache;
+
+	/**
+	** Sets the number of bins to keep in memory after they are pulled, and
+	** drops any that are over the limit. Zero, the default, turns the cache
+	** off.
+	*/
+	public synchronized void setCacheSize(final int n) {
+		if (n < 0) {
+			throw new IllegalArgumentException("Cache size cannot be negative.");
+		}
+		if (n == 0) { bincache = null; return; }
+		LinkedHashMap<Object, Map<K, T>> old = bincache;
+		bincache = new LinkedHashMap<Object, Map<K, T>>(16, 0.75f, true) {
+			@Override protected boolean removeEldestEntry(Map.Entry<Object, Map<K, T>> en) {
+				return size() > n;
+			}
+		};
+		if (old != null) { bincache.putAll(old); }
+	}
+
+	/**
+	** Returns the key under which a bin is cached, or {@code null} if the bin
+	** cannot be told apart from the bins of other groups. Bins that the child
+	** serialiser gave their own metadata are cached under it; bins that are
+	** referred to by their index are cached under that and the metadata of
+	** their group, unless that is {@code null}.
+	**
+	** @param meta The metadata of the group
+	** @param bin The bin, as stored in the metadata of its elements
+	*/
+	protected Object binKey(Object meta, Object bin) {
+		if (!(bin instanceof Integer)) { return bin; }
+		return (meta == null)? null: Arrays.asList(meta, bin);
+	}
+
 	/**
 	** DOCUMENT
 	**
@@ -177,6 +223,32 @@ implements MapSerialiser<K, T>,
 		return (List<Object>)list;
 	}
 
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation returns {@code true} if none of the bins that the
+	** metadata describes are referred to by their index, which only makes
+	** sense along with the metadata of the group.
+	*/
+	@Override public boolean isSelfContained(Object meta) {
+		if (!(meta instanceof Map)) { return false; }
+		List<Object> bins = getBinsFromMeta((Map<String, Object>)meta);
+		if (bins == null) { return false; }
+		for (Object bin: bins) {
+			if (bin instanceof Integer) { return false; }
+		}
+		return true;
+	}
+
+	/**
+	** Given a map of metadata, retrieve the list of partition sizes that it
+	** describes, in the same order as {@link #getBinsFromMeta(Map)}.
+	*/
+	protected List<Integer> getSizesFromMeta(Map<String, Object> meta) {
+		Object list = meta.get("size");
+		return (List<Integer>)list;
+	}
+
 	/**
 	** Given a map of {@link PushTask}s, pack the task data into a set of bins,
 	** partitioning each task data (element) if it it is too big to fit into
@@ -184,16 +256,18 @@ implements MapSerialiser<K, T>,
 	** original task from which the element was taken. The resulting group of
 	** bins will include at most one bin which is half full or less.
 	**
+	** This takes O(n log n) time for n elements; the bins are kept in a
+	** {@link BinQueue}, and the smaller elements are sorted by size up front.
+	**
 	** @param tasks The tasks to pack
 	** @return The bins containing the task data
 	*/
 	public Bin<T, K>[] binPack(Map<K, PushTask<T>> tasks) {
-		///System.out.println("-----");
 		// bin packing algorithm for M-sized bins
-		SortedSet<Bin<T, K>> bins = new TreeSet<Bin<T, K>>();
+		BinQueue<T, K> bins = new BinQueue<T, K>(capacity);
 
-		// placeholder "bin" to put tasks that are caphalf big or less
-		TreeMap<T, K> halftasks = new TreeMap<T, K>(binElementComparator);
+		// tasks that are caphalf big or less
+		List<Map.Entry<K, PushTask<T>>> halftasks = new ArrayList<Map.Entry<K, PushTask<T>>>();
 
 		// we have an index for each bin so that we can preserve the ordering of an
 		// element that is split into multiple bins.
@@ -238,89 +312,84 @@ implements MapSerialiser<K, T>,
 
 			} else {
 				// keep track of the other tasks
-				halftasks.put(task.data, en.getKey());
+				halftasks.add(en);
 			}
 		}
 
+		// sort the halftasks by descending size. each is given as (caphalf - size)
+		// in the high bits and its position in the list in the low bits, so this
+		// can be done with a primitive sort
+		long[] order = new long[halftasks.size()];
+		for (int i=0; i<order.length; ++i) {
+			order[i] = ((long)(caphalf - sizeOf(halftasks.get(i).getValue().data)) << 32) | i;
+		}
+		Arrays.sort(order);
+
 		// go through the halftasks in descending order and try to fit them
 		// into the bins allocated in the previous stage
-		for (Map.Entry<T, K> en: halftasks.entrySet()) {
-			T el = en.getKey();
-			int size = sizeOf(el);
+		for (long o: order) {
+			Map.Entry<K, PushTask<T>> en = halftasks.get((int)o);
+			T el = en.getValue().data;
+			int size = caphalf - (int)(o >>> 32);
 
-			// get all bins that can fit task.data, by passing TreeSet.tailSet()
-			// a dummy bin that makes TreeSet generate the correct subset.
-			// TreeSet's implementation of tailSet() should do this efficiently
-			SortedSet<Bin<T, K>> subbins = bins.tailSet(new DummyBin(capacity, capacity - size, this));
+			// find the fullest bin that can fit X
+			Bin<T, K> lowest = bins.pollFullest(capacity - size);
 
-			if (subbins.isEmpty()) {
+			if (lowest == null) {
 				// if no bin can fit it, then start a new bin
 				Bin<T, K> bin = newBin(binindex++);
-				bin.put(el, en.getValue());
+				bin.put(el, en.getKey());
 				// TODO perhaps we should clone the data, to be consistent with the above
 				bins.add(bin);
 
 			} else {
-				// find the fullest bin that can fit X
-				Bin<T, K> lowest = subbins.first();
-				// TreeSet assumes its elements are immutable.
-				bins.remove(lowest);
-				lowest.put(el, en.getValue());
+				lowest.put(el, en.getKey());
 				bins.add(lowest);
 			}
 		}
 
-		///for (Bin<T, K> bin: bins) {
-		///	System.out.println(bin.filled());
-		///}
-
 		// at this point, there should be a maximum of one bin which is half-full
 		// or less (if there were two then one of them would have been put into the
 		// other one by the loop, contradiction).
 
 		// keep track of bins we have finalised
-		//List<Bin<T, K>> binsFinal = new ArrayList<Bin<T, K>>(bins.size());
-		Bin<T, K>[] binsFinal = (Bin<T, K>[])new Bin[bins.size()];
+		Bin<T, K>[] binsFinal = (Bin<T, K>[])new Bin[binindex];
 
 		// special case
-		if (bins.size() == 0) { return binsFinal; }
+		if (binindex == 0) { return binsFinal; }
 
 		// let S point to the most empty bin
-		Bin<T, K> smallest = bins.last();
-		bins.remove(smallest);
+		Bin<T, K> smallest = bins.pollEmptiest();
 
 		// TODO maybe only do the below loop if smallest.filled() <= caphalf
-		int i = 0;
-		int maxsteps = tasks.size() * bins.size();
-		// stop when the queue is empty, or when the loop has run for more than
-		// (number of elements * number of bins) iterations. (I cba working out
-		// whether the algorithm halts or not, but each step of the loop serves to
-		// "even out" the bins more than the last step, so the algorithm tends to
-		// an optimal solution.)
-		while (!bins.isEmpty() && i++ < maxsteps) {
+		// each step of the loop either finalises a bin, or moves an element into S.
+		// a move either makes S fuller, or makes F the new S, which is then fuller
+		// than the old S was. S can't get fuller than the capacity, so the loop
+		// stops after at most (number of bins + capacity) steps.
+		while (!bins.isEmpty()) {
 			// pop the fullest bin, call this F
-			Bin<T, K> fullest = bins.first();
-			bins.remove(fullest);
+			Bin<T, K> fullest = bins.pollFullest(capacity);
 
 			// get the smallest element
 			T sm = fullest.lastKey();
+			int size = sizeOf(sm);
 
-			if (sizeOf(sm) < fullest.filled() - smallest.filled()) {
+			if (size > 0 && size < fullest.filled() - smallest.filled()) {
 				// if its size is smaller than the difference between the size of F and S
 				// remove it and put it in S
 
-					smallest.put(sm, fullest.remove(sm));
+				smallest.put(sm, fullest.remove(sm));
 
-					if (fullest.filled() < smallest.filled()) {
-						// if this makes F become smaller than S, then push S's referent back onto
-						// the queue, and point S to this bin
-						bins.add(smallest);
-						smallest = fullest;
+				if (fullest.filled() < smallest.filled()) {
+					// if this makes F become smaller than S, then push S's referent back onto
+					// the queue, and point S to this bin
+					bins.add(smallest);
+					smallest = fullest;
 
-					} else {
-						// if F is bigger than S, push F back onto the queue
-						bins.add(fullest);
-					}
+				} else {
+					// if F is bigger than S, push F back onto the queue
+					bins.add(fullest);
+				}
 
 			} else {
 				// if there does not exist such an element, then this bin will never take
@@ -332,11 +401,63 @@ implements MapSerialiser<K, T>,
 		}
 
 		binsFinal[smallest.getIndex()] = smallest;
-		for (Bin<T, K> bin: bins) {
-			binsFinal[bin.getIndex()] = bin;
+		return binsFinal;
+	}
+
+	/**
+	** Returns a new task to pull the given bin.
+	**
+	** @param meta The metadata of the group
+	** @param bin The bin, as stored in the metadata of its elements
+	*/
+	protected PullTask<Map<K, T>> newBinTask(Object meta, Object bin) {
+		return new PullTask<Map<K, T>>((bin instanceof Integer)? new Object[]{meta, bin}: bin);
+	}
+
+	/**
+	** Pulls the given bins, taking any that are in the {@link #bincache}
+	** from there, and adding the rest to it.
+	**
+	** @param tasks The tasks that the bins are being pulled for, to pass to
+	**        {@link #preprocessPullBins(Map, Collection)}
+	** @param bins The tasks for the bins, by the bins as stored in the
+	**        metadata of their elements
+	** @param meta The metadata of the group
+	*/
+	protected void pullBins(Map<K, PullTask<T>> tasks, Map<Object, PullTask<Map<K, T>>> bins, Object meta) throws TaskAbortException {
+		// take any bins we already have from the cache, and pull the rest
+		List<PullTask<Map<K, T>>> pulltasks = new ArrayList<PullTask<Map<K, T>>>(bins.size());
+		Map<PullTask<Map<K, T>>, Object> pullkeys = new HashMap<PullTask<Map<K, T>>, Object>();
+		synchronized (this) {
+			for (Map.Entry<Object, PullTask<Map<K, T>>> en: bins.entrySet()) {
+				PullTask<Map<K, T>> bintask = en.getValue();
+				Object key = (bincache == null)? null: binKey(meta, en.getKey());
+				Map<K, T> bin = (key == null)? null: bincache.get(key);
+				if (bin != null) {
+					bintask.data = new HashMap<K, T>(bin);
+				} else {
+					pulltasks.add(bintask);
+					if (key != null) { pullkeys.put(bintask, key); }
+				}
+			}
 		}
+		preprocessPullBins(tasks, pulltasks);
 
-		return binsFinal;
+		// bintasks has form [(*,[meta,I])]
+		// pull each bin
+		if (!pulltasks.isEmpty()) { subsrl.pull(pulltasks); }
+		// bintasks has form [({K:T},[meta,I])]
+
+		if (!pullkeys.isEmpty()) {
+			synchronized (this) {
+				if (bincache != null) {
+					for (Map.Entry<PullTask<Map<K, T>>, Object> en: pullkeys.entrySet()) {
+						Map<K, T> bin = en.getKey().data;
+						if (bin != null) { bincache.put(en.getValue(), new HashMap<K, T>(bin)); }
+					}
+				}
+			}
+		}
 	}
 
 	/*========================================================================
@@ -349,6 +470,14 @@ implements MapSerialiser<K, T>,
 	** This implementation will pull data for each task in the map with
 	** non-null metadata.
 	**
+	** Any other data in the bins is loaded too, into new tasks whose metadata
+	** only describes the bin it was found in. Some of this may be left over
+	** from before a {@link #push(Map, Object) partial push}, or be only part
+	** of an element, so the caller should check the metadata of such tasks
+	** before it uses their data. If the {@link #setCacheSize(int) cache} is
+	** on, the bins are kept, so that the rest of such an element only needs
+	** its other bins to be pulled.
+	**
 	** The child serialiser should process metadata of the form Array[{@link
 	** Object} metadata, {@link Integer} binindex].
 	*/
@@ -358,22 +487,11 @@ implements MapSerialiser<K, T>,
 		Map<Object, PullTask<Map<K, T>>> bins = new HashMap<Object, PullTask<Map<K, T>>>();
 		for (Map.Entry<K, PullTask<T>> en: tasks.entrySet()) {
 			for (Object o: getBinsFromMeta((Map<String, Object>)en.getValue().meta)) {
-				if (!bins.containsKey(o)) {
-					if (o instanceof Integer) {
-						bins.put(o, new PullTask<Map<K, T>>(new Object[]{meta, (Integer)o}));
-					} else {
-						bins.put(o, new PullTask<Map<K, T>>(o));
-					}
-				}
+				if (!bins.containsKey(o)) { bins.put(o, newBinTask(meta, o)); }
 			}
 		}
 		Collection<PullTask<Map<K, T>>> bintasks = bins.values();
-		preprocessPullBins(tasks, bintasks);
-
-		// bintasks has form [(*,[meta,I])]
-		// pull each bin
-		subsrl.pull(bintasks);
-		// bintasks has form [({K:T},[meta,I])]
+		pullBins(tasks, bins, meta);
 
 		// for each task, grab and remove its partitions from its bins
 		for (Map.Entry<K, PullTask<T>> en: tasks.entrySet()) {
@@ -393,9 +511,8 @@ implements MapSerialiser<K, T>,
 		Map<K, PullTask<T>> leftovers = new HashMap<K, PullTask<T>>();
 		for (PullTask<Map<K, T>> bintask: bintasks) {
 			for (Map.Entry<K, T> en: bintask.data.entrySet()) {
-				if (tasks.containsKey(en.getKey())) {
-					throw new TaskAbortException("Packer found an extra unexpected partition for a bin. Either the data is corrupt, or the child serialiser is buggy.", null);
-				}
+				// a partition of an element that has since been pushed elsewhere
+				if (tasks.containsKey(en.getKey())) { continue; }
 				PullTask<T> task = new PullTask<T>(new HashMap<String, Object>());
 				// set the metadata properly
 				if (bintask.meta instanceof Object[]) {
@@ -416,44 +533,119 @@ implements MapSerialiser<K, T>,
 	** {@inheritDoc}
 	**
 	** This implementation requires all keys of the subgroup to be present in
-	** the map. It will push data for each task with null metadata. (TODO at
-	** the moment it also requires each task to have null metadata.)
+	** the map. Tasks with null data and non-null metadata are taken to be
+	** already in their bins, and are mostly left there, with their metadata
+	** as it was. All other tasks are packed into new bins, and are given new
+	** metadata. So to update some of the elements of a group, it is enough to
+	** pass the new elements along with the metadata of the rest, and only the
+	** bins holding the new elements are pushed.
+	**
+	** The old partitions of the updated (or removed) elements are not
+	** removed from their bins straight away, since that would mean pushing
+	** those bins again; {@link #pull(Map, Object)} skips over them. Instead,
+	** once the elements that are still in a bin take up half of it or less,
+	** the bin is pulled, and those elements are packed into the new bins
+	** along with the updated ones, and given new metadata. (This is not done
+	** for a bin that holds part of an element that is split over several
+	** bins.) So the bins are kept more than half full, as for a full push,
+	** and a bin whose contents have not changed keeps its metadata and is not
+	** pushed again. This needs {@link #getSizesFromMeta(Map)} to work.
 	**
 	** The child serialiser should process metadata of the form Array[{@link
-	** Object} metadata, {@link Integer} binindex].
+	** Object} metadata, {@link Integer} binindex]. New bins get indexes
+	** greater than those of any bin that is still in use.
 	**
 	** The metadata passed back to the caller is determined by the
 	** implementation of {@link #addBinToMeta}. By default, this is a map of
 	** (a list of bins) and (a list of bin sizes).
 	*/
 	@Override public void push(Map<K, PushTask<T>> tasks, Object meta) throws TaskAbortException {
-		// PRIORITY make binPack() able to try to do bin-packing even when
-		// some of the data is already in a bin. for now just throw this
-		// exception
-		for (Map.Entry<K, PushTask<T>> en: tasks.entrySet()) {
-			if (en.getValue().meta != null) {
-				throw new UnsupportedOperationException("Cannot perform packing when some of the bins are not loaded.");
+		// the tasks that are already in a bin, if any, are left out of the packing
+		int base = 0;
+		Map<K, PushTask<T>> packtasks = tasks;
+		for (PushTask<T> task: tasks.values()) {
+			if (task.data == null && task.meta != null) { packtasks = null; break; }
+		}
+		// the tasks that were taken out of their bins to be packed again
+		List<PushTask<T>> merged = new ArrayList<PushTask<T>>();
+		if (packtasks == null) {
+			packtasks = new HashMap<K, PushTask<T>>();
+			// the load of each bin, and the elements in it, not counting any old
+			// partitions of the updated elements
+			Map<Object, Integer> loads = new HashMap<Object, Integer>();
+			Map<Object, List<K>> members = new HashMap<Object, List<K>>();
+			for (Map.Entry<K, PushTask<T>> en: tasks.entrySet()) {
+				PushTask<T> task = en.getValue();
+				if (task.data != null || task.meta == null) {
+					packtasks.put(en.getKey(), task);
+					continue;
+				}
+				List<Object> binlist = getBinsFromMeta((Map<String, Object>)task.meta);
+				if (binlist == null) { continue; }
+				List<Integer> sizes = getSizesFromMeta((Map<String, Object>)task.meta);
+				for (int j=0; j<binlist.size(); ++j) {
+					Object o = binlist.get(j);
+					if (o instanceof Integer && (Integer)o >= base) { base = (Integer)o + 1; }
+					if (sizes == null) { continue; }
+					Integer load = loads.get(o);
+					loads.put(o, ((load == null)? 0: load) + sizes.get(j));
+					List<K> keys = members.get(o);
+					if (keys == null) { members.put(o, keys = new ArrayList<K>()); }
+					keys.add(en.getKey());
+				}
+			}
+
+			// find the bins that are half full or less, and which only hold whole
+			// elements
+			Map<Object, PullTask<Map<K, T>>> mergebins = new HashMap<Object, PullTask<Map<K, T>>>();
+			for (Map.Entry<Object, Integer> en: loads.entrySet()) {
+				if (en.getValue() > caphalf) { continue; }
+				boolean whole = true;
+				for (K key: members.get(en.getKey())) {
+					if (getBinsFromMeta((Map<String, Object>)tasks.get(key).meta).size() > 1) { whole = false; break; }
+				}
+				if (whole) { mergebins.put(en.getKey(), newBinTask(meta, en.getKey())); }
+			}
+			// merging a single bin on its own would only push it again
+			if (packtasks.isEmpty() && mergebins.size() < 2) { return; }
+
+			// pull them, and pack their elements again with the others
+			if (!mergebins.isEmpty()) {
+				pullBins(new HashMap<K, PullTask<T>>(), mergebins, meta);
+			}
+			for (Map.Entry<Object, PullTask<Map<K, T>>> en: mergebins.entrySet()) {
+				Map<K, T> bin = en.getValue().data;
+				for (K key: members.get(en.getKey())) {
+					T data;
+					if (bin == null || (data = bin.get(key)) == null) {
+						throw new TaskAbortException("Packer did not find the expected partition in the given bin. Either the data is corrupt, or the child serialiser is buggy.", null);
+					}
+					PushTask<T> task = tasks.get(key);
+					task.data = data;
+					packtasks.put(key, task);
+					merged.add(task);
+				}
 			}
 		}
 
 		// tasks has form {K:(T,*)}
-		Bin<T, K>[] bins = binPack(tasks);
+		Bin<T, K>[] bins = binPack(packtasks);
 
 		// prepare each task's meta data to hold information about the bins
-		for (PushTask<T> task: tasks.values()) {
+		for (PushTask<T> task: packtasks.values()) {
 			task.meta = new HashMap<String, Object>();
 		}
 
 		// push the index of each element to its task
 		// at the same time, make a new list of tasks to pass to the next stage
-		Integer i=0;
+		Integer i=base;
 		List<PushTask<Map<K, T>>> bintasks = new ArrayList<PushTask<Map<K, T>>>(bins.length);
 		for (Bin<T, K> bin: bins) {
-			assert(bin.getIndex() == i);
+			assert(bin.getIndex() == i-base);
 			Map<K, T> taskmap = new HashMap<K, T>(bin.size()<<1);
 
 			for (Map.Entry<T, K> en: bin.entrySet()) {
-				addBinToMeta((Map)tasks.get(en.getValue()).meta, en.getKey(), i);
+				addBinToMeta((Map)packtasks.get(en.getValue()).meta, en.getKey(), i);
 				taskmap.put(en.getValue(), en.getKey());
 			}
 
@@ -461,20 +653,140 @@ implements MapSerialiser<K, T>,
 			++i;
 		}
 		// tasks has form {K:(T,M)} where M is whatever addBinsToMeta() returns
-		preprocessPushBins(tasks, bintasks);
+		preprocessPushBins(packtasks, bintasks);
+
+		// drop any old bins we are about to overwrite from the cache
+		synchronized (this) {
+			if (bincache != null) {
+				for (int j=base; j<i; ++j) {
+					Object key = binKey(meta, j);
+					if (key != null) { bincache.remove(key); }
+				}
+			}
+		}
 
 		// bintasks has form [({K:T},[meta,I])]
 		subsrl.push(bintasks);
-		i=0;
+		i=base;
 		for (PushTask<Map<K, T>> btask: bintasks) {
 			if (!(btask.meta instanceof Object[])) {
 				for (K key: btask.data.keySet()) {
-					List<Object> binlist = getBinsFromMeta((Map<String, Object>)tasks.get(key).meta);
+					List<Object> binlist = getBinsFromMeta((Map<String, Object>)packtasks.get(key).meta);
 					binlist.set(binlist.indexOf(i), btask.meta);
 				}
 			}
 			++i;
 		}
+
+		// keep the new bins, since the one that is half full or less is likely to
+		// be merged by the next push
+		synchronized (this) {
+			if (bincache != null) {
+				i=base;
+				for (PushTask<Map<K, T>> btask: bintasks) {
+					Object key = binKey(meta, (btask.meta instanceof Object[])? i: btask.meta);
+					if (key != null) { bincache.put(key, new HashMap<K, T>(btask.data)); }
+					++i;
+				}
+			}
+		}
+
+		// the elements that were merged weren't passed to us with any data
+		for (PushTask<T> task: merged) {
+			task.data = null;
+		}
+	}
+
+	/************************************************************************
+	** A queue of bins, in which the fullest bin with at most a given load can
+	** be found in logarithmic time. Bins are grouped by their load, and a
+	** Fenwick tree keeps count of how many bins there are of each load. This
+	** takes space proportional to the capacity of the bins.
+	**
+	** A bin must not be modified while it is in the queue.
+	*/
+	protected static class BinQueue<T, K> {
+
+		/**
+		** The bins of each load.
+		*/
+		final protected List<Bin<T, K>>[] groups;
+
+		/**
+		** Fenwick tree of the number of bins of each load. The count for load
+		** {@code i} is at (1-based) position {@code i+1}.
+		*/
+		final protected int[] tree;
+
+		protected int size;
+
+		public BinQueue(int capacity) {
+			groups = (List<Bin<T, K>>[])new List[capacity+1];
+			tree = new int[capacity+2];
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public boolean isEmpty() {
+			return size == 0;
+		}
+
+		public void add(Bin<T, K> bin) {
+			int load = bin.filled();
+			if (groups[load] == null) { groups[load] = new ArrayList<Bin<T, K>>(); }
+			groups[load].add(bin);
+			count(load, 1);
+		}
+
+		/**
+		** Removes and returns the fullest bin whose load is no greater than
+		** the given amount, or {@code null} if there is no such bin.
+		*/
+		public Bin<T, K> pollFullest(int max) {
+			// number of bins with at most the given load
+			int n = 0;
+			for (int i=Math.min(max+1, tree.length-1); i>0; i -= i & -i) { n += tree[i]; }
+			return (n == 0)? null: poll(loadOf(n));
+		}
+
+		/**
+		** Removes and returns the emptiest bin, or {@code null} if there are
+		** no bins.
+		*/
+		public Bin<T, K> pollEmptiest() {
+			return (size == 0)? null: poll(loadOf(1));
+		}
+
+		/**
+		** Returns the load of the {@code n}th emptiest bin.
+		*/
+		protected int loadOf(int n) {
+			// find the last position where the total count is less than n
+			int pos = 0;
+			for (int step=Integer.highestOneBit(tree.length-1); step>0; step >>= 1) {
+				if (pos+step < tree.length && tree[pos+step] < n) {
+					pos += step;
+					n -= tree[pos];
+				}
+			}
+			// the next position holds the count for load pos
+			return pos;
+		}
+
+		protected Bin<T, K> poll(int load) {
+			List<Bin<T, K>> group = groups[load];
+			Bin<T, K> bin = group.remove(group.size()-1);
+			count(load, -1);
+			return bin;
+		}
+
+		protected void count(int load, int d) {
+			for (int i=load+1; i<tree.length; i += i & -i) { tree[i] += d; }
+			size += d;
+		}
+
 	}
 
 	/************************************************************************
@@ -518,13 +830,17 @@ implements MapSerialiser<K, T>,
 		}
 
 		@Override public K put(T c, K k) {
-			if (!containsKey(c)) { load += packer.sizeOf(c); }
-			return super.put(c, k);
+			int n = size();
+			K old = super.put(c, k);
+			if (size() != n) { load += packer.sizeOf(c); }
+			return old;
 		}
 
 		@Override public K remove(Object c) {
-			if (containsKey(c)) { load -= packer.sizeOf((T)c); }
-			return super.remove(c);
+			int n = size();
+			K old = super.remove(c);
+			if (size() != n) { load -= packer.sizeOf((T)c); }
+			return old;
 		}
 
 		/**
@@ -541,28 +857,5 @@ implements MapSerialiser<K, T>,
 
 	}
 
-	/************************************************************************
-	** A class that pretends to be a bin with a certain capacity and load.
-	** This is used when we want a such a bin for some purpose (eg. as an
-	** argument to a comparator) but we don't want to have to populate a real
-	** bin to get the desired load (which might be massive).
-	*/
-	protected static class DummyBin<T, K> extends Bin<T, K> {
-
-		public DummyBin(int c, int l, Packer p) {
-			super(c, -1, p);
-			load = l;
-		}
-
-		@Override public K put(T c, K k) {
-			throw new UnsupportedOperationException("Dummy bins cannot be modified");
-		}
-
-		@Override public K remove(Object c) {
-			throw new UnsupportedOperationException("Dummy bins cannot be modified");
-		}
-
-	}
-
 
 }
@@ -75,6 +75,19 @@ implements IterableSerialiser<T>,
 		(new QueueHandler()).start();
 	}
 
+	/**
+	** Hands a task to a handler thread. If none of them are free, this starts
+	** a new one straight away if {@link #maxThreads} allows, so that a group
+	** of tasks is run in parallel rather than waiting for each other.
+	*/
+	protected void offer(Task<T> t) throws InterruptedException {
+		if (queue.offer(t)) { return; }
+		startHandler();
+		while (!queue.offer(t, 1, TimeUnit.SECONDS)) {
+			startHandler();
+		}
+	}
+
 	/**
 	** Given a group of progresses, waits for them to all finish. Non-error
 	** aborts are caught and ignored (and the task removed from the group);
@@ -144,9 +157,7 @@ implements IterableSerialiser<T>,
 				}
 				plist.add(p);
 
-				while (!queue.offer(t, 1, TimeUnit.SECONDS)) {
-					startHandler();
-				}
+				offer(t);
 			}
 			// wait for all tasks to finish
 			joinAll(plist);
@@ -186,9 +197,7 @@ implements IterableSerialiser<T>,
 				}
 				plist.add(p);
 
-				while (!queue.offer(t, 1, TimeUnit.SECONDS)) {
-					startHandler();
-				}
+				offer(t);
 			}
 			// wait for all tasks to finish
 			joinAll(plist);
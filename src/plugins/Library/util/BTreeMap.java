@@ -12,11 +12,16 @@ import java.util.Map;
 import java.util.AbstractSet;
 import java.util.AbstractMap;
 import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Collections;
 import java.util.TreeMap;
-import java.util.HashMap;
-import java.util.Stack;
 import java.util.ArrayList;
 import java.util.NoSuchElementException;
+import java.util.ConcurrentModificationException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 
 /**
 ** General purpose B-tree implementation. '''This class is not a general-use
@@ -72,16 +77,13 @@ import java.util.NoSuchElementException;
 ** map", for the {@link Node#lkey} and {@link Node#rkey} fields. This is NOT
 ** an urgent priority to fix, but might be done in the future.
 **
-** * '''TODO ConcurrentModificationException for the entrySet iterator'''
-** * '''TODO better distribution algorithm for putAll'''
-**
 ** @author infinity0
 ** @see TreeMap
 ** @see Comparator
 ** @see Comparable
 */
 public class BTreeMap<K, V> extends AbstractMap<K, V>
-implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializable*/ {
+implements Map<K, V>, SortedMap<K, V>, NavigableMap<K, V>/*, Cloneable, Serializable*/ {
 
 	/**
 	** Minimum number of children of each node.
@@ -89,7 +91,8 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 	final protected int NODE_MIN;
 
 	/**
-	** Maximum number of children of each node. Equal to {@code NODE_MIN * 2}.
+	** Maximum number of children of each node. At least {@code NODE_MIN * 2},
+	** which is the default.
 	*/
 	final protected int NODE_MAX;
 
@@ -100,6 +103,9 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 
 	/**
 	** Maximum number of entries in each node. Equal to {@code NODE_MAX - 1}.
+	**
+	** Subclasses may split nodes before they have this many entries, by
+	** overriding {@link #isOversized(Node)}.
 	*/
 	final protected int ENT_MAX;
 
@@ -108,17 +114,93 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 	*/
 	final protected Comparator<? super K> comparator;
 
+	/**
+	** Comparator for the {@link Node#lnodes} maps. This treats {@code null}
+	** as an {@link Node#rkey rkey}, ie. greater than all other keys.
+	*/
+	final protected Comparator<K> lcmp = new Comparator<K>() {
+		public int compare(K key1, K key2) {
+			return (key1 == null)? ((key2 == null)? 0: 1):
+			                       ((key2 == null)? -1: BTreeMap.this.compare(key1, key2));
+		}
+	};
+
+	/**
+	** Comparator for the {@link Node#rnodes} maps. This treats {@code null}
+	** as an {@link Node#lkey lkey}, ie. smaller than all other keys.
+	*/
+	final protected Comparator<K> rcmp = new Comparator<K>() {
+		public int compare(K key1, K key2) {
+			return (key1 == null)? ((key2 == null)? 0: -1):
+			                       ((key2 == null)? 1: BTreeMap.this.compare(key1, key2));
+		}
+	};
+
 	/**
 	** Root node of the tree. The only node that can have less than ENT_MIN
 	** entries.
 	*/
-	protected Node root = newNode(true);
+	protected volatile Node root;
 
 	/**
 	** Number of entries currently in the map.
 	*/
 	protected int size = 0;;
 
+	/**
+	** Number of times that a mapping has been added to or removed from the
+	** map. The iterators use this to detect that the map was changed other
+	** than through them, and throw {@link ConcurrentModificationException}.
+	** (This is not the same as {@link Node#modCount}.)
+	*/
+	protected int modCount = 0;
+
+	/**
+	** Number of times that the layout of the nodes has changed, ie. that
+	** entries or subnodes have moved between nodes, or nodes have been
+	** replaced. {@link EntryIterator#remove()} uses this to tell whether it
+	** needs to find its position in the tree again.
+	*/
+	protected int structModCount = 0;
+
+	/**
+	** Whether the map is in concurrent mode. See {@link #BTreeMap(Comparator,
+	** int, boolean)}.
+	*/
+	final protected boolean concurrent;
+
+	/**
+	** In concurrent mode, {@link #put(Object, Object) put} and {@link
+	** #remove(Object) remove} hold the read lock of this latch, so that they
+	** can run at the same time as each other (they coordinate through the
+	** latches of the nodes). Operations that replace or rebuild large parts
+	** of the tree hold the write lock. This is {@code null} otherwise.
+	*/
+	final protected ReentrantReadWriteLock treeLatch;
+
+	/**
+	** Whether each node keeps a count of the entries in its subtree, for the
+	** order-statistic methods (see {@link #getEntryAt(int)}). This is the case
+	** unless the map is in concurrent mode, where writers let go of the upper
+	** levels of the tree before they know whether the size will change.
+	*/
+	protected boolean counted;
+
+	/**
+	** Number of optimistic attempts that {@link #get(Object)} and {@link
+	** #containsKey(Object)} make in concurrent mode, before falling back to a
+	** latch-coupled descent.
+	*/
+	final protected static int OPTIMISTIC_TRIES = 4;
+
+	/**
+	** Current copy-on-write epoch. Every {@link #snapshot()} starts a new one.
+	** Nodes made in an earlier epoch might be shared with a snapshot, and are
+	** copied (along with the path to them from the root) before they are
+	** changed. See {@link #own(Node, Node)}.
+	*/
+	protected int epoch = 0;
+
 	/**
 	** Creates a new empty map, sorted according to the given comparator, and
 	** with each non-root node having the given minimum number of subnodes.
@@ -128,14 +210,76 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 	** @param node_min Minimum number of subnodes in each node
 	*/
 	public BTreeMap(Comparator<? super K> cmp, int node_min) {
+		this(cmp, node_min, false);
+	}
+
+	/**
+	** Creates a new empty map, sorted according to the given comparator, and
+	** with each non-root node having the given minimum number of subnodes,
+	** optionally in concurrent mode.
+	**
+	** In concurrent mode, {@link #get(Object)}, {@link #containsKey(Object)},
+	** {@link #put(Object, Object)} and {@link #remove(Object)} are safe to
+	** call from many threads at once:
+	**
+	** * each node has a read/write latch. Writers latch the nodes on their
+	**   way down hand-over-hand, holding at most the parent, the current node
+	**   and its siblings (the single-pass algorithms only ever restructure
+	**   these), so writers in different parts of the tree don't block each
+	**   other.
+	** * reads are optimistic and take no latches. The latch of each node is
+	**   a {@link StampedLock}; a reader takes an optimistic stamp from each
+	**   node it passes through, checks that no writer has latched the node
+	**   since, and starts again from the root if one has. After a few failed
+	**   attempts, it falls back to descending with read latches.
+	**
+	** Other operations (iteration, range views, navigation) are not safe to
+	** use at the same time as writers, and need to be synchronised externally.
+	** {@link #clear()}, {@link #restructure()}, and bulk {@link #putAll(Map)}
+	** hold a tree-wide latch that blocks writers, but not readers.
+	**
+	** @param cmp The comparator for the tree, or {@code null} to use the keys'
+	**            {@link Comparable natural} ordering.
+	** @param node_min Minimum number of subnodes in each node
+	** @param concurrent Whether to create the map in concurrent mode
+	*/
+	public BTreeMap(Comparator<? super K> cmp, int node_min, boolean concurrent) {
+		this(cmp, node_min, node_min<<1, concurrent);
+	}
+
+	/**
+	** Creates a new empty map, sorted according to the given comparator, and
+	** with each non-root node having between the given minimum and maximum
+	** number of subnodes, optionally in concurrent mode.
+	**
+	** A maximum of more than twice the minimum is mostly useful when nodes
+	** are split on some other criteria before they reach the maximum; see
+	** {@link #isOversized(Node)}.
+	**
+	** @param cmp The comparator for the tree, or {@code null} to use the keys'
+	**            {@link Comparable natural} ordering.
+	** @param node_min Minimum number of subnodes in each node
+	** @param node_max Maximum number of subnodes in each node
+	** @param concurrent Whether to create the map in concurrent mode
+	** @see #BTreeMap(Comparator, int, boolean)
+	*/
+	public BTreeMap(Comparator<? super K> cmp, int node_min, int node_max, boolean concurrent) {
 		if (node_min < 2) {
 			throw new IllegalArgumentException("The minimum number of subnodes must be set to at least 2");
 		}
+		if (node_max < node_min<<1) {
+			throw new IllegalArgumentException("The maximum number of subnodes must be set to at least twice the minimum");
+		}
 		comparator = cmp;
 		NODE_MIN = node_min;
-		NODE_MAX = node_min<<1;
+		NODE_MAX = node_max;
 		ENT_MIN = NODE_MIN - 1;
 		ENT_MAX = NODE_MAX - 1;
+		this.concurrent = concurrent;
+		treeLatch = concurrent? new ReentrantReadWriteLock(): null;
+		counted = !concurrent;
+		// not a field initialiser, since newNode() needs the above to be set
+		root = newNode(true);
 	}
 
 	/**
@@ -180,6 +324,11 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 	**    \ - {@link #rnodes} mappings (and the subnode's {@link #lkey})
 	**    / - {@link #lnodes} mappings (and the subnode's {@link #rkey})
 	**
+	** The subnode maps, and the entries map unless a custom one is given, are
+	** {@link SortedArrayMap}s, ie. parallel sorted arrays of keys and values.
+	** This avoids creating an entry object for every mapping, and lets us
+	** select a subnode with a single binary search.
+	**
 	** @author infinity0
 	*/
 	protected class Node {
@@ -192,19 +341,19 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 		/**
 		** Map of entries in this node.
 		*/
-		final SortedMap<K, V> entries;
+		final SortedArrayMap<K, V> entries;
 
 		/**
 		** Map of entries to their immediate smaller nodes. The greatest node
-		** is mapped to by {@link #rkey}.
+		** is mapped to by {@link #rkey}. Sorted by {@link #lcmp}.
 		*/
-		final Map<K, Node> lnodes;
+		final SortedArrayMap<K, Node> lnodes;
 
 		/**
 		** Map of entries to their immediate greater nodes. The smallest node
-		** is mapped to by {@link #lkey}.
+		** is mapped to by {@link #lkey}. Sorted by {@link #rcmp}.
 		*/
-		final Map<K, Node> rnodes;
+		final SortedArrayMap<K, Node> rnodes;
 
 		/**
 		** Greatest key smaller than all keys in this node and subnodes. This
@@ -218,6 +367,48 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 		*/
 		K rkey = null;
 
+		/**
+		** Read/write latch for the node, in concurrent mode. {@code null}
+		** otherwise. Its optimistic stamps are used by readers that take no
+		** latches; see {@link BTreeMap#lookupConcurrent(Object, boolean)}.
+		*/
+		final StampedLock latch;
+
+		/**
+		** Whether the node has been removed from the tree by a restructure, in
+		** concurrent mode. Optimistic readers that reach a retired node start
+		** again, since its stamps stay valid once its latch is released.
+		*/
+		boolean retired = false;
+
+		/**
+		** The {@link BTreeMap#epoch} that the node was made in. If this is not
+		** the current epoch, the node might be shared with a snapshot, and must
+		** not be changed.
+		*/
+		int epoch = BTreeMap.this.epoch;
+
+		/**
+		** Number of times the node has been changed. This is incremented by
+		** {@link #modified()} whenever an entry, subnode, {@link #lkey} or
+		** {@link #rkey} of the node is changed.
+		*/
+		int modCount = 0;
+
+		/**
+		** The {@link #modCount} of the node when it was last committed (ie.
+		** written out to, or read in from, some external storage). {@code -1}
+		** for a node that has never been committed.
+		*/
+		int commitCount = -1;
+
+		/**
+		** Number of entries in the subtree rooted at this node, if {@link
+		** BTreeMap#counted}. {@code -1} if this is not known, eg. for a node
+		** that was loaded from data which did not record it.
+		*/
+		int count = 0;
+
 		/**
 		** Creates a new node for the BTree, with a custom map to store the
 		** entries.
@@ -227,29 +418,55 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 		** the node into a consistent state before releasing it for use.
 		**
 		** @param leaf Whether to create a leaf node
-		** @param map A {@link SortedMap} to use to store the entries
+		** @param map A {@link SortedArrayMap} to use to store the entries
 		*/
-		Node(boolean leaf, SortedMap<K, V> map) {
+		Node(boolean leaf, SortedArrayMap<K, V> map) {
 			isLeaf = leaf;
 			entries = map;
-			if (leaf) {
+			latch = concurrent? new StampedLock(): null;
+			if (leaf || map == null) {
 				// we don't use sentinel Nil elements because that wastes memory due to
-				// having to maintain dummy rnodes and lnodes maps.
+				// having to maintain dummy rnodes and lnodes maps. nodes without an
+				// entries map (ie. not loaded) don't need them either.
 				lnodes = null;
 				rnodes = null;
 			} else {
-				lnodes = new HashMap<K, Node>(NODE_MAX);
-				rnodes = new HashMap<K, Node>(NODE_MAX);
+				lnodes = new SortedArrayMap<K, Node>(lcmp);
+				rnodes = new SortedArrayMap<K, Node>(rcmp);
 			}
 		}
 
+		/**
+		** Creates a copy of a node, with a custom map to store the entries.
+		** The subnode maps are copied, but the subnodes themselves are shared
+		** with the original.
+		**
+		** Note: it is assumed that the input map has the same entries as the
+		** original; it is up to the calling code to ensure that this holds.
+		**
+		** @param node The node to copy
+		** @param map A {@link SortedArrayMap} to use to store the entries
+		*/
+		Node(Node node, SortedArrayMap<K, V> map) {
+			isLeaf = node.isLeaf;
+			entries = map;
+			latch = concurrent? new StampedLock(): null;
+			lkey = node.lkey;
+			rkey = node.rkey;
+			modCount = node.modCount;
+			commitCount = node.commitCount;
+			count = node.count;
+			lnodes = (node.lnodes == null)? null: new SortedArrayMap<K, Node>(node.lnodes);
+			rnodes = (node.rnodes == null)? null: new SortedArrayMap<K, Node>(node.rnodes);
+		}
+
 		/**
 		** Creates a new node for the BTree
 		**
 		** @param leaf Whether to create a leaf node
 		*/
 		Node(boolean leaf) {
-			this(leaf, new TreeMap<K, V>(comparator));
+			this(leaf, new SortedArrayMap<K, V>(comparator));
 		}
 
 		/**
@@ -259,6 +476,28 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 			this(false);
 		}
 
+		/**
+		** Records that the node has been changed since it was last committed.
+		*/
+		void modified() {
+			++modCount;
+		}
+
+		/**
+		** Whether the node has been changed since it was last committed, or
+		** has never been committed.
+		*/
+		boolean isDirty() {
+			return modCount != commitCount;
+		}
+
+		/**
+		** Records that the node has been committed in its current state.
+		*/
+		void markClean() {
+			commitCount = modCount;
+		}
+
 		/**
 		** Number of entries the node contains. When descending through the
 		** tree, either this method or {@link #isLeaf()} will be called at
@@ -331,13 +570,13 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 		Node selectNode(K key) {
 			assert(compare2(lkey, key) < 0 && compare2(key, rkey) < 0);
 
-			SortedMap<K, V> tailmap = entries.tailMap(key);
-			if (tailmap.isEmpty()) {
-				return lnodes.get(rkey);
-			} else {
-				K next = tailmap.firstKey();
-				return (compare(key, next) == 0)? null: lnodes.get(next);
-			}
+			// lnodes is keyed by the entries plus rkey, so the smallest key not
+			// smaller than the input is either the key itself, or the next key
+			// along, whose lnode is the one we want.
+			int i = lnodes.ceilingIndex(key);
+			assert(i < lnodes.size());
+			K next = lnodes.keyAt(i);
+			return (next != null && compare(key, next) == 0)? null: lnodes.valueAt(i);
 		}
 
 		public String toTreeString(String istr) {
@@ -476,6 +715,7 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 	**
 	** * All nodes follow the node constraints, listed above.
 	** * All leaves appear in the same level
+	** * The subtree counts that are known add up, if the map keeps them
 	**
 	** @return depth of all leaves
 	** @throws IllegalStateException if the constraints are not satisfied
@@ -483,15 +723,19 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 	int verifyTreeIntegrity(Node node) {
 		verifyNodeIntegrity(node);
 		if (node.isLeaf()) {
+			verify(!counted || node.count < 0 || node.count == node.size());
 			return 0;
 		} else {
 			// breath-first search would take up too much memory for a broad BTree
 			int depth = -1;
+			int count = node.size();
 			for (Node n: node.lnodes.values()) {
 				int d = verifyTreeIntegrity(n);
 				if (depth < 0) { depth = d; }
 				verify(d == depth);
+				count = (count < 0 || n.count < 0)? -1: count + n.count;
 			}
+			verify(!counted || node.count < 0 || count < 0 || node.count == count);
 			return depth + 1;
 		}
 	}
@@ -504,6 +748,7 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 	*/
 	void verifyTreeIntegrity() {
 		verifyTreeIntegrity(root);
+		verify(!counted || root.count < 0 || root.count == size);
 	}
 
 	/**
@@ -513,6 +758,69 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 		return new Node(l);
 	}
 
+	/**
+	** Creates a copy of a node, for copy-on-write. The subnodes are shared
+	** with the original.
+	*/
+	protected Node copyNode(Node node) {
+		return new Node(node, new SortedArrayMap<K, V>(node.entries));
+	}
+
+	/**
+	** Called by the iterators when they start on a leaf, with the leaf that
+	** they will visit after it, so that it can be made ready whilst they are
+	** going through the current one. This implementation does nothing.
+	**
+	** @param parent The parent of the node
+	** @param node The next leaf that the iterator will visit
+	*/
+	protected void prefetch(Node parent, Node node) { }
+
+	/**
+	** Called by the lookups with the node that they end at; that is, the
+	** node that holds the key, or the leaf that would hold it. This
+	** implementation does nothing.
+	**
+	** @param node The node
+	*/
+	protected void accessed(Node node) { }
+
+	/**
+	** Makes a node safe to change, for copy-on-write. If the node was made in
+	** an earlier {@link #epoch}, and so might be shared with a {@link
+	** #snapshot()}, it is replaced in its parent (or as the {@link #root}) by
+	** a copy, and the copy is returned. Otherwise the node itself is returned.
+	** The parent must already have been made safe to change.
+	**
+	** The writers call this on every node they visit on the way down, as well
+	** as on any siblings that they restructure, so that snapshots only ever
+	** share nodes which the writers no longer touch.
+	**
+	** In concurrent mode, the node must be write-latched. The copy is latched
+	** in its place, and the node is {@link #retire(Node) retired} and
+	** released.
+	**
+	** @param parent The parent of the node, or {@code null} for the root
+	** @param node The node to make safe, or {@code null} to do nothing
+	*/
+	protected Node own(Node parent, Node node) {
+		if (node == null || node.epoch == epoch) { return node; }
+		Node copy = copyNode(node);
+		++structModCount;
+		latchW(copy);
+		if (parent == null) {
+			assert(node == root);
+			root = copy;
+		} else {
+			assert(parent.epoch == epoch);
+			parent.lnodes.put(copy.rkey, copy);
+			parent.rnodes.put(copy.lkey, copy);
+		}
+		retire(node);
+		unlatchW(node);
+		return copy;
+	}
+
 	/**
 	** Split a maximal child node into two minimal nodes, using the median key
 	** as the separator between these new nodes in the parent. If the parent is
@@ -527,72 +835,63 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 	** and re-get the desired result subnode from calling the appropriate
 	** get methods on the parent node.
 	**
+	** In concurrent mode, the new subnode (and the new root, if one is made)
+	** are write-latched before they are attached to the tree. It is up to the
+	** calling code to unlatch them.
+	**
 	** @param parent The node to (re)attach the split subnodes to.
 	** @param child The subnode to split
 	*/
 	private K split(Node parent, Node child) {
-		assert(child.size() == ENT_MAX);
+		assert(isFull(child));
 		assert(parent == null? (child.lkey == null && child.rkey == null):
 		                       (parent.size() < ENT_MAX
 		                     && !parent.isLeaf()
 		                     && parent.rnodes.get(child.lkey) == child
 		                     && parent.lnodes.get(child.rkey) == child));
 
+		int n = splitIndex(child);
+		assert(n >= ENT_MIN && child.size()-n-1 >= ENT_MIN);
+		Node lnode = newNode(child.isLeaf());
+		// the median goes into the parent, which is the same kind of node as
+		// lnode, so this checks every entry that is moved before we change
+		// anything
+		child.entries.checkMove(lnode.entries, 0, n+1);
+
 		if (parent == null) {
 			assert(child.lkey == null && child.rkey == null);
-			parent = root = newNode(false);
+			parent = newNode(false);
+			latchW(parent);
+			root = parent;
 			parent.lnodes.put(null, child);
 			parent.rnodes.put(null, child);
+			parent.count = child.count;
 		}
-		Node lnode = newNode(child.isLeaf());
-		K mkey;
-
-		if (child.isLeaf()) {
-			// this is just the same as the code in the else block, but with leaf
-			// references to rnodes and lnodes removed (since they are null)
-			Iterator<Map.Entry<K, V>> it = child.entries.entrySet().iterator();
-			for (int i=0; i<ENT_MIN; ++i) {
-				Map.Entry<K, V> entry = it.next(); it.remove();
-				K key = entry.getKey();
-
-				lnode.entries.put(key, entry.getValue());
-			}
-			Map.Entry<K, V> median = it.next(); it.remove();
-			mkey = median.getKey();
+		latchW(lnode);
 
-			lnode.lkey = child.lkey;
-			lnode.rkey = child.lkey = mkey;
+		child.entries.moveTo(lnode.entries, 0, n);
+		K mkey = child.entries.firstKey();
+		child.entries.moveTo(parent.entries, 0, 1);
 
-			parent.rnodes.put(lnode.lkey, lnode);
-			parent.lnodes.put(child.rkey, child);
-			parent.entries.put(mkey, median.getValue());
-			parent.rnodes.put(mkey, child);
-			parent.lnodes.put(mkey, lnode);
-
-		} else {
-			lnode.rnodes.put(child.lkey, child.rnodes.remove(child.lkey));
-			Iterator<Map.Entry<K, V>> it = child.entries.entrySet().iterator();
-			for (int i=0; i<ENT_MIN; ++i) {
-				Map.Entry<K, V> entry = it.next(); it.remove();
-				K key = entry.getKey();
-
-				lnode.entries.put(key, entry.getValue());
-				lnode.lnodes.put(key, child.lnodes.remove(key));
-				lnode.rnodes.put(key, child.rnodes.remove(key));
-			}
-			Map.Entry<K, V> median = it.next(); it.remove();
-			mkey = median.getKey();
-			lnode.lnodes.put(mkey, child.lnodes.remove(mkey));
+		if (!child.isLeaf()) {
+			// the smallest n+1 subnodes, ie. those either side of the entries
+			// we just moved, go into the new node
+			child.rnodes.moveTo(lnode.rnodes, 0, n+1);
+			child.lnodes.moveTo(lnode.lnodes, 0, n+1);
+		}
 
-			lnode.lkey = child.lkey;
-			lnode.rkey = child.lkey = mkey;
+		lnode.lkey = child.lkey;
+		lnode.rkey = child.lkey = mkey;
+		parent.modified();
+		child.modified();
+		++structModCount;
+		recount(lnode);
+		recount(child);
 
-			parent.rnodes.put(lnode.lkey, lnode);
-			parent.lnodes.put(child.rkey, child);
-			parent.entries.put(mkey, median.getValue());
-			parent.rnodes.put(mkey, child);
-			parent.lnodes.put(mkey, lnode);
-		}
+		parent.rnodes.put(lnode.lkey, lnode);
+		parent.lnodes.put(child.rkey, child);
+		parent.rnodes.put(mkey, child);
+		parent.lnodes.put(mkey, lnode);
 
 		assert(parent.rnodes.get(mkey) == child);
 		assert(parent.lnodes.get(mkey) == lnode);
@@ -600,14 +899,15 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 	}
 
 	/**
-	** Merge two minimal child nodes into a maximal node, using the key that
-	** separates them in the parent as the key that joins the halfnodes in the
-	** merged node. If the parent is the {@link #root} and the merge makes it
-	** empty, point {@code root} to the new merged node.
+	** Merge two child nodes into one node, using the key that separates them
+	** in the parent as the key that joins the halfnodes in the merged node.
+	** If the parent is the {@link #root} and the merge makes it empty, point
+	** {@code root} to the new merged node.
 	**
 	** Note: This method assumes that both childs are actual subnodes of the
-	** parent, that they are adjacent in the parent, and that they are actually
-	** minimally full. It is up to the calling code to ensure that this holds.
+	** parent, that they are adjacent in the parent, and that they fit into
+	** one node (see {@link #mergeable(Node, Node)}). It is up to the calling
+	** code to ensure that this holds.
 	**
 	** The exact implementation of this may change from time to time, so the
 	** calling code should regard both input subnodes as effectively destroyed,
@@ -621,47 +921,42 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 	private K merge(Node parent, Node lnode, Node rnode) {
 		assert(compare(lnode.rkey, rnode.lkey) == 0); // not compare2 since can't be at edges
 		assert(lnode.isLeaf() && rnode.isLeaf() || !lnode.isLeaf() && !rnode.isLeaf());
-		assert(lnode.size() == ENT_MIN);
-		assert(rnode.size() == ENT_MIN);
+		assert(lnode.size() >= ENT_MIN && rnode.size() >= ENT_MIN);
+		assert(lnode.size() + rnode.size() < ENT_MAX);
 		assert(parent == root && parent.size() > 0
 		                      || parent.size() > ENT_MIN);
 		assert(!parent.isLeaf() && parent.rnodes.get(lnode.rkey) == rnode
 		                      && parent.lnodes.get(rnode.lkey) == lnode);
 
 		K mkey = rnode.lkey; // same as lnode.rkey;
+		int i = parent.entries.search(mkey);
+		parent.entries.checkMove(rnode.entries, i, i+1);
+		lnode.entries.checkMove(rnode.entries, 0, lnode.entries.size());
 
-		if (rnode.isLeaf()) {
-			// this is just the same as the code in the else block, but with leaf
-			// references to rnodes and lnodes removed (since they are null)
-			rnode.entries.putAll(lnode.entries);
-
-			rnode.entries.put(mkey, parent.entries.remove(mkey));
-			rnode.lkey = lnode.lkey;
-
-			parent.rnodes.remove(mkey);
-			parent.lnodes.remove(mkey);
-			parent.rnodes.put(lnode.lkey, rnode);
-
-		} else {
-			rnode.entries.putAll(lnode.entries);
-			rnode.lnodes.putAll(lnode.lnodes);
-			rnode.rnodes.putAll(lnode.rnodes);
-
-			rnode.entries.put(mkey, parent.entries.remove(mkey));
-			rnode.lnodes.put(mkey, lnode.lnodes.get(mkey));
-			rnode.rnodes.put(lnode.lkey, lnode.rnodes.get(lnode.lkey));
-			rnode.lkey = lnode.lkey;
+		lnode.entries.moveTo(rnode.entries, 0, lnode.entries.size());
+		if (!rnode.isLeaf()) {
+			// all of lnode's subnodes are smaller than all of rnode's
+			lnode.lnodes.moveTo(rnode.lnodes, 0, lnode.lnodes.size());
+			lnode.rnodes.moveTo(rnode.rnodes, 0, lnode.rnodes.size());
+		}
 
-			parent.rnodes.remove(mkey);
-			parent.lnodes.remove(mkey);
-			parent.rnodes.put(lnode.lkey, rnode);
+		parent.entries.moveTo(rnode.entries, i, i+1);
+		rnode.lkey = lnode.lkey;
 
-		}
+		parent.rnodes.remove(mkey);
+		parent.lnodes.remove(mkey);
+		parent.rnodes.put(lnode.lkey, rnode);
+		parent.modified();
+		rnode.modified();
+		++structModCount;
+		recount(rnode);
+		retire(lnode);
 
 		if (parent == root && parent.entries.isEmpty()) {
 			assert(parent.lkey == null && parent.rkey == null
 			    && rnode.lkey == null && rnode.rkey == null);
 			root = rnode;
+			retire(parent);
 		}
 
 		assert(parent.rnodes.get(rnode.lkey) == rnode);
@@ -701,18 +996,27 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 
 		K mkey = rnode.lkey;
 		K skey = rnode.entries.firstKey();
+		int i = parent.entries.search(mkey);
+		parent.entries.checkMove(lnode.entries, i, i+1);
+		rnode.entries.checkMove(parent.entries, 0, 1);
 
-		lnode.entries.put(mkey, parent.entries.remove(mkey));
-		parent.entries.put(skey, rnode.entries.remove(skey));
+		parent.entries.moveTo(lnode.entries, i, i+1);
+		rnode.entries.moveTo(parent.entries, 0, 1);
 		parent.rnodes.put(skey, parent.rnodes.remove(mkey));
 		parent.lnodes.put(skey, parent.lnodes.remove(mkey));
 
 		lnode.rkey = rnode.lkey = skey;
+		parent.modified();
+		lnode.modified();
+		rnode.modified();
+		++structModCount;
 
 		if (!lnode.isLeaf()) {
 			lnode.rnodes.put(mkey, rnode.rnodes.remove(mkey));
 			lnode.lnodes.put(skey, rnode.lnodes.remove(skey));
 		}
+		recount(lnode);
+		recount(rnode);
 
 		assert(parent.rnodes.get(skey) == rnode);
 		assert(parent.lnodes.get(skey) == lnode);
@@ -751,18 +1055,27 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 
 		K mkey = lnode.rkey;
 		K skey = lnode.entries.lastKey();
+		int i = parent.entries.search(mkey), j = lnode.entries.size()-1;
+		parent.entries.checkMove(rnode.entries, i, i+1);
+		lnode.entries.checkMove(parent.entries, j, j+1);
 
-		rnode.entries.put(mkey, parent.entries.remove(mkey));
-		parent.entries.put(skey, lnode.entries.remove(skey));
+		parent.entries.moveTo(rnode.entries, i, i+1);
+		lnode.entries.moveTo(parent.entries, j, j+1);
 		parent.lnodes.put(skey, parent.lnodes.remove(mkey));
 		parent.rnodes.put(skey, parent.rnodes.remove(mkey));
 
 		lnode.rkey = rnode.lkey = skey;
+		parent.modified();
+		lnode.modified();
+		rnode.modified();
+		++structModCount;
 
 		if (!rnode.isLeaf()) {
 			rnode.lnodes.put(mkey, lnode.lnodes.remove(mkey));
 			rnode.rnodes.put(skey, lnode.rnodes.remove(skey));
 		}
+		recount(lnode);
+		recount(rnode);
 
 		assert(parent.rnodes.get(skey) == rnode);
 		assert(parent.lnodes.get(skey) == lnode);
@@ -770,559 +1083,2363 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 	}
 
 	/*========================================================================
-	  public interface Map
+	  node size
 	 ========================================================================*/
 
-	@Override public int size() {
-		return size;
+	/**
+	** Whether a node must be split before the single-pass insertion algorithm
+	** goes through it. This is when it has {@link #ENT_MAX} entries, or when
+	** it is {@link #isOversized(Node) oversized} and has enough entries to be
+	** split into two nodes with at least {@link #ENT_MIN} entries each.
+	*/
+	protected boolean isFull(Node node) {
+		int n = node.size();
+		return n == ENT_MAX || n > ENT_MIN<<1 && isOversized(node);
 	}
 
-	@Override public boolean isEmpty() {
-		return size == 0;
+	/**
+	** Whether two adjacent nodes are to be merged, rather than rotated, by the
+	** single-pass removal algorithm. This is when both have {@link #ENT_MIN}
+	** entries, or when the subclass {@link #canMerge(Node, Node) wants them
+	** to} and they fit into one node.
+	*/
+	private boolean mergeable(Node lnode, Node rnode) {
+		int L = lnode.size(), R = rnode.size();
+		return L == ENT_MIN && R == ENT_MIN || L + R < ENT_MAX && canMerge(lnode, rnode);
 	}
 
-	@Override public void clear() {
-		root = newNode(true);
-		size = 0;
+	/**
+	** Whether a node is too big by some measure other than its number of
+	** entries, and should be split before it gets any bigger. Nodes with
+	** {@link #ENT_MAX} entries are always split, regardless of this.
+	**
+	** This implementation returns {@code false}.
+	*/
+	protected boolean isOversized(Node node) {
+		return false;
 	}
 
 	/**
-	** {@inheritDoc}
+	** Whether a node is too small by some measure other than its number of
+	** entries, and should be merged into one of its siblings by the removal
+	** algorithm, if {@link #canMerge(Node, Node)} allows it. Nodes with
+	** {@link #ENT_MIN} entries are always merged or rotated, regardless of
+	** this.
 	**
-	** This implementation just descends the tree, returning {@code true} if it
-	** finds the given key.
+	** If this returns {@code true}, both siblings of the node are visited, so
+	** it should return {@code false} if they are not available.
 	**
-	** @throws ClassCastException key cannot be compared with the keys
-	**         currently in the map
-	** @throws NullPointerException key is {@code null} and this map uses
-	**         natural order, or its comparator does not tolerate {@code null}
-	**         keys
+	** This implementation returns {@code false}.
+	**
+	** @param parent The parent of the node
+	** @param node The node
 	*/
-	@Override public boolean containsKey(Object k) {
-		K key = (K) k;
-		Node node = root;
-
-		for (;;) {
-			if (node.isLeaf()) {
-				return node.entries.containsKey(key);
-			}
-
-			Node nextnode = node.selectNode(key);
-			if (nextnode == null) {
-				return true;
-			}
-
-			node = nextnode;
-		}
+	protected boolean isUndersized(Node parent, Node node) {
+		return false;
 	}
 
-	/* provided by AbstractMap
-	@Override public boolean containsValue(Object key) {
-		throw new UnsupportedOperationException("not implemented");
-	}*/
-
 	/**
-	** {@inheritDoc}
-	**
-	** This implementation just descends the tree, returning the value for the
-	** given key if it can be found.
+	** Whether two adjacent nodes should be merged, if the removal algorithm
+	** has the choice. It is only called for nodes which would fit into one
+	** node with no more than {@link #ENT_MAX} entries.
 	**
-	** @throws ClassCastException key cannot be compared with the keys
-	**         currently in the map
-	** @throws NullPointerException key is {@code null} and this map uses
-	**         natural order, or its comparator does not tolerate {@code null}
-	**         keys
+	** This implementation returns {@code false}, ie. nodes are only merged
+	** when they have {@link #ENT_MIN} entries each.
 	*/
-	@Override public V get(Object k) {
-		K key = (K) k;
-		Node node = root;
-
-		for (;;) {
-			if (node.isLeaf()) {
-				return node.entries.get(key);
-			}
-
-			Node nextnode = node.selectNode(key);
-			if (nextnode == null) {
-				return node.entries.get(key);
-			}
-
-			node = nextnode;
-		}
+	protected boolean canMerge(Node lnode, Node rnode) {
+		return false;
 	}
 
 	/**
-	** {@inheritDoc}
+	** Returns how many entries of a {@link #isFull(Node) full} node go into
+	** the smaller half of the node, when it is split. The result must leave
+	** at least {@link #ENT_MIN} entries in each half, not counting the entry
+	** that is moved to the parent.
 	**
-	** This implementation uses the BTree single-pass insertion algorithm. We
-	** descend the tree, restructuring it as needed so that we can insert an
-	** entry into a leaf.
-	**
-	** Start at the root node. At each stage of the algorithm, we restructure
-	** the tree so that the next node we reach has less than {@link #ENT_MAX}
-	** entries, and the insertion can occur without breaking constraints.
-	**
-	** (*) If the number of entries is {@link #ENT_MAX}, then perform {@link
-	** #split(Node, Node) split} on the node. Both the newly created nodes now
-	** have less than {@link #ENT_MAX} entries; pick the appropriate halfnode
-	** to for the rest of the operation, depending on the original input key.
-	**
-	** If the node is a leaf, insert the value and stop. Otherwise, if the key
-	** is not already in the node, select the appropriate subnode and repeat
-	** from (*).
+	** This implementation splits the node in the middle.
+	*/
+	protected int splitIndex(Node node) {
+		return (node.size()-1)>>1;
+	}
+
+	/**
+	** Divides a sequence of entries (and subnodes, for a non-leaf level)
+	** between the nodes which are to hold them, for the bulk-loading and
+	** bulk-merge algorithms. There are one fewer separators between the nodes
+	** than there are nodes, so the shares must add up to {@code keys.size() -
+	** (shares.length - 1)}. Each share must be between {@link #ENT_MIN} and
+	** {@link #ENT_MAX}, unless there is only one node, which can have fewer.
 	**
-	** Otherwise, replace the value and stop.
+	** This implementation uses the least number of nodes possible, with the
+	** entries spread evenly between them by {@link #spread(int, int, int)}.
 	**
-	** @throws ClassCastException key cannot be compared with the keys
-	**         currently in the map
-	** @throws NullPointerException key is {@code null} and this map uses
-	**         natural order, or its comparator does not tolerate {@code null}
-	**         keys
+	** @param keys The keys of the entries, in order
+	** @param subs The subnodes either side of the entries, or {@code null} for
+	**        a leaf level
+	** @return The number of entries in each node, in order
 	*/
-	@Override public V put(K key, V value) {
-		Node node = root, parent = null;
+	protected int[] packShares(List<K> keys, List<Node> subs) {
+		int e = keys.size();
+		// find the smallest k: k * ENT_MAX + (k-1) >= e
+		// ie. k * NODE_MAX >= e + 1
+		int k = (e + NODE_MAX) / NODE_MAX;
+		// number of entries in the nodes, ie. excluding the separators
+		int m = e - (k-1);
+		int[] shares = new int[k];
+		for (int i=0; i<k; ++i) {
+			shares[i] = spread(m, k, i);
+		}
+		return shares;
+	}
 
-		for (;;) {
-			if (node.size() == ENT_MAX) {
-				K median = split(parent, node);
-				if (parent == null) { parent = root; }
+	/*========================================================================
+	  concurrent mode
+	 ========================================================================*/
 
-				node = parent.selectNode(key);
-				if (node == null) { return parent.entries.put(key, value); }
-			}
-			assert(node.size() < ENT_MAX);
+	/**
+	** Write-latches a node, in concurrent mode. Does nothing if the node is
+	** {@code null}, or if not in concurrent mode.
+	*/
+	protected void latchW(Node node) {
+		if (!concurrent || node == null) { return; }
+		node.latch.asWriteLock().lock();
+	}
 
-			if (node.isLeaf()) {
-				int sz = node.size();
-				V v = node.entries.put(key, value);
-				// update size cache
-				if (node.size() != sz) { ++size; }
-				return v;
-			}
+	/**
+	** Releases the write-latch on a node, in concurrent mode. Does nothing if
+	** the node is {@code null}, or if not in concurrent mode.
+	*/
+	protected void unlatchW(Node node) {
+		if (!concurrent || node == null) { return; }
+		node.latch.asWriteLock().unlock();
+	}
 
-			Node nextnode = node.selectNode(key);
-			if (nextnode == null) { // key is already in the node
-				return node.entries.put(key, value);
-			}
+	/**
+	** Read-latches a node, in concurrent mode.
+	*/
+	protected void latchR(Node node) {
+		if (!concurrent || node == null) { return; }
+		node.latch.asReadLock().lock();
+	}
 
-			parent = node;
-			node = nextnode;
-		}
+	/**
+	** Releases the read-latch on a node, in concurrent mode.
+	*/
+	protected void unlatchR(Node node) {
+		if (!concurrent || node == null) { return; }
+		node.latch.asReadLock().unlock();
 	}
 
 	/**
-	** {@inheritDoc}
-	**
-	** This implementation uses the BTree single-pass deletion algorithm. We
-	** descend the tree, restructuring it as needed so that we can delete the
-	** entry from a leaf.
-	**
-	** Start at the root node. At each stage of the algorithm, we restructure
-	** the tree so that the next node we reach has more than {@link #ENT_MIN}
-	** entries, and the deletion can occur withot breaking constraints.
-	**
-	** (*) If the node is not the root, and if the number of entries is equal
-	** to {@link #ENT_MIN}, select its two siblings (L and R). Perform one of
-	** the following operations (ties being broken arbitrarily):
-	**
-	** * {@link #merge(Node, Node, Node) merge} with X, if X also has {@link
-	**   #ENT_MIN} entries
-	** * {@link #rotateL(Node, Node, Node) rotateL} with R, if the R subnode
-	**   has more entries than L (or equal)
-	** * {@link #rotateR(Node, Node, Node) rotateR} with L, if the L subnode
-	**   has more entries than R (or equal)
-	**
-	** The selected node now has more than {@link #ENT_MIN} entries.
-	**
-	** If the node is a leaf, remove the value and stop. Otherwise, if the key
-	** is not already in the node, select the appropriate subnode and repeat
-	** from (*).
-	**
-	** Otherwise, select the two subnodes (L and R) that this key separates.
-	** Perform one of the following operations (ties being broken arbitrarily):
-	**
-	** * {@link #merge(Node, Node, Node) merge}, if both subnodes have {@link
-	**   #ENT_MIN} entries.
-	** * {@link #rotateL(Node, Node, Node) rotateL}, if the R subnode has more
-	**   entries than L (or equal)
-	** * {@link #rotateR(Node, Node, Node) rotateR}, if the L subnode has more
-	**   entries than R (or equal)
-	**
-	** The node that the key ended up in now has more than {@link #ENT_MIN}
-	** entries (and will be selected for the next stage).
-	**
-	** @throws ClassCastException key cannot be compared with the keys
-	**         currently in the map
-	** @throws NullPointerException key is {@code null} and this map uses
-	**         natural order, or its comparator does not tolerate {@code null}
-	**         keys
+	** Marks a node as removed from the tree, in concurrent mode, so that
+	** optimistic readers which still have a reference to it will try again.
+	** The node must be write-latched.
 	*/
-	@Override public V remove(Object k) {
-		K key = (K) k;
-		Node node = root, parent = null;
+	protected void retire(Node node) {
+		if (!concurrent) { return; }
+		assert(node.latch.isWriteLocked());
+		node.retired = true;
+	}
 
+	/**
+	** Latches the root node, in concurrent mode, and returns it. Since the
+	** root might change whilst we wait for its latch, we check that it is
+	** still the root after getting it.
+	**
+	** @param write Whether to get a write-latch rather than a read-latch
+	*/
+	protected Node latchRoot(boolean write) {
 		for (;;) {
-			if (node != root && node.size() == ENT_MIN) {
-				Node lnode = parent.nodeL(node), rnode = parent.nodeR(node);
-				int L = (lnode == null)? -1: lnode.size();
-				int R = (rnode == null)? -1: rnode.size();
-
-				K kk = // in java, ?: must be used in a statement :|
-				// lnode doesn't exist
-				(L < 0)? ((R == ENT_MIN)? merge(parent, node, rnode):
-				                          rotateL(parent, node, rnode)):
-				// rnode doesn't exist
-				(R < 0)? ((L == ENT_MIN)? merge(parent, lnode, node):
-				                          rotateR(parent, lnode, node)):
-				// pick the node with more entries
-				(R > L)? rotateL(parent, node, rnode):
-				(L > R)? rotateR(parent, lnode, node):
-				// otherwise pick one at "random"
-				(size&1) == 1? (R == ENT_MIN? merge(parent, node, rnode):
-				                              rotateL(parent, node, rnode)):
-				               (L == ENT_MIN? merge(parent, lnode, node):
-				                              rotateR(parent, lnode, node));
-				node = parent.selectNode(key);
-				assert(node != null);
-			}
-			assert(node == root || node.size() >= ENT_MIN);
-
-			if (node.isLeaf()) { // leaf node
-				int sz = node.size();
-				V v = node.entries.remove(key);
-				// update size cache
-				if (node.size() != sz) { --size; }
-				return v;
-			}
-
-			Node nextnode = node.selectNode(key);
-			if (nextnode == null) { // key is already in the node
-				Node lnode = node.lnodes.get(key), rnode = node.rnodes.get(key);
-				int L = lnode.size(), R = rnode.size();
-
-				K kk =
-				// both lnode and rnode must exist, so
-				// pick the one with more entries
-				(R > L)? rotateL(node, lnode, rnode):
-				(L > R)? rotateR(node, lnode, rnode):
-				// otherwise pick one at "random"
-				(size&1) == 1? (R == ENT_MIN? merge(node, lnode, rnode):
-				                              rotateL(node, lnode, rnode)):
-				               (L == ENT_MIN? merge(node, lnode, rnode):
-				                              rotateR(node, lnode, rnode));
-				nextnode = node.selectNode(key);
-				assert(nextnode != null);
-			}
-
-			parent = node;
-			node = nextnode;
+			Node node = root;
+			if (write) { latchW(node); } else { latchR(node); }
+			if (!concurrent || node == root) { return node; }
+			if (write) { unlatchW(node); } else { unlatchR(node); }
 		}
 	}
 
 	/**
-	** {@inheritDoc}
-	**
-	** This implementation iterates over the given map's {@code entrySet},
-	** adding each mapping in turn, except for when {@code this} map is empty,
-	** and the input map is a non-empty {@link SortedMap}. In this case, it
-	** uses the BTree bulk-loading algorithm:
-	**
-	** * distribute all the entries of the map across the least number of nodes
-	**   possible, excluding the entries that will act as separators between
-	**   these nodes
-	** * repeat for the separator entries, and use them to join the nodes from
-	**   the previous level appropriately to form a node at this level
-	** * repeat until there are no more entries on a level, at which point use
-	**   the (single) node from the previous level as the root
-	**
-	** (The optimisation is also used if the input map is {@code this}.)
-	**
-	** @param t mappings to be stored in this map
+	** Called by writers (eg. {@link #put(Object, Object) put}, {@link
+	** #remove(Object) remove}) before they latch any nodes, in concurrent
+	** mode. Many writers can hold this at once.
 	*/
-	@Override public void putAll(Map<? extends K, ? extends V> t) {
-		// t == this to support restructure()
-		if (t.isEmpty()) {
-			return;
-		} else if (t == this || isEmpty() && t instanceof SortedMap) {
-			SortedMap<K, V> map = (SortedMap<K, V>)t, nextmap;
-			Map<K, Node> lnodes = null, nextlnodes;
-
-			if (!(comparator == null && map.comparator() == null || comparator.equals(map.comparator()))) {
-				super.putAll(map);
-				return;
-			}
+	protected void lockWriter() {
+		if (concurrent) { treeLatch.readLock().lock(); }
+	}
 
-			while (map.size() > 0) {
-				// find the smallest k: k * ENT_MAX + (k-1) >= map.size()
-				// ie. k * NODE_MAX >= map.size() + 1
-				// this is the number of nodes at this level
-				int k = (map.size() + NODE_MAX) / NODE_MAX;
-
-				// number of entries in each node (or one less than this)
-				int n = map.size() / k;
-				// how many nodes will have n entries (as opposed to n-1)
-				int leftovers = map.size() % k;
-
-				// TODO find a better algorithm that distributes the weights
-				// more evenly that just "heaviest first"
-				assert(n >= ENT_MIN);
-
-				nextlnodes = new HashMap<K, Node>(k<<1);
-				nextmap = new TreeMap<K, V>();
-
-				Iterator<Map.Entry<K, V>> it = map.entrySet().iterator();
-				K prevkey = null;
-				int i=0;
-				for (; i<=leftovers; ++i) {
-					// put n entries into a new leaf
-					Map.Entry<K, V> en = makeNode(it, n, prevkey, lnodes, nextlnodes);
-					if (en != null) { nextmap.put(prevkey = en.getKey(), en.getValue()); }
-				}
-				--n;
-				for (; i<k; ++i) {
-					Map.Entry<K, V> en = makeNode(it, n, prevkey, lnodes, nextlnodes);
-					if (en != null) { nextmap.put(prevkey = en.getKey(), en.getValue()); }
-				}
+	protected void unlockWriter() {
+		if (concurrent) { treeLatch.readLock().unlock(); }
+	}
 
-				lnodes = nextlnodes;
-				map = nextmap;
-			}
+	/**
+	** Called by operations that replace or rebuild large parts of the tree, in
+	** concurrent mode. This blocks all writers, but not readers.
+	*/
+	protected void lockTree() {
+		if (concurrent) { treeLatch.writeLock().lock(); }
+	}
 
-			assert(lnodes.size() == 1);
-			root = lnodes.get(null);
-			size = map.size();
+	protected void unlockTree() {
+		if (concurrent) { treeLatch.writeLock().unlock(); }
+	}
 
+	/**
+	** Updates the size cache. In concurrent mode, more than one writer might
+	** be doing this at once.
+	*/
+	private void addSize(int d) {
+		if (d == 0) { return; }
+		if (concurrent) {
+			synchronized (treeLatch) { size += d; ++modCount; }
 		} else {
-			super.putAll(t);
+			size += d;
+			++modCount;
 		}
 	}
 
 	/**
-	** Helper method for the bulk-loading algorithm.
+	** Whether the given key is within the range of keys that belong to the
+	** given node, ie. strictly between its {@link Node#lkey} and {@link
+	** Node#rkey}.
+	*/
+	private boolean covers(Node node, K key) {
+		return (node.lkey == null || compare(node.lkey, key) < 0)
+		    && (node.rkey == null || compare(key, node.rkey) < 0);
+	}
+
+	/**
+	** Looks up a key in concurrent mode.
+	**
+	** First we try up to {@link #OPTIMISTIC_TRIES} times without latching.
+	** At each node, we take an optimistic stamp from its latch, read what we
+	** need, then {@link StampedLock#validate(long) validate} the stamp before
+	** trusting what we read; for
+	** the final node, we also check that it still {@link #covers(Node, Object)
+	** covers} the key. If the check fails, we start again. Reading a node in
+	** an inconsistent state can also throw the sort of exceptions that come
+	** from bad indexes or references; these are ignored if the check fails,
+	** and thrown if it passes. If all tries fail, we descend the tree with
+	** read-latches, hand-over-hand.
 	**
-	** @param it Iterator over the entries at the current level
-	** @param n Number of entries to add to the map
-	** @param prevkey Last key encountered before calling this method
-	** @param lnodes Complete map of keys to their lnodes at this level
-	** @param nextlnodes In-construction lnodes map for the next level
+	** @param getval Whether to get the value for the key, or just check that
+	**        it is in the map
+	** @return The value for the key, or a {@link Boolean} saying whether the
+	**         key is in the map
 	*/
-	private Map.Entry<K, V> makeNode(Iterator<Map.Entry<K, V>> it, int n, K prevkey, Map<K, Node> lnodes, Map<K, Node> nextlnodes) {
-		Node node;
-		if (lnodes == null) { // create leaf nodes
-			node = newNode(true);
-			node.lkey = prevkey;
-			for (int i=0; i<n; ++i) {
-				Map.Entry<K, V> en = it.next();
-				K key = en.getKey();
-				node.entries.put(key, en.getValue());
-				prevkey = key;
-			}
-		} else {
-			node = newNode(false);
-			node.lkey = prevkey;
-			for (int i=0; i<n; ++i) {
-				Map.Entry<K, V> en = it.next();
-				K key = en.getKey();
-				node.entries.put(key, en.getValue());
-				Node subnode = lnodes.get(key);
-				node.rnodes.put(prevkey, subnode);
-				node.lnodes.put(key, subnode);
-				prevkey = key;
+	private Object lookupConcurrent(K key, boolean getval) {
+		for (int i=0; i<OPTIMISTIC_TRIES; ++i) {
+			Node node = root;
+			long stamp = node.latch.tryOptimisticRead();
+			try {
+				for (;;) {
+					// zero if a writer has the node latched
+					if (stamp == 0 || node.retired) { break; }
+					Node next = node.isLeaf()? null: node.selectNode(key);
+					if (next == null) {
+						Object o = getval? node.entries.get(key): Boolean.valueOf(node.entries.containsKey(key));
+						boolean ok = covers(node, key);
+						if (node.latch.validate(stamp) && ok) { accessed(node); return o; }
+						break;
+					}
+					long nstamp = next.latch.tryOptimisticRead();
+					// make sure the link we followed was valid
+					if (!node.latch.validate(stamp)) { break; }
+					node = next;
+					stamp = nstamp;
+				}
+			} catch (DataNotLoadedException | IndexOutOfBoundsException | NullPointerException
+			  | ClassCastException | NoSuchElementException e) {
+				// if the node was being modified, try again
+				if (node.latch.validate(stamp)) { throw e; }
+			} catch (AssertionError e) {
+				// same, with assertions enabled
+				if (node.latch.validate(stamp)) { throw e; }
 			}
 		}
 
-		Map.Entry<K, V> next;
-		K key;
-		if (it.hasNext()) {
-			next = it.next();
-			key = next.getKey();
-		} else {
-			next = null;
-			key = null;
-		}
-
-		if (lnodes != null) {
-			Node subnode = lnodes.get(key);
-			node.rnodes.put(prevkey, subnode);
-			node.lnodes.put(key, subnode);
+		Node node = latchRoot(false);
+		try {
+			for (;;) {
+				Node next = node.isLeaf()? null: node.selectNode(key);
+				if (next == null) {
+					accessed(node);
+					return getval? node.entries.get(key): Boolean.valueOf(node.entries.containsKey(key));
+				}
+				latchR(next);
+				unlatchR(node);
+				node = next;
+			}
+		} finally {
+			unlatchR(node);
 		}
-		node.rkey = key;
-		nextlnodes.put(key, node);
-
-		return next;
 	}
 
+	/*========================================================================
+	  snapshots
+	 ========================================================================*/
+
 	/**
-	** Restructures the tree, distributing the entries evenly between the leaf
-	** nodes. This method merely calls {@link #putAll(Map)} with {@code this}.
+	** Returns a read-only view of the map as it is now. This takes constant
+	** time: the view shares all of the nodes of this map, and a new
+	** copy-on-write {@link #epoch} is started, so that from then on, writers
+	** copy the path from the root to each node that they change, instead of
+	** changing it in place.
+	**
+	** The view can be read (including iteration, range views, and navigation)
+	** by any number of threads, whilst this map is being written to, without
+	** any locking. Trying to change it throws {@link
+	** UnsupportedOperationException}.
+	**
+	** Note that the nodes of a {@link SkeletonBTreeMap} are still inflated and
+	** deflated in place, since this does not change the mappings. So a view
+	** of one might throw {@link DataNotLoadedException} for a node that was
+	** loaded when the view was taken, or vice versa.
 	*/
-	public void restructure() {
-		putAll(this);
+	public BTreeMap<K, V> snapshot() {
+		lockTree();
+		try {
+			BTreeMap<K, V> snap = new Snapshot<K, V>(this);
+			++epoch;
+			return snap;
+		} finally {
+			unlockTree();
+		}
 	}
 
-	// TODO maybe make this a WeakReference?
-	private Set<Map.Entry<K, V>> entrySet = null;
-	@Override public Set<Map.Entry<K, V>> entrySet() {
-		if (entrySet == null) {
-			entrySet = new AbstractSet<Map.Entry<K, V>>() {
+	/************************************************************************
+	** A read-only view of a {@link BTreeMap}, as returned by {@link
+	** BTreeMap#snapshot()}. It shares the nodes of the map it was taken from,
+	** which are never changed again by that map's writers.
+	*/
+	protected static class Snapshot<K, V> extends BTreeMap<K, V> {
+
+		Snapshot(BTreeMap<K, V> map) {
+			super(map.comparator, map.NODE_MIN, map.NODE_MAX, false);
+			root = map.root;
+			size = map.size;
+			counted = map.counted;
+			// none of the nodes belong to the current epoch, so BTreeEntry.setValue()
+			// goes through put(), and fails
+			epoch = map.epoch + 1;
+		}
 
-				@Override public int size() { return BTreeMap.this.size(); }
+		@Override public BTreeMap<K, V> snapshot() {
+			return this;
+		}
 
-				@Override public Iterator<Map.Entry<K, V>> iterator() {
-					// URGENT - this does NOT yet throw ConcurrentModificationException
-					// use a modCount counter
-					return new Iterator<Map.Entry<K, V>>() {
+		@Override public void clear() {
+			throw new UnsupportedOperationException("BTreeMap snapshots are read-only");
+		}
 
-						Stack<Node> nodestack = new Stack<Node>();
-						Stack<Iterator<Map.Entry<K, V>>> itstack = new Stack<Iterator<Map.Entry<K, V>>>();
+		@Override public V put(K key, V value) {
+			throw new UnsupportedOperationException("BTreeMap snapshots are read-only");
+		}
 
-						Node cnode = BTreeMap.this.root;
-						Iterator<Map.Entry<K, V>> centit = cnode.entries.entrySet().iterator();
+		@Override public V remove(Object key) {
+			throw new UnsupportedOperationException("BTreeMap snapshots are read-only");
+		}
 
-						K lastkey = null;
+		@Override public void putAll(Map<? extends K, ? extends V> t) {
+			throw new UnsupportedOperationException("BTreeMap snapshots are read-only");
+		}
 
-						@Override public boolean hasNext() {
-							for (Iterator<Map.Entry<K, V>> it: itstack) {
-								if (it.hasNext()) { return true; }
-							}
-							if (centit.hasNext()) { return true; }
-							return false;
-						}
+	}
 
-						@Override public Map.Entry<K, V> next() {
-							if (cnode.isLeaf()) {
-								while (!centit.hasNext()) {
-									if (nodestack.empty()) {
-										assert(itstack.empty());
-										throw new NoSuchElementException();
-									}
-									cnode = nodestack.pop();
-									centit = itstack.pop();
-								}
-							} else {
-								while (!cnode.isLeaf()) {
-									nodestack.push(cnode);
-									itstack.push(centit);
-									// lastkey initialised to null, so this will get the right node even at the
-									// smaller edge of the map
-									cnode = cnode.rnodes.get(lastkey);
-									centit = cnode.entries.entrySet().iterator();
-								}
-							}
-							Map.Entry<K, V> next = centit.next(); lastkey = next.getKey();
-							return next;
-						}
+	/*========================================================================
+	  dirty nodes
+	 ========================================================================*/
 
-						@Override public void remove() {
-							BTreeMap.this.remove(lastkey);
-							// we need to find our position in the tree again, since there may have
-							// been structural modifications to it.
-
-							// OPTIMISE have a "structual modifications counter" that
-							// split, merge, rotateL, rotateR increment, and do this only if it
-							// changes
-							nodestack.clear();
-							itstack.clear();
-							cnode = BTreeMap.this.root;
-							centit = cnode.entries.entrySet().iterator();
-
-							K stopkey = null;
-							while(!cnode.isLeaf()) {
-								stopkey = findstopkey(stopkey);
-								nodestack.push(cnode);
-								itstack.push(centit);
-								// stopkey initialised to null, so this will get the right node even at the
-								// smaller edge of the map
-								cnode = cnode.rnodes.get(stopkey);
-								centit = cnode.entries.entrySet().iterator();
-							}
-
-							lastkey = findstopkey(stopkey);
-						}
+	/**
+	** Returns an iterator over the loaded nodes which have been changed since
+	** they were last committed (see {@link Node#markClean()}), or which have
+	** never been committed. Subnodes are returned before their parents, so
+	** that a commit can push each node after all of its subnodes have been
+	** pushed.
+	**
+	** Nodes are changed by {@link #put(Object, Object)}, {@link
+	** #remove(Object)}, {@link BTreeEntry#setValue(Object)}, and the splits,
+	** merges and rotates that these do. Note that changing a value in place
+	** (rather than putting it back into the map) does not count as a change.
+	**
+	** The iterator does not support {@link Iterator#remove()}. The map must
+	** not be written to whilst the iterator is in use.
+	*/
+	public Iterator<Node> dirtyNodes() {
+		return new Iterator<Node>() {
+
+			/** The path from the root to the current node. */
+			final List<Node> path = new ArrayList<Node>();
+			/** The subnodes of each node on the path that are left to visit. */
+			final List<Iterator<Node>> subs = new ArrayList<Iterator<Node>>();
+			Node next;
+
+			{
+				enter(root);
+				next = advance();
+			}
 
-						private K findstopkey(K stopkey) {
-							SortedMap<K, V> headmap = cnode.entries.headMap(lastkey);
-							if (!headmap.isEmpty()) {
-								stopkey = headmap.lastKey();
-								while (compare(centit.next().getKey(), stopkey) < 0);
-							}
-							return stopkey;
-						}
+			private void enter(Node node) {
+				path.add(node);
+				subs.add(node.isLeaf()? null: node.lnodes.values().iterator());
+			}
 
-					};
+			private Node advance() {
+				while (!path.isEmpty()) {
+					int i = path.size() - 1;
+					Iterator<Node> it = subs.get(i);
+					if (it != null && it.hasNext()) {
+						Node sub = it.next();
+						// skip nodes that are not loaded
+						if (sub.entries != null) { enter(sub); }
+						continue;
+					}
+					subs.remove(i);
+					Node node = path.remove(i);
+					if (node.isDirty()) { return node; }
 				}
+				return null;
+			}
 
-				@Override public void clear() {
-					BTreeMap.this.clear();
-				}
+			@Override public boolean hasNext() {
+				return next != null;
+			}
 
-				@Override public boolean contains(Object o) {
-					if (!(o instanceof Map.Entry)) { return false; }
-					Map.Entry e = (Map.Entry)o;
-					Object value = BTreeMap.this.get(e.getKey());
-					return value != null && value.equals(e.getValue());
-				}
+			@Override public Node next() {
+				if (next == null) { throw new NoSuchElementException(); }
+				Node node = next;
+				next = advance();
+				return node;
+			}
 
-				@Override public boolean remove(Object o) {
-					if (contains(o)) {
-						Map.Entry e = (Map.Entry)o;
-						BTreeMap.this.remove(e.getKey());
-						return true;
-					}
-					return false;
-				}
+			@Override public void remove() {
+				throw new UnsupportedOperationException("Not implemented.");
+			}
 
-			};
+		};
+	}
+
+	/*========================================================================
+	  order statistics
+	 ========================================================================*/
+
+	/**
+	** Sets the {@link Node#count} of a node from its entries and the counts of
+	** its subnodes, after it has been restructured. If the count of any of
+	** the subnodes is not known, then neither is the count of the node.
+	*/
+	protected void recount(Node node) {
+		if (!counted) { return; }
+		int c = node.entries.size();
+		if (!node.isLeaf) {
+			for (Node sub: node.lnodes.values()) {
+				if (sub.count < 0) { c = -1; break; }
+				c += sub.count;
+			}
 		}
-		return entrySet;
+		node.count = c;
 	}
 
-	/* provided by AbstractMap
-	@Override public Set<K> keySet() {
-		throw new UnsupportedOperationException("not implemented");
-	}*/
+	/**
+	** Adds to the {@link Node#count} of each of the given nodes, after an
+	** entry was added to or removed from all of their subtrees.
+	*/
+	private void addCount(List<Node> path, int d) {
+		if (!counted) { return; }
+		for (Node node: path) {
+			if (node.count >= 0) { node.count += d; }
+		}
+	}
 
-	/* provided by AbstractMap
-	@Override public Collection<V> values() {
-		throw new UnsupportedOperationException("not implemented");
-	}*/
+	/**
+	** Returns the number of entries in the subtree rooted at the given node.
+	** If this is not known, it is worked out from the subnodes, and recorded.
+	**
+	** @throws DataNotLoadedException if the count is not known, and some of
+	**         the nodes needed to work it out are not loaded
+	*/
+	private int countOf(Node node) {
+		if (node.count < 0) {
+			// size() throws DataNotLoadedException for a ghost node
+			int c = node.size();
+			if (!node.isLeaf()) {
+				for (Node sub: node.lnodes.values()) { c += countOf(sub); }
+			}
+			node.count = c;
+		}
+		return node.count;
+	}
 
-	/*========================================================================
-	  public interface Map
-	 ========================================================================*/
+	private void checkCounted() {
+		if (!counted) {
+			throw new UnsupportedOperationException("BTreeMap does not keep subtree counts in concurrent mode");
+		}
+	}
 
-	@Override public Comparator<? super K> comparator() {
-		return comparator;
+	/**
+	** Returns the entry at the given position in the map, ie. the entry with
+	** exactly {@code i} smaller keys. This takes a single descent of the tree,
+	** using the subtree counts to pick the subnode to descend into.
+	**
+	** For a {@link SkeletonBTreeMap}, the subtree counts are kept with the
+	** ghosts of the nodes that aren't loaded, so only the nodes on the path
+	** to the entry need to be loaded.
+	**
+	** @param i The position of the entry
+	** @return An immutable snapshot of the entry
+	** @throws IndexOutOfBoundsException if {@code i} is negative, or not less
+	**         than {@link #size()}
+	** @throws UnsupportedOperationException in concurrent mode
+	*/
+	public Map.Entry<K, V> getEntryAt(int i) {
+		return exportEntry(entryAt(i));
 	}
 
-	@Override public K firstKey() {
+	/**
+	** Returns the key at the given position in the map. This is the same as
+	** {@code getEntryAt(i).getKey()}, except that for a {@link
+	** SkeletonBTreeMap}, the value doesn't need to be loaded.
+	**
+	** @see #getEntryAt(int)
+	*/
+	public K getKeyAt(int i) {
+		return entryAt(i).key;
+	}
+
+	/**
+	** Returns the number of keys in the map that are smaller than the given
+	** key. If the key is in the map, this is its position, as used by {@link
+	** #getEntryAt(int)}. This takes a single descent of the tree.
+	**
+	** @throws UnsupportedOperationException in concurrent mode
+	*/
+	public int rankOf(K key) {
+		return rank(key, false);
+	}
+
+	private BTreeEntry entryAt(int i) {
+		checkCounted();
+		if (i < 0 || i >= size) {
+			throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+		}
 		Node node = root;
 		for (;;) {
-			K fkey = node.entries.firstKey();
-			if (node.isLeaf()) { return fkey; }
-			node = node.lnodes.get(fkey);
+			if (node.isLeaf()) {
+				SortedArrayMap<K, V> map = node.entries;
+				return map.hasValueAt(i)? new BTreeEntry(node, map.keyAt(i), map.valueAt(i)): new BTreeEntry(node, map.keyAt(i));
+			}
+
+			for (int j=0;; ++j) {
+				Node sub = node.lnodes.valueAt(j);
+				int c = countOf(sub);
+				if (i < c) {
+					node = sub;
+					break;
+				} else if (i == c) {
+					return new BTreeEntry(node, node.lnodes.keyAt(j));
+				}
+				i -= c + 1;
+			}
 		}
 	}
 
-	@Override public K lastKey() {
+	/**
+	** Returns the number of keys in the map that are smaller than (or equal
+	** to, if {@code inclusive}) the given key.
+	*/
+	private int rank(K key, boolean inclusive) {
+		checkCounted();
+		int r = 0;
 		Node node = root;
 		for (;;) {
-			K lkey = node.entries.lastKey();
-			if (node.isLeaf()) { return lkey; }
-			node = node.rnodes.get(lkey);
+			if (node.isLeaf()) {
+				int i = node.entries.search(key);
+				return r + ((i < 0)? -(i + 1): inclusive? i + 1: i);
+			}
+
+			int i = node.lnodes.ceilingIndex(key);
+			for (int j=0; j<i; ++j) {
+				r += countOf(node.lnodes.valueAt(j)) + 1;
+			}
+			Node sub = node.lnodes.valueAt(i);
+			if (i < node.size() && compare(node.lnodes.keyAt(i), key) == 0) {
+				// the key is in this node
+				r += countOf(sub);
+				return inclusive? r + 1: r;
+			}
+			node = sub;
 		}
 	}
 
-	@Override public SortedMap<K, V> headMap(K rkey) {
-		throw new UnsupportedOperationException("not implemented");
+	/*========================================================================
+	  public interface Map
+	 ========================================================================*/
+
+	@Override public int size() {
+		return size;
 	}
 
-	@Override public SortedMap<K, V> tailMap(K lkey) {
-		throw new UnsupportedOperationException("not implemented");
+	@Override public boolean isEmpty() {
+		return size == 0;
 	}
 
-	@Override public SortedMap<K, V> subMap(K lkey, K rkey) {
-		throw new UnsupportedOperationException("not implemented");
+	@Override public void clear() {
+		lockTree();
+		try {
+			root = newNode(true);
+			size = 0;
+			++modCount;
+			++structModCount;
+		} finally {
+			unlockTree();
+		}
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation just descends the tree, returning {@code true} if it
+	** finds the given key.
+	**
+	** @throws ClassCastException key cannot be compared with the keys
+	**         currently in the map
+	** @throws NullPointerException key is {@code null} and this map uses
+	**         natural order, or its comparator does not tolerate {@code null}
+	**         keys
+	*/
+	@Override public boolean containsKey(Object k) {
+		K key = (K) k;
+		if (concurrent) { return (Boolean)lookupConcurrent(key, false); }
+		Node node = root;
+
+		for (;;) {
+			if (node.isLeaf()) {
+				accessed(node);
+				return node.entries.containsKey(key);
+			}
+
+			Node nextnode = node.selectNode(key);
+			if (nextnode == null) {
+				accessed(node);
+				return true;
+			}
+
+			node = nextnode;
+		}
+	}
+
+	/* provided by AbstractMap
+	@Override public boolean containsValue(Object key) {
+		throw new UnsupportedOperationException("not implemented");
+	}*/
+
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation just descends the tree, returning the value for the
+	** given key if it can be found.
+	**
+	** @throws ClassCastException key cannot be compared with the keys
+	**         currently in the map
+	** @throws NullPointerException key is {@code null} and this map uses
+	**         natural order, or its comparator does not tolerate {@code null}
+	**         keys
+	*/
+	@Override public V get(Object k) {
+		K key = (K) k;
+		if (concurrent) { return (V)lookupConcurrent(key, true); }
+		Node node = root;
+
+		for (;;) {
+			if (node.isLeaf()) {
+				accessed(node);
+				return node.entries.get(key);
+			}
+
+			Node nextnode = node.selectNode(key);
+			if (nextnode == null) {
+				accessed(node);
+				return node.entries.get(key);
+			}
+
+			node = nextnode;
+		}
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation uses the BTree single-pass insertion algorithm. We
+	** descend the tree, restructuring it as needed so that we can insert an
+	** entry into a leaf.
+	**
+	** Start at the root node. At each stage of the algorithm, we restructure
+	** the tree so that the next node we reach has less than {@link #ENT_MAX}
+	** entries, and the insertion can occur without breaking constraints.
+	**
+	** (*) If the number of entries is {@link #ENT_MAX} (or the node is {@link
+	** #isOversized(Node) oversized}), then perform {@link #split(Node, Node)
+	** split} on the node. Both the newly created nodes now
+	** have less than {@link #ENT_MAX} entries; pick the appropriate halfnode
+	** to for the rest of the operation, depending on the original input key.
+	**
+	** If the node is a leaf, insert the value and stop. Otherwise, if the key
+	** is not already in the node, select the appropriate subnode and repeat
+	** from (*).
+	**
+	** Otherwise, replace the value and stop.
+	**
+	** @throws ClassCastException key cannot be compared with the keys
+	**         currently in the map
+	** @throws NullPointerException key is {@code null} and this map uses
+	**         natural order, or its comparator does not tolerate {@code null}
+	**         keys
+	*/
+	@Override public V put(K key, V value) {
+		lockWriter();
+		Node node = own(null, latchRoot(true)), parent = null;
+		// nodes whose subtree the key goes into
+		List<Node> path = counted? new ArrayList<Node>(): null;
+
+		try {
+			for (;;) {
+				if (isFull(node)) {
+					Node child = node;
+					K median = split(parent, node);
+					if (parent == null) { parent = root; if (counted) { path.add(parent); } }
+
+					Node lnode = parent.lnodes.get(median);
+					node = parent.selectNode(key);
+					// split() latched the new halfnode; let go of the one we don't need
+					if (child != node) { unlatchW(child); }
+					if (lnode != node) { unlatchW(lnode); }
+					if (node == null) { parent.modified(); return parent.entries.put(key, value); }
+				}
+				assert(node.size() < ENT_MAX);
+				if (counted) { path.add(node); }
+
+				if (node.isLeaf()) {
+					int sz = node.size();
+					node.modified();
+					V v = node.entries.put(key, value);
+					// update size cache
+					if (node.size() != sz) { addSize(1); addCount(path, 1); }
+					return v;
+				}
+
+				Node nextnode = node.selectNode(key);
+				if (nextnode == null) { // key is already in the node
+					node.modified();
+					return node.entries.put(key, value);
+				}
+
+				latchW(nextnode);
+				nextnode = own(node, nextnode);
+				unlatchW(parent);
+				parent = node;
+				node = nextnode;
+			}
+		} finally {
+			unlatchW(node);
+			unlatchW(parent);
+			unlockWriter();
+		}
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation uses the BTree single-pass deletion algorithm. We
+	** descend the tree, restructuring it as needed so that we can delete the
+	** entry from a leaf.
+	**
+	** Start at the root node. At each stage of the algorithm, we restructure
+	** the tree so that the next node we reach has more than {@link #ENT_MIN}
+	** entries, and the deletion can occur withot breaking constraints.
+	**
+	** (*) If the node is not the root, and if the number of entries is equal
+	** to {@link #ENT_MIN}, select its two siblings (L and R). Perform one of
+	** the following operations (ties being broken arbitrarily):
+	**
+	** * {@link #merge(Node, Node, Node) merge} with X, if X also has {@link
+	**   #ENT_MIN} entries
+	** * {@link #rotateL(Node, Node, Node) rotateL} with R, if the R subnode
+	**   has more entries than L (or equal)
+	** * {@link #rotateR(Node, Node, Node) rotateR} with L, if the L subnode
+	**   has more entries than R (or equal)
+	**
+	** The selected node now has more than {@link #ENT_MIN} entries.
+	**
+	** If the node has more entries than that, but is {@link
+	** #isUndersized(Node, Node) undersized}, merge it with L or R if {@link
+	** #canMerge(Node, Node) allowed}, and otherwise leave it as it is.
+	** Likewise, any merge allowed by {@code canMerge} is preferred to a
+	** rotate, here and below.
+	**
+	** If the node is a leaf, remove the value and stop. Otherwise, if the key
+	** is not already in the node, select the appropriate subnode and repeat
+	** from (*).
+	**
+	** Otherwise, select the two subnodes (L and R) that this key separates.
+	** Perform one of the following operations (ties being broken arbitrarily):
+	**
+	** * {@link #merge(Node, Node, Node) merge}, if both subnodes have {@link
+	**   #ENT_MIN} entries.
+	** * {@link #rotateL(Node, Node, Node) rotateL}, if the R subnode has more
+	**   entries than L (or equal)
+	** * {@link #rotateR(Node, Node, Node) rotateR}, if the L subnode has more
+	**   entries than R (or equal)
+	**
+	** The node that the key ended up in now has more than {@link #ENT_MIN}
+	** entries (and will be selected for the next stage). If both subnodes
+	** have {@link #ENT_MAX} entries, none of these can be done without
+	** overfilling one of them; instead, replace the key with its predecessor
+	** (see {@link #removeBetweenFull(Node, Node, Node, Object)}) and stop.
+	**
+	** @throws ClassCastException key cannot be compared with the keys
+	**         currently in the map
+	** @throws NullPointerException key is {@code null} and this map uses
+	**         natural order, or its comparator does not tolerate {@code null}
+	**         keys
+	*/
+	@Override public V remove(Object k) {
+		K key = (K) k;
+		lockWriter();
+		Node node = own(null, latchRoot(true)), parent = null;
+		// siblings latched in concurrent mode, not yet released
+		Node sl = null, sr = null;
+		// nodes whose subtree the key is in
+		List<Node> path = counted? new ArrayList<Node>(): null;
+
+		try {
+			for (;;) {
+				if (node != root && (node.size() == ENT_MIN || isUndersized(parent, node))) {
+					Node lnode = parent.nodeL(node), rnode = parent.nodeR(node);
+					latchW(sl = lnode);
+					latchW(sr = rnode);
+					sl = lnode = own(parent, lnode);
+					sr = rnode = own(parent, rnode);
+					int L = (lnode == null)? -1: lnode.size();
+					int R = (rnode == null)? -1: rnode.size();
+
+					K kk = // in java, ?: must be used in a statement :|
+					// node is only undersized, so merge it if we can, or leave it
+					(node.size() > ENT_MIN)? ((R >= 0 && mergeable(node, rnode))? merge(parent, node, rnode):
+					                          (L >= 0 && mergeable(lnode, node))? merge(parent, lnode, node): null):
+					// lnode doesn't exist
+					(L < 0)? (mergeable(node, rnode)? merge(parent, node, rnode):
+					                                  rotateL(parent, node, rnode)):
+					// rnode doesn't exist
+					(R < 0)? (mergeable(lnode, node)? merge(parent, lnode, node):
+					                                  rotateR(parent, lnode, node)):
+					// pick the node with more entries
+					(R > L)? (mergeable(node, rnode)? merge(parent, node, rnode):
+					                                  rotateL(parent, node, rnode)):
+					(L > R)? (mergeable(lnode, node)? merge(parent, lnode, node):
+					                                  rotateR(parent, lnode, node)):
+					// otherwise pick one at "random"
+					(size&1) == 1? (mergeable(node, rnode)? merge(parent, node, rnode):
+					                                        rotateL(parent, node, rnode)):
+					               (mergeable(lnode, node)? merge(parent, lnode, node):
+					                                        rotateR(parent, lnode, node));
+					Node nextnode = parent.selectNode(key);
+					assert(nextnode != null);
+					// let go of the nodes we don't need
+					if (node != nextnode) { unlatchW(node); }
+					if (sl != nextnode) { unlatchW(sl); }
+					if (sr != nextnode) { unlatchW(sr); }
+					sl = sr = null;
+					node = nextnode;
+				}
+				assert(node == root || node.size() >= ENT_MIN);
+				if (counted) { path.add(node); }
+
+				if (node.isLeaf()) { // leaf node
+					int sz = node.size();
+					V v = node.entries.remove(key);
+					// update size cache
+					if (node.size() != sz) { addSize(-1); addCount(path, -1); node.modified(); }
+					return v;
+				}
+
+				Node nextnode = node.selectNode(key);
+				if (nextnode == null) { // key is already in the node
+					Node lnode = node.lnodes.get(key), rnode = node.rnodes.get(key);
+					latchW(sl = lnode);
+					latchW(sr = rnode);
+					sl = lnode = own(node, lnode);
+					sr = rnode = own(node, rnode);
+					int L = lnode.size(), R = rnode.size();
+					if (L == ENT_MAX && R == ENT_MAX) {
+						// the key can't be rotated into either subnode without overfilling it
+						V v = removeBetweenFull(node, lnode, rnode, key);
+						addCount(path, -1);
+						return v;
+					}
+
+					K kk =
+					// both lnode and rnode must exist, so
+					// merge them if they fit into one
+					mergeable(lnode, rnode)? merge(node, lnode, rnode):
+					// otherwise pick the one with more entries
+					(R > L)? rotateL(node, lnode, rnode):
+					(L > R)? rotateR(node, lnode, rnode):
+					// otherwise pick one at "random"
+					(size&1) == 1? rotateL(node, lnode, rnode):
+					               rotateR(node, lnode, rnode);
+					nextnode = node.selectNode(key);
+					assert(nextnode != null);
+					// let go of the subnode we don't need
+					if (sl != nextnode) { unlatchW(sl); }
+					if (sr != nextnode) { unlatchW(sr); }
+					sl = sr = null;
+				} else {
+					latchW(nextnode);
+					nextnode = own(node, nextnode);
+				}
+
+				unlatchW(parent);
+				parent = node;
+				node = nextnode;
+			}
+		} finally {
+			unlatchW(sr);
+			unlatchW(sl);
+			unlatchW(node);
+			unlatchW(parent);
+			unlockWriter();
+		}
+	}
+
+	/**
+	** Removes a key from a non-leaf node, when both subnodes either side of
+	** it are full. We remove the greatest key of the smaller subnode (ie. the
+	** predecessor of the key) and put it in place of the key, updating the
+	** {@link Node#rkey}s and {@link Node#lkey}s along the inner edges of both
+	** subnodes to match.
+	**
+	** The predecessor is removed by descending the rightmost path of {@code
+	** lnode}, restructuring it as in {@link #remove(Object)}. The edge of
+	** {@code rnode} is visited first, so that if one of its nodes is not
+	** loaded, we fail before changing anything.
+	**
+	** In concurrent mode, all three nodes must be write-latched; the nodes
+	** along the edges are latched and released by this method.
+	**
+	** @param node The node containing the key
+	** @param lnode The subnode to the left of the key
+	** @param rnode The subnode to the right of the key
+	** @param key The key to remove
+	** @return The value that was mapped to the key
+	*/
+	private V removeBetweenFull(Node node, Node lnode, Node rnode, K key) {
+		assert(lnode.size() == ENT_MAX && rnode.size() == ENT_MAX);
+		assert(node.lnodes.get(key) == lnode && node.rnodes.get(key) == rnode);
+		List<Node> ledge = new ArrayList<Node>(), redge = new ArrayList<Node>();
+
+		try {
+			for (Node n = rnode; !n.isLeaf();) {
+				Node c = n.rnodes.get(key);
+				latchW(c);
+				redge.add(c = own(n, c));
+				n = c;
+			}
+
+			Node n = lnode;
+			while (!n.isLeaf()) {
+				Node c = n.lnodes.get(key);
+				latchW(c);
+				ledge.add(c = own(n, c));
+				if (c.size() == ENT_MIN) {
+					Node cl = n.nodeL(c);
+					latchW(cl);
+					cl = own(n, cl);
+					try {
+						K kk = mergeable(cl, c)? merge(n, cl, c): rotateR(n, cl, c);
+					} finally {
+						unlatchW(cl);
+					}
+				}
+				assert(c.size() > ENT_MIN);
+				n = c;
+			}
+
+			K pkey = n.entries.lastKey();
+			int j = n.entries.size()-1;
+			n.entries.checkMove(node.entries, j, j+1);
+			V v = node.entries.remove(key);
+			n.entries.moveTo(node.entries, j, j+1);
+			node.lnodes.put(pkey, node.lnodes.remove(key));
+			node.rnodes.put(pkey, node.rnodes.remove(key));
+			lnode.rkey = rnode.lkey = pkey;
+			node.modified();
+			lnode.modified();
+			rnode.modified();
+			++structModCount;
+
+			if (counted && lnode.count >= 0) { --lnode.count; }
+			Node p = lnode;
+			for (Node c: ledge) {
+				p.lnodes.put(pkey, p.lnodes.remove(key));
+				c.rkey = pkey;
+				c.modified();
+				if (counted && c.count >= 0) { --c.count; }
+				p = c;
+			}
+			p = rnode;
+			for (Node c: redge) {
+				p.rnodes.put(pkey, p.rnodes.remove(key));
+				c.lkey = pkey;
+				c.modified();
+				p = c;
+			}
+
+			addSize(-1);
+			return v;
+
+		} finally {
+			for (Node c: ledge) { unlatchW(c); }
+			for (Node c: redge) { unlatchW(c); }
+		}
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation iterates over the given map's {@code entrySet},
+	** adding each mapping in turn, except for when the input map is a
+	** non-empty {@link SortedMap} with the same comparator as this map.
+	**
+	** If {@code this} map is empty, this is the BTree bulk-loading algorithm:
+	**
+	** * distribute all the entries of the map across the least number of nodes
+	**   possible, excluding the entries that will act as separators between
+	**   these nodes
+	** * repeat for the separator entries, and use them to join the nodes from
+	**   the previous level appropriately to form a node at this level
+	** * repeat until there are no more entries on a level, at which point use
+	**   the (single) node from the previous level as the root
+	**
+	** (The same happens if the input map is {@code this}.)
+	**
+	** Otherwise, only the nodes that the input falls into, and their
+	** ancestors, are rebuilt. Both cases are done by the bulk-merge algorithm,
+	** which streams the input through the tree in a single pass; see {@link
+	** #mergeNode(Node, MergeInput)}.
+	**
+	** In both cases, the entries at each level are divided between the nodes
+	** of that level by {@link #packShares(List, List)}.
+	**
+	** @param t mappings to be stored in this map
+	*/
+	@Override public void putAll(Map<? extends K, ? extends V> t) {
+		// t == this to support restructure()
+		if (t.isEmpty()) {
+			return;
+		} else if (t instanceof SortedMap) {
+			lockTree();
+			try {
+				putAllBulk((SortedMap<K, V>)t);
+			} finally {
+				unlockTree();
+			}
+		} else {
+			super.putAll(t);
+		}
+	}
+
+	/**
+	** Bulk-loads the tree from the given map if it is empty, or bulk-merges
+	** the map into the tree otherwise.
+	**
+	** @see #putAll(Map)
+	*/
+	private void putAllBulk(SortedMap<K, V> t) {
+		if (!(comparator == null? t.comparator() == null: comparator.equals(t.comparator()))) {
+			super.putAll(t);
+			return;
+		}
+		// an empty tree is a single empty leaf, so merging into it builds the
+		// whole tree from the input, level by level
+		putAllMerge(t);
+	}
+
+	/**
+	** Returns how many of {@code m} entries go into the {@code i}th of {@code
+	** k} nodes, when spreading them as evenly as possible. The nodes that get
+	** an extra entry are spaced out evenly along the level, rather than being
+	** bunched up at one end, so that the fill factor of each part of the tree
+	** is the same.
+	**
+	** If {@code k} is the least number of nodes that can hold {@code m + k -
+	** 1} entries (ie. including the separators), then each share is between
+	** {@link #ENT_MIN} and {@link #ENT_MAX}.
+	*/
+	protected static int spread(int m, int k, int i) {
+		return (int)((long)(i+1) * m / k - (long)i * m / k);
+	}
+
+	/**
+	** Bulk-merges a sorted map into the tree.
+	**
+	** The input is streamed through {@link #mergeNode(Node, MergeInput)},
+	** starting at the root; if the root comes out as more than one node, new
+	** levels are added on top until there is only one. The new nodes are only
+	** attached to the tree when this is done, by setting {@link #root}; until
+	** then, the tree is not changed at all. So a failure part-way through
+	** (eg. {@link DataNotLoadedException} for a {@link SkeletonBTreeMap})
+	** leaves the map as it was, and lock-free readers only ever see the tree
+	** as it was before or after the merge.
+	**
+	** If the input is the map itself, it is streamed through an empty leaf
+	** instead of the root, which rebuilds the whole tree.
+	**
+	** @see #putAll(Map)
+	*/
+	private void putAllMerge(SortedMap<K, V> t) {
+		MergeInput in = new MergeInput(t.entrySet().iterator());
+		// to restructure the tree, build it again from an empty leaf
+		MergeRun run = mergeNode((t == this)? newNode(true): root, in);
+		assert(in.next == null);
+		while (run.nodes.size() > 1) {
+			run = packNodes(run.keys, run.vals, run.nodes, null, null);
+		}
+		root = run.nodes.get(0);
+		if (t != this) { addSize(in.added); }
+		++structModCount;
+	}
+
+	/**
+	** The input to the bulk-merge algorithm. This is an iterator over a
+	** sorted map, which peeks one entry ahead.
+	*/
+	private class MergeInput {
+
+		final Iterator<Map.Entry<K, V>> it;
+		Map.Entry<K, V> next;
+		/** Number of keys taken that were not already in the tree. */
+		int added;
+
+		MergeInput(Iterator<Map.Entry<K, V>> it) {
+			this.it = it;
+			next = it.hasNext()? it.next(): null;
+		}
+
+		/**
+		** Whether the next entry is smaller than the given {@link Node#rkey
+		** rkey}.
+		*/
+		boolean hasBefore(K rkey) {
+			return next != null && compare2(next.getKey(), rkey) < 0;
+		}
+
+		/**
+		** Whether the next entry has the given key.
+		*/
+		boolean hasAt(K key) {
+			return next != null && compare(next.getKey(), key) == 0;
+		}
+
+		Map.Entry<K, V> take() {
+			Map.Entry<K, V> en = next;
+			next = it.hasNext()? it.next(): null;
+			assert(next == null || compare(en.getKey(), next.getKey()) < 0);
+			return en;
+		}
+
+	}
+
+	/**
+	** A run of adjacent nodes at the same level, along with the entries that
+	** separate them, as built by the bulk-merge algorithm. Together, these
+	** cover the same range of keys as the single node they replace.
+	*/
+	private class MergeRun {
+
+		final List<Node> nodes;
+		final List<K> keys;
+		final List<V> vals;
+
+		MergeRun(int k) {
+			nodes = new ArrayList<Node>(k);
+			keys = new ArrayList<K>(k-1);
+			vals = new ArrayList<V>(k-1);
+		}
+
+	}
+
+	/**
+	** Merges all the input entries that belong in the given node (ie. that
+	** are smaller than its {@link Node#rkey}) into a copy of its subtree.
+	**
+	** For a leaf, the input is merged with the entries of the leaf. For a
+	** non-leaf node, the input is recursively merged into each subnode that
+	** it belongs in, and the resulting runs are spliced together in place of
+	** the subnodes; subnodes that the input does not belong in are kept as
+	** they are. Input that matches a key of the node replaces its value.
+	**
+	** Either way, we end up with a sequence of entries (and subnodes), which
+	** is then packed into as few nodes as possible; see {@link
+	** #packNodes(List, List, List, Object, Object)}. Since entries are only
+	** ever added, each of these nodes has at least {@link #ENT_MIN} entries.
+	**
+	** The given node is not changed.
+	**
+	** @param node The node to merge the input into
+	** @param in The input
+	** @return The run of nodes that replaces the given node
+	*/
+	private MergeRun mergeNode(Node node, MergeInput in) {
+		int n = node.size() + 1;
+		List<K> keys = new ArrayList<K>(n);
+		List<V> vals = new ArrayList<V>(n);
+
+		if (node.isLeaf()) {
+			for (Map.Entry<K, V> en: node.entries.entrySet()) {
+				K key = en.getKey();
+				while (in.hasBefore(key)) { takeInput(in, keys, vals); }
+				keys.add(key);
+				vals.add(in.hasAt(key)? in.take().getValue(): en.getValue());
+			}
+			while (in.hasBefore(node.rkey)) { takeInput(in, keys, vals); }
+			return packNodes(keys, vals, null, node.lkey, node.rkey);
+		}
+
+		List<Node> nodes = new ArrayList<Node>(n);
+		for (int i=0; i<node.lnodes.size(); ++i) {
+			Node sub = node.lnodes.valueAt(i);
+			if (in.hasBefore(sub.rkey)) {
+				MergeRun run = mergeNode(sub, in);
+				nodes.addAll(run.nodes);
+				keys.addAll(run.keys);
+				vals.addAll(run.vals);
+			} else {
+				nodes.add(sub);
+			}
+			if (i == node.lnodes.size()-1) { break; }
+			K key = sub.rkey;
+			keys.add(key);
+			vals.add(in.hasAt(key)? in.take().getValue(): node.entries.get(key));
+		}
+		return packNodes(keys, vals, nodes, node.lkey, node.rkey);
+	}
+
+	/**
+	** Takes the next input entry, which is not already in the tree.
+	*/
+	private void takeInput(MergeInput in, List<K> keys, List<V> vals) {
+		Map.Entry<K, V> en = in.take();
+		keys.add(en.getKey());
+		vals.add(en.getValue());
+		++in.added;
+	}
+
+	/**
+	** Packs a sequence of entries (and subnodes, for a non-leaf level) into
+	** new nodes, with the entries divided between the nodes by {@link
+	** #packShares(List, List)}.
+	**
+	** @param keys The keys of the entries, in order
+	** @param vals The values of the entries
+	** @param subs The subnodes either side of the entries, or {@code null} to
+	**        make leaf nodes
+	** @param lkey The {@link Node#lkey} of the first node
+	** @param rkey The {@link Node#rkey} of the last node
+	** @return The new nodes, and the entries that separate them
+	*/
+	private MergeRun packNodes(List<K> keys, List<V> vals, List<Node> subs, K lkey, K rkey) {
+		int e = keys.size();
+		assert(subs == null || subs.size() == e+1);
+		int[] shares = packShares(keys, subs);
+		int k = shares.length;
+
+		MergeRun run = new MergeRun(k);
+		int j = 0;
+		K prevkey = lkey;
+		for (int i=0; i<k; ++i) {
+			Node node = newNode(subs == null);
+			node.lkey = prevkey;
+			assert(shares[i] >= ENT_MIN || k == 1);
+			for (int c=shares[i]; c>0; --c, ++j) {
+				if (subs != null) { attachNode(node, subs.get(j)); }
+				node.entries.put(keys.get(j), vals.get(j));
+			}
+			if (subs != null) { attachNode(node, subs.get(j)); }
+			if (i < k-1) {
+				run.keys.add(prevkey = node.rkey = keys.get(j));
+				run.vals.add(vals.get(j));
+				++j;
+			} else {
+				node.rkey = rkey;
+			}
+			recount(node);
+			run.nodes.add(node);
+		}
+		assert(j == e);
+		return run;
+	}
+
+	/**
+	** Attaches a subnode to a node, using the subnode's {@link Node#lkey}
+	** and {@link Node#rkey}. This is used to attach the nodes which were kept
+	** as they are by the bulk-merge algorithm, to their new parents.
+	*/
+	protected void attachNode(Node node, Node sub) {
+		node.rnodes.put(sub.lkey, sub);
+		node.lnodes.put(sub.rkey, sub);
+	}
+
+	/**
+	** Restructures the tree, distributing the entries evenly between the leaf
+	** nodes. This method merely calls {@link #putAll(Map)} with {@code this}.
+	*/
+	public void restructure() {
+		putAll(this);
+	}
+
+	// TODO maybe make this a WeakReference?
+	private Set<Map.Entry<K, V>> entrySet = null;
+	@Override public Set<Map.Entry<K, V>> entrySet() {
+		if (entrySet == null) {
+			entrySet = new AbstractSet<Map.Entry<K, V>>() {
+
+				@Override public int size() { return BTreeMap.this.size(); }
+
+				@Override public Iterator<Map.Entry<K, V>> iterator() {
+					return new EntryIterator(null, true, null, true);
+				}
+
+				@Override public void clear() {
+					BTreeMap.this.clear();
+				}
+
+				@Override public boolean contains(Object o) {
+					if (!(o instanceof Map.Entry)) { return false; }
+					Map.Entry e = (Map.Entry)o;
+					Object value = BTreeMap.this.get(e.getKey());
+					return value != null && value.equals(e.getValue());
+				}
+
+				@Override public boolean remove(Object o) {
+					if (contains(o)) {
+						Map.Entry e = (Map.Entry)o;
+						BTreeMap.this.remove(e.getKey());
+						return true;
+					}
+					return false;
+				}
+
+			};
+		}
+		return entrySet;
+	}
+
+	/* provided by AbstractMap
+	@Override public Set<K> keySet() {
+		throw new UnsupportedOperationException("not implemented");
+	}*/
+
+	/* provided by AbstractMap
+	@Override public Collection<V> values() {
+		throw new UnsupportedOperationException("not implemented");
+	}*/
+
+	/*========================================================================
+	  public interface SortedMap
+	 ========================================================================*/
+
+	@Override public Comparator<? super K> comparator() {
+		return comparator;
+	}
+
+	@Override public K firstKey() {
+		Node node = root;
+		for (;;) {
+			K fkey = node.entries.firstKey();
+			if (node.isLeaf()) { return fkey; }
+			node = node.lnodes.get(fkey);
+		}
+	}
+
+	@Override public K lastKey() {
+		Node node = root;
+		for (;;) {
+			K lkey = node.entries.lastKey();
+			if (node.isLeaf()) { return lkey; }
+			node = node.rnodes.get(lkey);
+		}
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation returns a view that only visits the nodes covering
+	** the range. For a {@link SkeletonBTreeMap}, the view will only throw
+	** {@link DataNotLoadedException} for the nodes that intersect the range.
+	*/
+	@Override public SortedMap<K, V> headMap(K rkey) {
+		return new SubMap(null, true, rkey, false);
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation returns a view that only visits the nodes covering
+	** the range. For a {@link SkeletonBTreeMap}, the view will only throw
+	** {@link DataNotLoadedException} for the nodes that intersect the range.
+	*/
+	@Override public SortedMap<K, V> tailMap(K lkey) {
+		return new SubMap(lkey, true, null, true);
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation returns a view that only visits the nodes covering
+	** the range. For a {@link SkeletonBTreeMap}, the view will only throw
+	** {@link DataNotLoadedException} for the nodes that intersect the range.
+	*/
+	@Override public SortedMap<K, V> subMap(K lkey, K rkey) {
+		if (compare(lkey, rkey) > 0) {
+			throw new IllegalArgumentException("fromKey > toKey");
+		}
+		return new SubMap(lkey, true, rkey, false);
+	}
+
+	/*========================================================================
+	  public interface NavigableMap
+	 ========================================================================*/
+
+	/*
+	** Each of the nearest-key lookups takes a single descent of the tree. The
+	** poll methods take one more, to remove the entry.
+	*/
+
+	@Override public Map.Entry<K, V> firstEntry() {
+		return exportEntry(ceilingEntryOf(null, true));
+	}
+
+	@Override public Map.Entry<K, V> lastEntry() {
+		return exportEntry(floorEntryOf(null, true));
+	}
+
+	@Override public Map.Entry<K, V> pollFirstEntry() {
+		return pollEntry(ceilingEntryOf(null, true));
+	}
+
+	@Override public Map.Entry<K, V> pollLastEntry() {
+		return pollEntry(floorEntryOf(null, true));
+	}
+
+	@Override public Map.Entry<K, V> ceilingEntry(K key) {
+		return exportEntry(ceilingEntryOf(key, true));
+	}
+
+	@Override public K ceilingKey(K key) {
+		BTreeEntry en = ceilingEntryOf(key, true);
+		return (en == null)? null: en.key;
+	}
+
+	@Override public Map.Entry<K, V> higherEntry(K key) {
+		return exportEntry(ceilingEntryOf(key, false));
+	}
+
+	@Override public K higherKey(K key) {
+		BTreeEntry en = ceilingEntryOf(key, false);
+		return (en == null)? null: en.key;
+	}
+
+	@Override public Map.Entry<K, V> floorEntry(K key) {
+		return exportEntry(floorEntryOf(key, true));
+	}
+
+	@Override public K floorKey(K key) {
+		BTreeEntry en = floorEntryOf(key, true);
+		return (en == null)? null: en.key;
+	}
+
+	@Override public Map.Entry<K, V> lowerEntry(K key) {
+		return exportEntry(floorEntryOf(key, false));
+	}
+
+	@Override public K lowerKey(K key) {
+		BTreeEntry en = floorEntryOf(key, false);
+		return (en == null)? null: en.key;
+	}
+
+	@Override public NavigableMap<K, V> descendingMap() {
+		return new SubMap(null, true, null, true, true);
+	}
+
+	@Override public NavigableSet<K> navigableKeySet() {
+		return new KeySet<K>(this);
+	}
+
+	@Override public NavigableSet<K> descendingKeySet() {
+		return descendingMap().navigableKeySet();
+	}
+
+	@Override public NavigableMap<K, V> headMap(K rkey, boolean inclusive) {
+		return new SubMap(null, true, rkey, inclusive);
+	}
+
+	@Override public NavigableMap<K, V> tailMap(K lkey, boolean inclusive) {
+		return new SubMap(lkey, inclusive, null, true);
+	}
+
+	@Override public NavigableMap<K, V> subMap(K lkey, boolean linc, K rkey, boolean rinc) {
+		if (compare(lkey, rkey) > 0) {
+			throw new IllegalArgumentException("fromKey > toKey");
+		}
+		return new SubMap(lkey, linc, rkey, rinc);
+	}
+
+	/*========================================================================
+	  range lookups
+	 ========================================================================*/
+
+	/**
+	** Returns the smallest key in a leaf node that is greater than (or equal
+	** to, if {@code inclusive}) the given key, or {@code null} if there is no
+	** such key. A {@code null} input key selects the first key of the leaf.
+	*/
+	protected K leafCeilingKey(Node leaf, K key, boolean inclusive) {
+		SortedArrayMap<K, V> map = leaf.entries;
+		if (map.isEmpty()) { return null; }
+		if (key == null) { return map.firstKey(); }
+
+		int i = map.search(key);
+		i = (i < 0)? -(i + 1): inclusive? i: i + 1;
+		return (i < map.size())? map.keyAt(i): null;
+	}
+
+	/**
+	** Returns the greatest key in a leaf node that is smaller than (or equal
+	** to, if {@code inclusive}) the given key, or {@code null} if there is no
+	** such key. A {@code null} input key selects the last key of the leaf.
+	*/
+	protected K leafFloorKey(Node leaf, K key, boolean inclusive) {
+		SortedArrayMap<K, V> map = leaf.entries;
+		if (map.isEmpty()) { return null; }
+		if (key == null) { return map.lastKey(); }
+
+		int i = map.search(key);
+		i = (i < 0)? -(i + 1) - 1: inclusive? i: i - 1;
+		return (i >= 0)? map.keyAt(i): null;
+	}
+
+	/**
+	** Descends the tree to find the entry with the smallest key greater than
+	** (or equal to, if {@code inclusive}) the given key. Only the nodes on the
+	** path to the key are visited.
+	**
+	** @param key The key to search for, or {@code null} for the first entry
+	** @return The entry, or {@code null} if there is no such entry
+	*/
+	protected BTreeEntry ceilingEntryOf(K key, boolean inclusive) {
+		Node node = root, cnode = null;
+		K ckey = null;
+
+		for (;;) {
+			if (node.isLeaf()) {
+				K k = leafCeilingKey(node, key, inclusive);
+				// if not in the leaf, then it's the nearest separator on the way down
+				return (k != null)? new BTreeEntry(node, k):
+				       (cnode != null)? new BTreeEntry(cnode, ckey): null;
+			}
+
+			int i = (key == null)? 0: node.lnodes.ceilingIndex(key);
+			if (key != null && i < node.size() && compare(node.lnodes.keyAt(i), key) == 0) {
+				if (inclusive) { return new BTreeEntry(node, key); }
+				++i;
+			}
+			if (i < node.size()) {
+				cnode = node;
+				ckey = node.lnodes.keyAt(i);
+			}
+			node = node.lnodes.valueAt(i);
+		}
+	}
+
+	/**
+	** Descends the tree to find the entry with the greatest key smaller than
+	** (or equal to, if {@code inclusive}) the given key. Only the nodes on the
+	** path to the key are visited.
+	**
+	** @param key The key to search for, or {@code null} for the last entry
+	** @return The entry, or {@code null} if there is no such entry
+	*/
+	protected BTreeEntry floorEntryOf(K key, boolean inclusive) {
+		Node node = root, cnode = null;
+		K ckey = null;
+
+		for (;;) {
+			if (node.isLeaf()) {
+				K k = leafFloorKey(node, key, inclusive);
+				// if not in the leaf, then it's the nearest separator on the way down
+				return (k != null)? new BTreeEntry(node, k):
+				       (cnode != null)? new BTreeEntry(cnode, ckey): null;
+			}
+
+			int i = (key == null)? node.size(): node.lnodes.ceilingIndex(key);
+			if (key != null && i < node.size() && compare(node.lnodes.keyAt(i), key) == 0) {
+				if (inclusive) { return new BTreeEntry(node, key); }
+			}
+			if (i > 0) {
+				cnode = node;
+				ckey = node.lnodes.keyAt(i-1);
+			}
+			node = node.lnodes.valueAt(i);
+		}
+	}
+
+	/************************************************************************
+	** A {@link Map.Entry} for a key located in a given node. The value is
+	** looked up lazily, so that key-only operations never need it to be
+	** loaded (eg. for a {@link SkeletonBTreeMap}).
+	*/
+	protected class BTreeEntry implements Map.Entry<K, V> {
+
+		final Node node;
+		final K key;
+		V value;
+		boolean got;
+
+		BTreeEntry(Node n, K k) {
+			node = n;
+			key = k;
+		}
+
+		BTreeEntry(Node n, K k, V v) {
+			this(n, k);
+			value = v;
+			got = true;
+		}
+
+		@Override public K getKey() {
+			return key;
+		}
+
+		@Override public V getValue() {
+			if (!got) {
+				// the key might have moved to another node since we found it
+				value = node.entries.containsKey(key)? node.entries.get(key): BTreeMap.this.get(key);
+				got = true;
+			}
+			return value;
+		}
+
+		@Override public V setValue(V v) {
+			V old = getValue();
+			// the key might have moved to another node since we found it, and
+			// the node might be shared with a snapshot
+			if (node.epoch == epoch && node.entries.containsKey(key)) {
+				node.modified();
+				node.entries.put(key, v);
+			} else {
+				BTreeMap.this.put(key, v);
+			}
+			value = v;
+			return old;
+		}
+
+		@Override public boolean equals(Object o) {
+			if (!(o instanceof Map.Entry)) { return false; }
+			Map.Entry e = (Map.Entry)o;
+			V v = getValue();
+			return (key == null? e.getKey() == null: key.equals(e.getKey()))
+			    && (v == null? e.getValue() == null: v.equals(e.getValue()));
+		}
+
+		@Override public int hashCode() {
+			V v = getValue();
+			return (key == null? 0: key.hashCode()) ^ (v == null? 0: v.hashCode());
+		}
+
+		@Override public String toString() {
+			return key + "=" + getValue();
+		}
+
+	}
+
+	/************************************************************************
+	** A position within a node, as kept by {@link EntryIterator}.
+	**
+	** For non-leaf nodes, {@link #index} is the entry to return next, and
+	** {@link #down} is whether the subnode between it and the previously
+	** returned entry still needs to be visited first. For leaf nodes, {@link
+	** #index} is the entry to return next.
+	*/
+	private class Frame {
+
+		final Node node;
+		final boolean leaf;
+		int index;
+		boolean down;
+
+		Frame(Node n, boolean l) {
+			node = n;
+			leaf = l;
+		}
+
+	}
+
+	/************************************************************************
+	** An in-order (or reverse-order) iterator over the entries between two
+	** (optional) bounds. It descends straight to the starting bound, and
+	** stops at the other bound, so it visits only the nodes that cover the
+	** range.
+	**
+	** For a {@link SkeletonBTreeMap}, {@link #hasNext()} and {@link #next()}
+	** may throw {@link DataNotLoadedException} when they reach a node that
+	** isn't loaded. The iterator is left unchanged when this happens, so the
+	** caller can inflate the node and try again. Values that aren't loaded
+	** are only looked up when {@link Map.Entry#getValue()} is called.
+	**
+	** The iterator is fail-fast: {@link #next()} and {@link #remove()} throw
+	** {@link ConcurrentModificationException} if a mapping was added to or
+	** removed from the map other than through the iterator. (In concurrent
+	** mode, the iterator is weakly consistent instead.)
+	*/
+	protected class EntryIterator implements Iterator<Map.Entry<K, V>> {
+
+		final K lo, hi;
+		final boolean loInclusive, hiInclusive;
+		final boolean descending;
+
+		final ArrayList<Frame> stack = new ArrayList<Frame>();
+
+		/**
+		** Key to start (or restart) the traversal from, or {@code null} to start
+		** from the first (or last, if {@link #descending}) entry.
+		*/
+		K seekKey;
+		boolean seekInclusive;
+
+		/**
+		** Whether the frames being pushed are on the path to {@link #seekKey}.
+		*/
+		boolean seeking = true;
+		boolean started = false;
+
+		BTreeEntry next = null;
+		K lastkey = null;
+
+		/**
+		** The leaf frame that {@link #next} (and {@link #lastframe}) came from,
+		** or {@code null} if it came from a non-leaf node.
+		*/
+		Frame nextframe = null;
+		Frame lastframe = null;
+
+		/**
+		** The {@link BTreeMap#modCount} that the iterator expects the map to
+		** have.
+		*/
+		int expectedModCount = modCount;
+
+		/**
+		** @param l Lower bound, or {@code null} for no lower bound
+		** @param li Whether the lower bound is inclusive
+		** @param h Upper bound, or {@code null} for no upper bound
+		** @param hi Whether the upper bound is inclusive
+		** @param desc Whether to iterate in reverse order
+		*/
+		EntryIterator(K l, boolean li, K h, boolean hi, boolean desc) {
+			lo = l;
+			loInclusive = li;
+			this.hi = h;
+			hiInclusive = hi;
+			descending = desc;
+			seekKey = desc? h: l;
+			seekInclusive = desc? hi: li;
+		}
+
+		EntryIterator(K l, boolean li, K h, boolean hi) {
+			this(l, li, h, hi, false);
+		}
+
+		/**
+		** Whether the key is past the bound that the iteration ends at.
+		*/
+		boolean beyond(K key) {
+			K bound = descending? lo: hi;
+			if (bound == null) { return false; }
+			int c = descending? compare(bound, key): compare(key, bound);
+			return c > 0 || c == 0 && !(descending? loInclusive: hiInclusive);
+		}
+
+		/**
+		** Pushes a frame for the given node, positioned at {@link #seekKey} if
+		** we are still on the path to it.
+		**
+		** @throws DataNotLoadedException if the node is not loaded
+		*/
+		private void push(Node node) {
+			Frame f = new Frame(node, node.isLeaf());
+			boolean seek = seeking && seekKey != null;
+
+			if (f.leaf) {
+				if (!seek) {
+					f.index = descending? node.entries.size() - 1: 0;
+				} else {
+					int i = node.entries.search(seekKey);
+					if (i < 0) {
+						f.index = descending? -(i + 1) - 1: -(i + 1);
+					} else {
+						f.index = seekInclusive? i: descending? i - 1: i + 1;
+					}
+				}
+
+			} else if (!seek) {
+				f.index = descending? node.size() - 1: 0;
+				f.down = true;
+
+			} else {
+				int i = node.lnodes.ceilingIndex(seekKey);
+				if (i < node.size() && compare(node.lnodes.keyAt(i), seekKey) == 0) {
+					// the key is in this node, so skip the subnode on the near side of it
+					f.index = seekInclusive? i: descending? i - 1: i + 1;
+					f.down = !seekInclusive;
+				} else {
+					// the key is in subnode i
+					f.index = descending? i - 1: i;
+					f.down = true;
+				}
+			}
+
+			stack.add(f);
+		}
+
+		private void pop() {
+			stack.remove(stack.size()-1);
+			seeking = false;
+		}
+
+		/**
+		** Having just entered the {@code j}th subnode of the given node, which
+		** is a leaf, passes the leaf after it to {@link BTreeMap#prefetch(Node,
+		** Node)}, if it is in the range. The parent keeps the links to all of
+		** its subnodes, so we don't need to keep sibling links in the leaves
+		** themselves, which would have to be copied along with every leaf for
+		** {@link BTreeMap#snapshot()}, and pushed along with every leaf for
+		** {@link BTreeMap#dirtyNodes()}.
+		**
+		** If the leaf is the last subnode of its parent, the next leaf is the
+		** first one under the next subnode of the nearest ancestor on the
+		** {@link #stack} that has one. We go down to it as far as the nodes
+		** are loaded, and pass on the first node that isn't, if any.
+		*/
+		private void prefetchNext(Node node, int j) {
+			int k = descending? j - 1: j + 1;
+			// the frame below the leaf's and its parent's
+			for (int d=stack.size()-3; k < 0 || k > node.size(); --d) {
+				if (d < 0) { return; }
+				Frame f = stack.get(d);
+				node = f.node;
+				j = descending? f.index + 1: f.index;
+				k = descending? j - 1: j + 1;
+			}
+			// the key that separates the two subtrees
+			if (beyond(node.lnodes.keyAt(descending? k: j))) { return; }
+			Node next = node.lnodes.valueAt(k);
+			while (next.entries != null && !next.isLeaf()) {
+				node = next;
+				next = node.lnodes.valueAt(descending? node.size(): 0);
+			}
+			prefetch(node, next);
+		}
+
+		private void finish() {
+			stack.clear();
+			started = true;
+		}
+
+		/**
+		** Finds the next entry in the range.
+		**
+		** @return The entry, or {@code null} if there are no more entries
+		*/
+		private BTreeEntry advance() {
+			int step = descending? -1: 1;
+			for (;;) {
+				if (stack.isEmpty()) {
+					if (started) { return null; }
+					push(root);
+					started = true;
+					continue;
+				}
+
+				Frame f = stack.get(stack.size()-1);
+				Node node = f.node;
+				BTreeEntry en;
+				nextframe = f.leaf? f: null;
+
+				if (f.leaf) {
+					SortedArrayMap<K, V> map = node.entries;
+					if (f.index < 0 || f.index >= map.size()) { pop(); continue; }
+					K key = map.keyAt(f.index);
+					if (beyond(key)) { finish(); return null; }
+					en = map.hasValueAt(f.index)? new BTreeEntry(node, key, map.valueAt(f.index)): new BTreeEntry(node, key);
+					f.index += step;
+
+				} else {
+					if (f.down) {
+						int j = descending? f.index + 1: f.index;
+						push(node.lnodes.valueAt(j));
+						f.down = false;
+						if (stack.get(stack.size()-1).leaf) { prefetchNext(node, j); }
+						continue;
+					}
+					if (f.index < 0 || f.index >= node.size()) { pop(); continue; }
+					K key = node.lnodes.keyAt(f.index);
+					if (beyond(key)) { finish(); return null; }
+					en = new BTreeEntry(node, key);
+					f.index += step;
+					f.down = true;
+				}
+
+				seeking = false;
+				return en;
+			}
+		}
+
+		@Override public boolean hasNext() {
+			if (next == null) { next = advance(); }
+			return next != null;
+		}
+
+		private void checkForComodification() {
+			if (!concurrent && modCount != expectedModCount) {
+				throw new ConcurrentModificationException();
+			}
+		}
+
+		@Override public Map.Entry<K, V> next() {
+			checkForComodification();
+			if (!hasNext()) { throw new NoSuchElementException(); }
+			BTreeEntry en = next;
+			next = null;
+			lastkey = en.key;
+			lastframe = nextframe;
+			return en;
+		}
+
+		/**
+		** {@inheritDoc}
+		**
+		** If removing the entry only took it out of its leaf, without changing
+		** the layout of the nodes (see {@link BTreeMap#structModCount}), then
+		** the iterator just shifts its position in the leaf to match. Otherwise,
+		** it finds its position again by descending from the root.
+		*/
+		@Override public void remove() {
+			if (lastkey == null) { throw new IllegalStateException(); }
+			checkForComodification();
+			int structs = structModCount;
+			BTreeMap.this.remove(lastkey);
+			expectedModCount = modCount;
+
+			if (!concurrent && structModCount == structs && lastframe != null) {
+				// the entries after the removed one have moved down by one. if the leaf
+				// isn't on the stack any more, then we've finished with it anyway
+				if (!descending
+				  && !stack.isEmpty() && stack.get(stack.size()-1) == lastframe) {
+					--lastframe.index;
+				}
+			} else {
+				// the tree may have been restructured, so find our position again
+				stack.clear();
+				started = false;
+				seeking = true;
+				seekKey = lastkey;
+				seekInclusive = false;
+				next = null;
+			}
+			lastkey = null;
+			lastframe = null;
+		}
+
+	}
+
+	/**
+	** Returns an immutable snapshot of the given entry, as required by the
+	** {@link NavigableMap} methods that return entries.
+	*/
+	protected Map.Entry<K, V> exportEntry(BTreeEntry en) {
+		return (en == null)? null: new AbstractMap.SimpleImmutableEntry<K, V>(en.key, en.getValue());
+	}
+
+	/**
+	** Removes the mapping for the key of the given entry, and returns an
+	** immutable snapshot of it.
+	*/
+	protected Map.Entry<K, V> pollEntry(BTreeEntry en) {
+		return (en == null)? null: new AbstractMap.SimpleImmutableEntry<K, V>(en.key, remove(en.key));
+	}
+
+	/************************************************************************
+	** A view of the entries between two (optional) bounds, possibly in
+	** reverse order. The bounds are always kept in the order of the backing
+	** map. Lookups are done on the backing map after checking the bounds;
+	** the nearest-key methods each take a single descent of the tree, and
+	** iteration visits only the nodes covering the range.
+	*/
+	protected class SubMap extends AbstractMap<K, V> implements NavigableMap<K, V> {
+
+		final K lo, hi;
+		final boolean loInclusive, hiInclusive;
+		final boolean descending;
+
+		/**
+		** @param l Lower bound, or {@code null} for no lower bound
+		** @param li Whether the lower bound is inclusive
+		** @param h Upper bound, or {@code null} for no upper bound
+		** @param hi Whether the upper bound is inclusive
+		** @param desc Whether this is a view in reverse order
+		*/
+		SubMap(K l, boolean li, K h, boolean hi, boolean desc) {
+			lo = l;
+			loInclusive = li;
+			this.hi = h;
+			hiInclusive = hi;
+			descending = desc;
+		}
+
+		SubMap(K l, boolean li, K h, boolean hi) {
+			this(l, li, h, hi, false);
+		}
+
+		boolean tooLow(K key) {
+			if (lo == null) { return false; }
+			int c = compare(key, lo);
+			return c < 0 || c == 0 && !loInclusive;
+		}
+
+		boolean tooHigh(K key) {
+			if (hi == null) { return false; }
+			int c = compare(key, hi);
+			return c > 0 || c == 0 && !hiInclusive;
+		}
+
+		boolean inRange(K key) {
+			return !tooLow(key) && !tooHigh(key);
+		}
+
+		/**
+		** Checks that a key is a valid bound for a view of this view.
+		*/
+		void checkBound(K key) {
+			if (lo != null && compare(key, lo) < 0 || hi != null && compare(key, hi) > 0) {
+				throw new IllegalArgumentException("key out of range");
+			}
+		}
+
+		/*
+		** Lookups in the order of the backing map.
+		*/
+
+		BTreeEntry absLowest() {
+			BTreeEntry en = ceilingEntryOf(lo, loInclusive);
+			return (en == null || tooHigh(en.key))? null: en;
+		}
+
+		BTreeEntry absHighest() {
+			BTreeEntry en = floorEntryOf(hi, hiInclusive);
+			return (en == null || tooLow(en.key))? null: en;
+		}
+
+		BTreeEntry absCeiling(K key, boolean inclusive) {
+			if (tooLow(key)) { return absLowest(); }
+			BTreeEntry en = ceilingEntryOf(key, inclusive);
+			return (en == null || tooHigh(en.key))? null: en;
+		}
+
+		BTreeEntry absFloor(K key, boolean inclusive) {
+			if (tooHigh(key)) { return absHighest(); }
+			BTreeEntry en = floorEntryOf(key, inclusive);
+			return (en == null || tooLow(en.key))? null: en;
+		}
+
+		BTreeEntry first() { return descending? absHighest(): absLowest(); }
+
+		BTreeEntry last() { return descending? absLowest(): absHighest(); }
+
+		BTreeEntry ceiling(K key) { return descending? absFloor(key, true): absCeiling(key, true); }
+
+		BTreeEntry higher(K key) { return descending? absFloor(key, false): absCeiling(key, false); }
+
+		BTreeEntry floor(K key) { return descending? absCeiling(key, true): absFloor(key, true); }
+
+		BTreeEntry lower(K key) { return descending? absCeiling(key, false): absFloor(key, false); }
+
+		K keyOrNull(BTreeEntry en) { return (en == null)? null: en.key; }
+
+		K keyOrThrow(BTreeEntry en) {
+			if (en == null) { throw new NoSuchElementException(); }
+			return en.key;
+		}
+
+		/*========================================================================
+		  public interface Map
+		 ========================================================================*/
+
+		@Override public boolean containsKey(Object k) {
+			K key = (K)k;
+			return inRange(key) && BTreeMap.this.containsKey(key);
+		}
+
+		@Override public V get(Object k) {
+			K key = (K)k;
+			return inRange(key)? BTreeMap.this.get(key): null;
+		}
+
+		@Override public V put(K key, V value) {
+			if (!inRange(key)) {
+				throw new IllegalArgumentException("key out of range");
+			}
+			return BTreeMap.this.put(key, value);
+		}
+
+		@Override public V remove(Object k) {
+			K key = (K)k;
+			return inRange(key)? BTreeMap.this.remove(key): null;
+		}
+
+		/**
+		** {@inheritDoc}
+		**
+		** This implementation takes the difference between the ranks of the
+		** bounds, which takes two descents of the tree; or, in concurrent mode,
+		** it iterates through the range.
+		*/
+		@Override public int size() {
+			if (counted) {
+				int h = (hi == null)? BTreeMap.this.size: rank(hi, hiInclusive);
+				int l = (lo == null)? 0: rank(lo, !loInclusive);
+				return Math.max(h - l, 0);
+			}
+			int n = 0;
+			for (Iterator<Map.Entry<K, V>> it = new EntryIterator(lo, loInclusive, hi, hiInclusive); it.hasNext(); it.next()) { ++n; }
+			return n;
+		}
+
+		@Override public boolean isEmpty() {
+			return absLowest() == null;
+		}
+
+		@Override public Set<K> keySet() {
+			return navigableKeySet();
+		}
+
+		private Set<Map.Entry<K, V>> entrySet = null;
+		@Override public Set<Map.Entry<K, V>> entrySet() {
+			if (entrySet == null) {
+				entrySet = new AbstractSet<Map.Entry<K, V>>() {
+
+					@Override public int size() { return SubMap.this.size(); }
+
+					@Override public boolean isEmpty() { return SubMap.this.isEmpty(); }
+
+					@Override public Iterator<Map.Entry<K, V>> iterator() {
+						return new EntryIterator(lo, loInclusive, hi, hiInclusive, descending);
+					}
+
+					@Override public boolean contains(Object o) {
+						if (!(o instanceof Map.Entry)) { return false; }
+						Map.Entry e = (Map.Entry)o;
+						K key = (K)e.getKey();
+						if (!inRange(key)) { return false; }
+						Object value = BTreeMap.this.get(key);
+						return value != null && value.equals(e.getValue());
+					}
+
+					@Override public boolean remove(Object o) {
+						if (contains(o)) {
+							BTreeMap.this.remove(((Map.Entry)o).getKey());
+							return true;
+						}
+						return false;
+					}
+
+				};
+			}
+			return entrySet;
+		}
+
+		/*========================================================================
+		  public interface SortedMap
+		 ========================================================================*/
+
+		@Override public Comparator<? super K> comparator() {
+			return descending? Collections.reverseOrder(comparator): comparator;
+		}
+
+		@Override public K firstKey() {
+			return keyOrThrow(first());
+		}
+
+		@Override public K lastKey() {
+			return keyOrThrow(last());
+		}
+
+		@Override public SortedMap<K, V> headMap(K rkey) {
+			return headMap(rkey, false);
+		}
+
+		@Override public SortedMap<K, V> tailMap(K lkey) {
+			return tailMap(lkey, true);
+		}
+
+		@Override public SortedMap<K, V> subMap(K lkey, K rkey) {
+			return subMap(lkey, true, rkey, false);
+		}
+
+		/*========================================================================
+		  public interface NavigableMap
+		 ========================================================================*/
+
+		@Override public Map.Entry<K, V> firstEntry() { return exportEntry(first()); }
+
+		@Override public Map.Entry<K, V> lastEntry() { return exportEntry(last()); }
+
+		@Override public Map.Entry<K, V> pollFirstEntry() { return pollEntry(first()); }
+
+		@Override public Map.Entry<K, V> pollLastEntry() { return pollEntry(last()); }
+
+		@Override public Map.Entry<K, V> ceilingEntry(K key) { return exportEntry(ceiling(key)); }
+
+		@Override public K ceilingKey(K key) { return keyOrNull(ceiling(key)); }
+
+		@Override public Map.Entry<K, V> higherEntry(K key) { return exportEntry(higher(key)); }
+
+		@Override public K higherKey(K key) { return keyOrNull(higher(key)); }
+
+		@Override public Map.Entry<K, V> floorEntry(K key) { return exportEntry(floor(key)); }
+
+		@Override public K floorKey(K key) { return keyOrNull(floor(key)); }
+
+		@Override public Map.Entry<K, V> lowerEntry(K key) { return exportEntry(lower(key)); }
+
+		@Override public K lowerKey(K key) { return keyOrNull(lower(key)); }
+
+		@Override public NavigableMap<K, V> descendingMap() {
+			return new SubMap(lo, loInclusive, hi, hiInclusive, !descending);
+		}
+
+		@Override public NavigableSet<K> navigableKeySet() {
+			return new KeySet<K>(this);
+		}
+
+		@Override public NavigableSet<K> descendingKeySet() {
+			return descendingMap().navigableKeySet();
+		}
+
+		@Override public NavigableMap<K, V> headMap(K rkey, boolean inclusive) {
+			checkBound(rkey);
+			return descending? new SubMap(rkey, inclusive, hi, hiInclusive, true):
+			                   new SubMap(lo, loInclusive, rkey, inclusive, false);
+		}
+
+		@Override public NavigableMap<K, V> tailMap(K lkey, boolean inclusive) {
+			checkBound(lkey);
+			return descending? new SubMap(lo, loInclusive, lkey, inclusive, true):
+			                   new SubMap(lkey, inclusive, hi, hiInclusive, false);
+		}
+
+		@Override public NavigableMap<K, V> subMap(K lkey, boolean linc, K rkey, boolean rinc) {
+			checkBound(lkey);
+			checkBound(rkey);
+			if (descending? compare(lkey, rkey) < 0: compare(lkey, rkey) > 0) {
+				throw new IllegalArgumentException("fromKey > toKey");
+			}
+			return descending? new SubMap(rkey, rinc, lkey, linc, true):
+			                   new SubMap(lkey, linc, rkey, rinc, false);
+		}
+
+	}
+
+	/************************************************************************
+	** A {@link NavigableSet} view of the keys of a {@link NavigableMap}. All
+	** operations are passed through to the map.
+	*/
+	protected static class KeySet<K> extends AbstractSet<K> implements NavigableSet<K> {
+
+		final protected NavigableMap<K, ?> map;
+
+		public KeySet(NavigableMap<K, ?> m) {
+			map = m;
+		}
+
+		@Override public int size() { return map.size(); }
+
+		@Override public boolean isEmpty() { return map.isEmpty(); }
+
+		@Override public boolean contains(Object o) { return map.containsKey(o); }
+
+		@Override public boolean remove(Object o) {
+			if (!map.containsKey(o)) { return false; }
+			map.remove(o);
+			return true;
+		}
+
+		@Override public void clear() { map.clear(); }
+
+		@Override public Iterator<K> iterator() {
+			final Iterator<? extends Map.Entry<K, ?>> it = map.entrySet().iterator();
+			return new Iterator<K>() {
+				@Override public boolean hasNext() { return it.hasNext(); }
+				@Override public K next() { return it.next().getKey(); }
+				@Override public void remove() { it.remove(); }
+			};
+		}
+
+		@Override public Iterator<K> descendingIterator() { return descendingSet().iterator(); }
+
+		@Override public Comparator<? super K> comparator() { return map.comparator(); }
+
+		@Override public K first() { return map.firstKey(); }
+
+		@Override public K last() { return map.lastKey(); }
+
+		@Override public K lower(K key) { return map.lowerKey(key); }
+
+		@Override public K floor(K key) { return map.floorKey(key); }
+
+		@Override public K ceiling(K key) { return map.ceilingKey(key); }
+
+		@Override public K higher(K key) { return map.higherKey(key); }
+
+		@Override public K pollFirst() {
+			Map.Entry<K, ?> en = map.pollFirstEntry();
+			return (en == null)? null: en.getKey();
+		}
+
+		@Override public K pollLast() {
+			Map.Entry<K, ?> en = map.pollLastEntry();
+			return (en == null)? null: en.getKey();
+		}
+
+		@Override public NavigableSet<K> descendingSet() {
+			return new KeySet<K>(map.descendingMap());
+		}
+
+		@Override public NavigableSet<K> subSet(K lkey, boolean linc, K rkey, boolean rinc) {
+			return new KeySet<K>(map.subMap(lkey, linc, rkey, rinc));
+		}
+
+		@Override public NavigableSet<K> headSet(K rkey, boolean inclusive) {
+			return new KeySet<K>(map.headMap(rkey, inclusive));
+		}
+
+		@Override public NavigableSet<K> tailSet(K lkey, boolean inclusive) {
+			return new KeySet<K>(map.tailMap(lkey, inclusive));
+		}
+
+		@Override public SortedSet<K> subSet(K lkey, K rkey) { return subSet(lkey, true, rkey, false); }
+
+		@Override public SortedSet<K> headSet(K rkey) { return headSet(rkey, false); }
+
+		@Override public SortedSet<K> tailSet(K lkey) { return tailSet(lkey, true); }
+
 	}
 
 }
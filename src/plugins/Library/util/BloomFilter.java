@@ -0,0 +1,149 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util;
+
+/**
+** A Bloom filter over the {@link Object#hashCode() hash codes} of a set of
+** objects. http://en.wikipedia.org/wiki/Bloom_filter
+**
+** Each object sets (and is tested against) {@code k} bits out of {@code m},
+** which are picked from its hash code by double hashing. The filter may say
+** that it has an object which was never put into it, but never the other
+** way round. The false positive rate is lowest when about half of the bits
+** are set, at which point it is about {@code 0.5^k}.
+**
+** The filter can be written out as a byte array (see {@link #toBytes()}) to
+** be read back later, so the hash codes of the objects must be the same from
+** one run to the next, as they are for {@link String}s. Filters of the same
+** size can be merged (see {@link #putAll(BloomFilter)}), to get a filter of
+** the union of their sets.
+**
+** This implementation is NOT thread-safe.
+**
+** @author infinity0
+*/
+public class BloomFilter {
+
+	/**
+	** The bits of the filter, eight to a byte, lowest first.
+	*/
+	final protected byte[] bits;
+
+	/**
+	** The number of bits that each object sets.
+	*/
+	final protected int k;
+
+	/**
+	** Creates a new empty filter.
+	**
+	** @param m The number of bits in the filter; this is rounded up to a
+	**        whole number of bytes
+	** @param k The number of bits that each object sets
+	*/
+	public BloomFilter(int m, int k) {
+		if (m < 1 || k < 1 || k > 0xFF) {
+			throw new IllegalArgumentException("Bad Bloom filter parameters: m = " + m + ", k = " + k);
+		}
+		this.bits = new byte[(m+7)>>3];
+		this.k = k;
+	}
+
+	/**
+	** Creates a filter from the output of {@link #toBytes()}.
+	**
+	** @throws IllegalArgumentException if the data is malformed
+	*/
+	public BloomFilter(byte[] data) {
+		if (data.length < 2 || data[0] == 0) {
+			throw new IllegalArgumentException("Malformed Bloom filter data");
+		}
+		this.k = data[0] & 0xFF;
+		this.bits = new byte[data.length-1];
+		System.arraycopy(data, 1, bits, 0, bits.length);
+	}
+
+	/**
+	** Returns the filter as a byte array: {@link #k}, then the {@link #bits}.
+	*/
+	public byte[] toBytes() {
+		byte[] data = new byte[bits.length+1];
+		data[0] = (byte)k;
+		System.arraycopy(bits, 0, data, 1, bits.length);
+		return data;
+	}
+
+	/**
+	** Returns the number of bits in the filter.
+	*/
+	public int size() {
+		return bits.length<<3;
+	}
+
+	/**
+	** Returns the number of bits that each object sets.
+	*/
+	public int hashes() {
+		return k;
+	}
+
+	/**
+	** Returns the number of bits that are set.
+	*/
+	public int cardinality() {
+		int c = 0;
+		for (byte b: bits) { c += Integer.bitCount(b & 0xFF); }
+		return c;
+	}
+
+	public void put(Object o) {
+		int h1 = mix(o.hashCode()), h2 = mix(h1) | 1;
+		long m = size();
+		for (int i=0; i<k; ++i) {
+			int j = (int)(((h1 + (long)i*h2) & 0xFFFFFFFFL) % m);
+			bits[j>>3] |= 1<<(j&7);
+		}
+	}
+
+	/**
+	** Whether the filter might have the given object. If this returns
+	** {@code false}, the object was definitely never put into the filter.
+	*/
+	public boolean has(Object o) {
+		int h1 = mix(o.hashCode()), h2 = mix(h1) | 1;
+		long m = size();
+		for (int i=0; i<k; ++i) {
+			int j = (int)(((h1 + (long)i*h2) & 0xFFFFFFFFL) % m);
+			if ((bits[j>>3] & 1<<(j&7)) == 0) { return false; }
+		}
+		return true;
+	}
+
+	/**
+	** Puts all the objects of another filter into this one.
+	**
+	** @throws IllegalArgumentException if the filters are not the same size,
+	**         or don't use the same number of bits per object
+	*/
+	public void putAll(BloomFilter f) {
+		if (f.bits.length != bits.length || f.k != k) {
+			throw new IllegalArgumentException("Bloom filters do not match");
+		}
+		for (int i=0; i<bits.length; ++i) { bits[i] |= f.bits[i]; }
+	}
+
+	/**
+	** Spreads the bits of a hash code, so that hash codes which are close
+	** together (as those of short strings tend to be) pick different bits.
+	*/
+	protected static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+}
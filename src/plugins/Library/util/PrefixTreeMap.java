@@ -7,14 +7,15 @@ import plugins.Library.util.PrefixTree.PrefixKey;
 
 import java.util.TreeMap;
 import java.util.Map;
-//import java.util.SortedMap;
+import java.util.SortedMap;
 //import java.util.NavigableSet;
 //import java.util.NavigableMap;
 import java.util.Set;
 import java.util.Collection;
 
 /**
-** Implementation of {@link PrefixTree} backed by a {@link TreeMap}.
+** Implementation of {@link PrefixTree} backed by a {@link SortedMap}, which
+** is a {@link TreeMap} unless a subclass supplies its own.
 **
 ** TODO: make this implement SortedMap
 **
@@ -27,10 +28,10 @@ implements Map<K, V>/*, SortedMap<K,V>, NavigableMap<K,V>
 /*, Cloneable, Serializable*/ {
 
 	/**
-	** {@link TreeMap} holding the entries which don't need to be stored in
+	** {@link SortedMap} holding the entries which don't need to be stored in
 	** their own tree yet.
 	*/
-	final protected TreeMap<K, V> tmap;
+	final protected SortedMap<K, V> tmap;
 
 	/**
 	** The constructor points this to {@link PrefixTree#child}, so we don't
@@ -38,7 +39,7 @@ implements Map<K, V>/*, SortedMap<K,V>, NavigableMap<K,V>
 	*/
 	final protected PrefixTreeMap<K, V>[] child;
 
-	protected PrefixTreeMap(K p, int len, int caplocal, TreeMap<K, V> tm, PrefixTreeMap<K, V>[] chd) {
+	protected PrefixTreeMap(K p, int len, int caplocal, SortedMap<K, V> tm, PrefixTreeMap<K, V>[] chd) {
 		super(p, len, caplocal, chd);
 		if (tm != null && tm.size() + subtrees > caplocal) {
 			throw new IllegalArgumentException("The TreeMap being attached is too big (> " + (caplocal-subtrees) + ")");
@@ -80,7 +81,7 @@ implements Map<K, V>/*, SortedMap<K,V>, NavigableMap<K,V>
 		return (child[i] == null)? tmap: child[i];
 	}
 
-	@Override protected TreeMap<K, V> getLocalMap() {
+	@Override protected SortedMap<K, V> getLocalMap() {
 		return tmap;
 	}
 
@@ -5,18 +5,34 @@ package plugins.Library.util;
 
 import plugins.Library.serial.Serialiser.*;
 import plugins.Library.serial.Archiver;
+import plugins.Library.serial.IterableSerialiser;
 import plugins.Library.serial.MapSerialiser;
 import plugins.Library.serial.Translator;
 import plugins.Library.serial.DataFormatException;
 import plugins.Library.serial.TaskAbortException;
 import plugins.Library.serial.TaskCompleteException;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.TreeMap;
+import java.util.SortedSet;
+import java.util.SortedMap;
+import java.util.IdentityHashMap;
 import java.util.Map;
 import java.util.List;
 import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
 ** Skeleton of a BTreeMap. DOCUMENT
@@ -28,6 +44,127 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 	protected Archiver<SkeletonNode> nsrl;
 	protected MapSerialiser<K, V> vsrl;
 
+	/**
+	** Runs the pulls for {@link #prefetch(Node, Node)}, or {@code null} to
+	** not prefetch anything.
+	*/
+	protected Executor prefetcher;
+
+	/**
+	** Runs the deflates of the values of many nodes at once, or {@code null}
+	** to deflate them in turn. See {@link #setDeflater(Executor)}.
+	*/
+	protected Executor deflater;
+
+	/**
+	** Runs the lookups for {@link #getAsync(Object)}, or {@code null} to run
+	** them in the calling thread. See {@link #setResolver(Executor)}.
+	*/
+	protected Executor resolver;
+
+	/**
+	** The most nodes inflated from {@link GhostNode}s to keep loaded, or
+	** {@code 0} for no limit. See {@link #setCacheSize(int)}.
+	*/
+	protected int cacheSize;
+
+	/**
+	** The nodes that have been inflated from {@link GhostNode}s whilst {@link
+	** #cacheSize} was set, in the order that {@link #evict()} goes through
+	** them. Nodes that have since left the tree are dropped when it reaches
+	** them.
+	*/
+	final protected LinkedList<SkeletonNode> clock = new LinkedList<SkeletonNode>();
+
+	/**
+	** The number of levels at the top of the tree that {@link #evict()}
+	** leaves alone. See {@link #pinLevels(int)}.
+	*/
+	protected int pinnedLevels;
+
+	/**
+	** The keys whose paths from the root {@link #evict()} leaves alone. See
+	** {@link #pin(Object)}.
+	*/
+	final protected TreeSet<K> pinned = new TreeSet<K>(comparator);
+
+	/**
+	** The inflated nodes that {@link #evict()} found to be pinned, and took
+	** out of the {@link #clock}. They are put back when something is
+	** unpinned.
+	*/
+	final protected List<SkeletonNode> held = new ArrayList<SkeletonNode>();
+
+	/**
+	** Nodes that have been (or are being) pulled ahead of time, by the ghosts
+	** that they are to replace, oldest first. {@link
+	** SkeletonNode#inflate(Object)} takes them from here rather than pulling
+	** them again. There are at most {@link #prefetchLimit()} of them, and
+	** they count towards {@link #cacheSize}. Access to this is synchronized
+	** on it.
+	*/
+	final protected LinkedHashMap<GhostNode, Future<PullTask<SkeletonNode>>> prefetched = new LinkedHashMap<GhostNode, Future<PullTask<SkeletonNode>>>();
+
+	/**
+	** The most nodes to keep in {@link #prefetched} if there is no {@link
+	** #cacheSize}.
+	*/
+	final public static int PREFETCH_MAX = 64;
+
+	/**
+	** The number of siblings on each side of a {@link GhostNode} to prefetch,
+	** when a lookup has to pull it. See {@link #setSiblingPrefetch(int)}.
+	*/
+	protected int siblings;
+
+	/**
+	** The number of nodes that have been prefetched; of those that were then
+	** used; and of the ghosts that a lookup has had to pull because they had
+	** not been. See {@link #getPrefetchCount()}.
+	*/
+	final protected AtomicInteger prefetches = new AtomicInteger(),
+	  prefetchHits = new AtomicInteger(), prefetchMisses = new AtomicInteger();
+
+	/**
+	** Estimates the serialised size of nodes, or {@code null} to bound the
+	** size of nodes only by their number of entries.
+	*/
+	protected SizeEstimator<? super K> estimator;
+
+	/**
+	** The number of bits in, and the number of bits set by each key in, the
+	** filters of the keys of subtrees. See {@link #setKeyFilter(int, int)}.
+	*/
+	protected int filterBits, filterHashes;
+
+	/**
+	** The size, in bytes, that the serialised form of each node should fit
+	** into, when {@link #estimator} is set.
+	*/
+	protected int nodeBytes;
+
+	/**
+	** Estimates the size of the serialised form of a {@link SkeletonNode}, as
+	** pushed by the node serialiser. The values of the node are pushed
+	** separately by the value serialiser, so only their metadata goes into
+	** the node.
+	*/
+	public interface SizeEstimator<K> {
+
+		/**
+		** Returns the estimated size, in bytes, of an entry of a node; ie. of
+		** its key and the metadata of its value.
+		*/
+		public int entrySize(K key);
+
+		/**
+		** Returns the estimated size, in bytes, of the link to a subnode; ie.
+		** the metadata of its {@link GhostNode}.
+		*/
+		public int linkSize();
+
+	}
+
 	// TODO maybe make this write-once
 	public void setSerialiser(Archiver<SkeletonNode> n, MapSerialiser<K, V> v) {
 		nsrl = n;
@@ -39,6 +176,25 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 
 		int ghosts = 0;
 
+		/**
+		** The estimated serialised size of the node, and the {@link #modCount}
+		** and number of entries it was estimated at. See {@link
+		** #sizeInBytes(Node)}.
+		*/
+		int bytes = -1, bytesModCount, bytesSize;
+
+		/**
+		** Whether a lookup has ended at the node since {@link #evict()} last
+		** went past it.
+		*/
+		boolean used;
+
+		/**
+		** The metadata of the {@link GhostNode} that this node was inflated
+		** from, or {@code null} if it was made in memory.
+		*/
+		Object meta;
+
 		SkeletonNode(boolean leaf, SkeletonTreeMap<K, V> map) {
 			super(leaf, map);
 			setSerialiser();
@@ -48,6 +204,29 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 			this(leaf, new SkeletonTreeMap<K, V>(comparator));
 		}
 
+		/**
+		** Creates a copy of a node, for copy-on-write. The ghost subnodes are
+		** copied too, since they point back to their parent.
+		*/
+		SkeletonNode(SkeletonNode node) {
+			super(node, new SkeletonTreeMap<K, V>((SkeletonTreeMap<K, V>)node.entries));
+			ghosts = node.ghosts;
+			meta = node.meta;
+			((SkeletonTreeMap<K, V>)entries).setSerialiser(vsrl);
+			if (!isLeaf()) {
+				for (int i=0; i<lnodes.size(); ++i) {
+					Node n = lnodes.valueAt(i);
+					if (n.entries != null) { continue; }
+					GhostNode ghost = new GhostNode(this, n.lkey, n.rkey);
+					ghost.setMeta(((GhostNode)n).getMeta());
+					ghost.count = n.count;
+					ghost.filter = ((GhostNode)n).filter;
+					lnodes.setValueAt(i, ghost);
+					rnodes.put(ghost.lkey, ghost);
+				}
+			}
+		}
+
 		public void setSerialiser() {
 			((SkeletonTreeMap<K, V>)entries).setSerialiser(vsrl);
 			if (!isLeaf()) {
@@ -62,11 +241,39 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 		public GhostNode makeGhost(Object meta) {
 			GhostNode ghost = new GhostNode(lkey, rkey);
 			ghost.setMeta(meta);
+			ghost.count = count;
+			ghost.filter = makeFilter();
 			return ghost;
 		}
 
-		@Override public Object getMeta() { return null; }
-		@Override public void setMeta(Object m) { }
+		/**
+		** Makes a filter of the keys in the subtree under this node, from the
+		** keys of this node and the filters of its subnodes, which must all be
+		** {@link GhostNode}s.
+		**
+		** @return The filter, or {@code null} if filters are turned off, or a
+		**         subnode has no filter, or the filter would be too full to be
+		**         of much use
+		*/
+		protected BloomFilter makeFilter() {
+			if (filterBits == 0) { return null; }
+			BloomFilter filter = new BloomFilter(filterBits, filterHashes);
+			for (K key: entries.keySet()) { filter.put(key); }
+			if (!isLeaf()) {
+				for (Node n: lnodes.values()) {
+					BloomFilter sub = (n.entries == null)? ((GhostNode)n).filter: null;
+					if (sub == null || sub.size() != filter.size() || sub.hashes() != filter.hashes()) {
+						return null;
+					}
+					filter.putAll(sub);
+				}
+			}
+			// past half full, the false positive rate goes up quickly
+			return (filter.cardinality() > filter.size()>>1)? null: filter;
+		}
+
+		@Override public Object getMeta() { return meta; }
+		@Override public void setMeta(Object m) { meta = m; }
 
 		@Override public boolean isLive() {
 			if (ghosts > 0 || !((SkeletonTreeMap<K, V>)entries).isLive()) { return false; }
@@ -88,82 +295,348 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 			return ((SkeletonTreeMap<K, V>)entries).isBare();
 		}
 
-		// TODO make this parallel
+		/**
+		** {@inheritDoc}
+		**
+		** The subtree is deflated level by level, from the bottom up; see
+		** {@link #deflateLevel(List, boolean)}.
+		*/
 		@Override public void deflate() throws TaskAbortException {
-			if (!isLeaf()) {
-				for (K k: lnodes.keySet()) {
-					((SkeletonNode)lnodes.get(k)).deflate();
-					deflate(k);
-				}
-			}
+			deflateSubtree(false);
 			((SkeletonTreeMap<K, V>)entries).deflate();
 			assert(isBare());
 		}
 
-		@Override public void inflate() throws TaskAbortException {
-			((SkeletonTreeMap<K, V>)entries).inflate();
-			if (!isLeaf()) {
-				for (K k: lnodes.keySet()) {
-					inflate(k);
-					((SkeletonNode)lnodes.get(k)).inflate();
+		/**
+		** Deflates only the subnodes that have been changed since they were
+		** last committed (see {@link Node#isDirty()}), along with their
+		** loaded values. Subnodes that have not been changed are replaced by
+		** the {@link GhostNode}s they were inflated from, without pushing
+		** them. Pushing a subnode changes this node, since it now refers to
+		** the subnode by different metadata.
+		**
+		** The values of this node are deflated if it has been changed;
+		** otherwise they are left alone, since the node will be thrown away.
+		*/
+		public void deflateDirty() throws TaskAbortException {
+			deflateSubtree(true);
+			if (isDirty()) {
+				((SkeletonTreeMap<K, V>)entries).deflate();
+				assert(isBare());
+			}
+		}
+
+		/**
+		** Deflates all the loaded nodes under this node, a level at a time,
+		** starting from the bottom level.
+		**
+		** @param dirty Whether to only push nodes that have been changed
+		*/
+		private void deflateSubtree(boolean dirty) throws TaskAbortException {
+			// the loaded non-leaf nodes at each depth under this node
+			List<List<SkeletonNode>> levels = new ArrayList<List<SkeletonNode>>();
+			List<SkeletonNode> level = Collections.singletonList(this);
+			while (!level.isEmpty() && !level.get(0).isLeaf()) {
+				levels.add(level);
+				List<SkeletonNode> next = new ArrayList<SkeletonNode>();
+				for (SkeletonNode n: level) {
+					for (Node sub: n.lnodes.values()) {
+						if (sub.entries != null) { next.add((SkeletonNode)sub); }
+					}
 				}
+				level = next;
+			}
+			for (int i=levels.size()-1; i>=0; --i) {
+				deflateLevel(levels.get(i), dirty);
 			}
-			assert(isLive());
 		}
 
 		/**
-		** Expects metadata to be of type {@link GhostNode}.
+		** Deflates the loaded subnodes of a group of nodes. The subnodes of
+		** these must already be bare, apart from their values.
+		**
+		** This is done in two stages, each of which is a fork-join over all
+		** the subnodes. First, the values of the subnodes are deflated, in
+		** parallel through {@link #deflater} if it is set. Then, the subnodes
+		** themselves are pushed as a single batch (see {@link #pushAll(List)})
+		** and each is replaced by its ghost. So deflating a tree takes about
+		** as many round trips as the tree has levels, rather than one per
+		** node.
+		**
+		** If {@code dirty} is set, this is as for {@link #deflateDirty()}: only
+		** subnodes that have been changed are pushed (and only their values
+		** deflated); the others are {@link #discard(Object) discarded}.
 		*/
-		@Override public void deflate(K key) throws TaskAbortException {
-			if (isLeaf()) { return; }
-			Node node = lnodes.get(key);
-			if (node.entries == null) { return; } // ghost node
+		private void deflateLevel(List<SkeletonNode> parents, boolean dirty) throws TaskAbortException {
+			List<SkeletonNode> nodes = new ArrayList<SkeletonNode>();
+			List<SkeletonNode> owners = new ArrayList<SkeletonNode>();
+			for (SkeletonNode parent: parents) {
+				for (K k: parent.lnodes.keySet()) {
+					Node n = parent.lnodes.get(k);
+					if (n.entries == null) { continue; } // ghost node
+					SkeletonNode skel = (SkeletonNode)n;
+					if (dirty && !skel.isDirty()) {
+						parent.discard(k);
+						continue;
+					}
+					if (!skel.isLeaf() && skel.ghosts < skel.lnodes.size()) {
+						throw new IllegalStateException("Cannot deflate non-bare BTreeMap node");
+					}
+					nodes.add(skel);
+					owners.add(parent);
+				}
+			}
+			if (nodes.isEmpty()) { return; }
 
-			if (!((SkeletonNode)node).isBare()) {
-				throw new IllegalStateException("Cannot deflate non-bare BTreeMap node");
+			deflateValues(nodes);
+
+			List<PushTask<SkeletonNode>> tasks = new ArrayList<PushTask<SkeletonNode>>(nodes.size());
+			for (SkeletonNode n: nodes) {
+				tasks.add(new PushTask<SkeletonNode>(n));
+			}
+			// in concurrent mode, block writers but not readers
+			lockTree();
+			try {
+				pushAll(tasks);
+				for (int i=0; i<tasks.size(); ++i) {
+					// a task that was already being pushed elsewhere has no meta
+					if (tasks.get(i).meta == null) { continue; }
+					owners.get(i).attachGhost((GhostNode)tasks.get(i).meta);
+				}
+			} finally {
+				unlockTree();
 			}
+		}
 
-			PushTask<SkeletonNode> task = new PushTask<SkeletonNode>((SkeletonNode)node);
+		/**
+		** Replaces a subnode that has just been pushed with the {@link
+		** GhostNode} that the push returned. The subnode's metadata has
+		** changed, so this node has changed too.
+		*/
+		protected void attachGhost(GhostNode ghost) {
+			ghost.parent = this;
+			Node node;
+			latchW(this);
 			try {
-				nsrl.push(task);
+				node = lnodes.put(ghost.rkey, ghost);
+				rnodes.put(ghost.lkey, ghost);
+				++ghosts;
+				++structModCount;
+				modified();
+			} finally {
+				unlatchW(this);
+			}
+			// its subnodes go with it
+			dropPrefetched(node);
+		}
 
-				GhostNode ghost = (GhostNode)task.meta;// new GhostNode(this, node.lkey, node.rkey);
+		/**
+		** Replaces an unchanged subnode with the {@link GhostNode} it was
+		** inflated from.
+		*/
+		protected void discard(K key) {
+			lockTree();
+			try {
+				SkeletonNode node = (SkeletonNode)lnodes.get(key);
+				assert(!node.isDirty() && node.meta != null);
+				GhostNode ghost = node.makeGhost(node.meta);
 				ghost.parent = this;
 
-				lnodes.put(ghost.rkey, ghost);
-				rnodes.put(ghost.lkey, ghost);
-				++ghosts;
+				latchW(this);
+				try {
+					lnodes.put(ghost.rkey, ghost);
+					rnodes.put(ghost.lkey, ghost);
+					++ghosts;
+					++structModCount;
+				} finally {
+					unlatchW(this);
+				}
+				// its subnodes go with it
+				dropPrefetched(node);
+			} finally {
+				unlockTree();
+			}
+		}
 
-			// TODO maybe just ignore all non-error abortions
-			} catch (TaskCompleteException e) {
-				assert(node.entries == null);
-			} catch (RuntimeException e) {
-				throw new TaskAbortException("Could not deflate BTreeMap Node " + node.lkey + "-" + node.rkey, e);
+		/**
+		** {@inheritDoc}
+		**
+		** The subtree is inflated breadth-first, a level at a time. All the
+		** {@link GhostNode}s on a level are pulled as a single batch (see
+		** {@link #pullAll(List)}), and then the values of all the nodes on
+		** that level are pulled together (see {@link
+		** SkeletonTreeMap#inflateAll(Collection)}). So inflating a tree takes
+		** about as many round trips as the tree has levels, rather than one
+		** per node.
+		*/
+		@Override public void inflate() throws TaskAbortException {
+			List<SkeletonNode> level = Collections.singletonList(this);
+			inflateValues(level);
+			while (!level.get(0).isLeaf()) {
+				level = inflateLevel(level);
+				inflateValues(level);
 			}
+			assert(isLive());
 		}
 
-		@Override public void inflate(K key) throws TaskAbortException {
-			if (isLeaf()) { return; }
-			Node node = lnodes.get(key);
-			if (node.entries != null) { return; } // skeleton node
+		/**
+		** Inflates all the subnodes of a group of nodes.
+		**
+		** @return The subnodes, in order
+		*/
+		private List<SkeletonNode> inflateLevel(List<SkeletonNode> parents) throws TaskAbortException {
+			List<SkeletonNode> owners = new ArrayList<SkeletonNode>();
+			List<GhostNode> ghosts = new ArrayList<GhostNode>();
+			for (SkeletonNode parent: parents) {
+				for (Node n: parent.lnodes.values()) {
+					if (n.entries != null) { continue; } // skeleton node
+					owners.add(parent);
+					ghosts.add((GhostNode)n);
+				}
+			}
+			inflateGhosts(owners, ghosts);
+
+			List<SkeletonNode> nodes = new ArrayList<SkeletonNode>();
+			for (SkeletonNode parent: parents) {
+				for (Node n: parent.lnodes.values()) {
+					// a writer might have got in the way, in concurrent mode
+					if (n.entries != null) { nodes.add((SkeletonNode)n); }
+				}
+			}
+			return nodes;
+		}
+
+		/**
+		** Replaces a {@link GhostNode} subnode with the node that was pulled
+		** for it.
+		**
+		** @throws DataFormatException if the node does not match the ghost
+		*/
+		protected void attachPulled(GhostNode ghost, SkeletonNode node) {
+			assert(lnodes.get(ghost.rkey) == ghost);
+			if (compare2(ghost.lkey, node.lkey) != 0 || compare2(ghost.rkey, node.rkey) != 0) {
+				throw new DataFormatException("BTreeMap Node lkey/rkey does not match", node);
+			}
 
-			PullTask<SkeletonNode> task = new PullTask<SkeletonNode>(node);
+			// if this node is shared with a snapshot, then so is the subnode
+			node.epoch = epoch;
+			node.setMeta(ghost.getMeta());
+			node.markClean();
+			latchW(this);
 			try {
-				nsrl.pull(task);
+				lnodes.put(node.rkey, node);
+				rnodes.put(node.lkey, node);
+				--ghosts;
+				++structModCount;
+			} finally {
+				unlatchW(this);
+			}
+			// in case it was prefetched, but pulled some other way
+			dropPrefetched(ghost);
+			if (cacheSize > 0) {
+				node.used = true;
+				clock.addLast(node);
+			}
+		}
 
-				if (compare2(node.lkey, task.data.lkey) != 0 || compare2(node.rkey, task.data.rkey) != 0) {
-					throw new DataFormatException("BTreeMap Node lkey/rkey does not match", task.data);
+		/**
+		** Expects metadata to be of type {@link GhostNode}.
+		*/
+		@Override public void deflate(K key) throws TaskAbortException {
+			if (isLeaf()) { return; }
+			// in concurrent mode, block writers but not readers
+			lockTree();
+			try {
+				Node node = lnodes.get(key);
+				if (node.entries == null) { return; } // ghost node
+
+				if (!((SkeletonNode)node).isBare()) {
+					throw new IllegalStateException("Cannot deflate non-bare BTreeMap node");
 				}
 
-				lnodes.put(task.data.rkey, task.data);
-				rnodes.put(task.data.lkey, task.data);
-				--ghosts;
+				PushTask<SkeletonNode> task = new PushTask<SkeletonNode>((SkeletonNode)node);
+				try {
+					nsrl.push(task);
+					attachGhost((GhostNode)task.meta);
 
+				// TODO maybe just ignore all non-error abortions
+				} catch (TaskCompleteException e) {
+					assert(node.entries == null);
+				} catch (RuntimeException e) {
+					throw new TaskAbortException("Could not deflate BTreeMap Node " + node.lkey + "-" + node.rkey, e);
+				}
+			} finally {
+				unlockTree();
+			}
+		}
+
+		/**
+		** {@inheritDoc}
+		**
+		** In concurrent mode, the pull is done without blocking writers; they
+		** are only blocked whilst the pulled node is attached. If a writer
+		** moved the ghost in the meantime, or another thread attached it, the
+		** pulled node is dropped, and the caller should look for the subnode
+		** again.
+		*/
+		@Override public void inflate(K key) throws TaskAbortException {
+			pullSubnode(key);
+		}
+
+		/**
+		** Does the work of {@link #inflate(Object)}, and returns the subnode
+		** for the key: the one that was already loaded, or else the one that
+		** was pulled. This is returned even if {@link #evict()} has already
+		** discarded it again, since it still holds what the ghost pointed to.
+		** Returns {@code null} if this is a leaf, or if a writer got in the
+		** way; the caller should then look for the subnode again.
+		*/
+		protected SkeletonNode pullSubnode(K key) throws TaskAbortException {
+			if (isLeaf()) { return null; }
+			GhostNode ghost;
+			latchR(this);
+			try {
+				Node node = lnodes.get(key);
+				if (node.entries != null) { return (SkeletonNode)node; }
+				ghost = (GhostNode)node;
+			} finally {
+				unlatchR(this);
+			}
+
+			PullTask<SkeletonNode> task = takePrefetched(ghost);
+			try {
+				if (task == null) {
+					if (prefetcher != null) {
+						prefetchMisses.incrementAndGet();
+						// get these going before we wait for the pull
+						latchR(this);
+						try {
+							prefetchSiblings(this, ghost);
+						} finally {
+							unlatchR(this);
+						}
+					}
+					task = new PullTask<SkeletonNode>(ghost);
+					nsrl.pull(task);
+				}
 			} catch (TaskCompleteException e) {
-				assert(lnodes.get(key).entries != null);
+				return null;
+			} catch (RuntimeException e) {
+				throw new TaskAbortException("Could not inflate BTreeMap Node " + ghost.lkey + "-" + ghost.rkey, e);
+			}
+
+			// in concurrent mode, block writers but not readers
+			lockTree();
+			try {
+				if (retired || lnodes.get(key) != ghost) { return null; }
+				attachPulled(ghost, task.data);
 			} catch (RuntimeException e) {
-				throw new TaskAbortException("Could not inflate BTreeMap Node " + node.lkey + "-" + node.rkey, e);
+				throw new TaskAbortException("Could not inflate BTreeMap Node " + ghost.lkey + "-" + ghost.rkey, e);
+			} finally {
+				unlockTree();
 			}
+			evict();
+			return task.data;
 		}
 
 	}
@@ -173,11 +646,19 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 		SkeletonNode parent;
 		Object meta;
 
+		/**
+		** A filter of the keys in the subtree under this node, or {@code null}
+		** if there is none. See {@link #setKeyFilter(int, int)}.
+		*/
+		BloomFilter filter;
+
 		GhostNode(SkeletonNode p, K l, K r) {
 			super(false, null);
 			parent = p;
 			lkey = l;
 			rkey = r;
+			// not known until it is set from the metadata
+			count = -1;
 		}
 
 		GhostNode(K l, K r) {
@@ -192,6 +673,18 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 			meta = m;
 		}
 
+		/**
+		** Whether the subtree under this node might contain the given key.
+		** If this returns {@code false}, then it definitely does not.
+		**
+		** The filter goes by hash codes, so it is ignored if the map has a
+		** comparator, which might not agree with them; such a map could
+		** still have pulled filters that another map made.
+		*/
+		public boolean mayContain(Object key) {
+			return filter == null || comparator != null || filter.has(key);
+		}
+
 		@Override int size() {
 			throw new DataNotLoadedException("BTreeMap Node not loaded", parent, rkey, this);
 		}
@@ -222,6 +715,14 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 
 
 
+	public SkeletonBTreeMap(Comparator<? super K> cmp, int node_min, int node_max, boolean concurrent) {
+		super(cmp, node_min, node_max, concurrent);
+	}
+
+	public SkeletonBTreeMap(Comparator<? super K> cmp, int node_min, boolean concurrent) {
+		super(cmp, node_min, concurrent);
+	}
+
 	public SkeletonBTreeMap(Comparator<? super K> cmp, int node_min) {
 		super(cmp, node_min);
 	}
@@ -239,58 +740,1283 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 		return new SkeletonNode(leaf);
 	}
 
+	@Override protected Node copyNode(Node node) {
+		return new SkeletonNode((SkeletonNode)node);
+	}
 
+	/**
+	** Sets the executor to pull nodes ahead of time with, for scans. When a
+	** scan through the map starts on a leaf, the next leaf is pulled in the
+	** background, if it isn't loaded, whilst the scan goes through the
+	** current one. The scan still throws {@link DataNotLoadedException} when
+	** it reaches the next leaf; {@link #inflate(Object)} then uses the data
+	** already pulled, rather than pulling it again.
+	**
+	** @param e The executor, or {@code null} to turn this off
+	*/
+	public void setPrefetcher(Executor e) {
+		prefetcher = e;
+		if (e == null) { dropPrefetched(); }
+	}
 
-
-	@Override public Object getMeta() { return null; }
-	@Override public void setMeta(Object m) { }
-
-	@Override public boolean isLive() {
-		return ((SkeletonNode)root).isLive();
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation pulls the node in the background through {@link
+	** #prefetcher}, if it is a {@link GhostNode}. Only the pull is done in the
+	** background; the node is linked into the tree when it is inflated.
+	*/
+	@Override protected void prefetch(Node parent, Node node) {
+		Executor e = prefetcher;
+		if (e == null || node.entries != null) { return; }
+		GhostNode ghost = (GhostNode)node;
+
+		final PullTask<SkeletonNode> task = new PullTask<SkeletonNode>(ghost);
+		FutureTask<PullTask<SkeletonNode>> future = new FutureTask<PullTask<SkeletonNode>>(new Callable<PullTask<SkeletonNode>>() {
+			public PullTask<SkeletonNode> call() throws TaskAbortException {
+				nsrl.pull(task);
+				return task;
+			}
+		});
+		Future<PullTask<SkeletonNode>> oldest = null;
+		synchronized (prefetched) {
+			if (prefetched.containsKey(ghost)) { return; }
+			if (prefetched.size() >= prefetchLimit()) {
+				// make room by dropping the oldest, which the scan that it was
+				// pulled for has most likely given up on
+				Iterator<Future<PullTask<SkeletonNode>>> it = prefetched.values().iterator();
+				oldest = it.next();
+				it.remove();
+			}
+			prefetched.put(ghost, future);
+		}
+		if (oldest != null) { oldest.cancel(false); }
+		prefetches.incrementAndGet();
+		e.execute(future);
 	}
 
-	@Override public boolean isBare() {
-		return ((SkeletonNode)root).isBare();
+	/**
+	** Returns the most nodes to keep in {@link #prefetched}: a quarter of
+	** {@link #cacheSize}, so that they can't crowd out the nodes that are
+	** loaded, or {@link #PREFETCH_MAX} if there is no limit.
+	*/
+	protected int prefetchLimit() {
+		return (cacheSize == 0)? PREFETCH_MAX: Math.max(1, cacheSize/4);
 	}
 
-	@Override public void deflate() throws TaskAbortException {
-		((SkeletonNode)root).deflate();
+	/**
+	** Returns the number of nodes in {@link #prefetched}.
+	*/
+	protected int prefetchedSize() {
+		synchronized (prefetched) {
+			return prefetched.size();
+		}
 	}
 
-	@Override public void inflate() throws TaskAbortException {
-		((SkeletonNode)root).inflate();
+	/**
+	** Cancels and forgets what was {@link #prefetch(Node, Node) prefetched}
+	** for a ghost that is leaving the tree, or for the ghosts under a loaded
+	** node that is leaving it. A pull that has already started is left to
+	** finish, since the serialiser might not expect to be interrupted; its
+	** result is thrown away.
+	*/
+	protected void dropPrefetched(Node node) {
+		List<Future<PullTask<SkeletonNode>>> futures = new ArrayList<Future<PullTask<SkeletonNode>>>();
+		synchronized (prefetched) {
+			if (prefetched.isEmpty()) { return; }
+			if (node.entries == null) {
+				futures.add(prefetched.remove(node));
+			} else if (!node.isLeaf()) {
+				for (Node n: node.lnodes.values()) {
+					if (n.entries == null) { futures.add(prefetched.remove(n)); }
+				}
+			}
+		}
+		for (Future<PullTask<SkeletonNode>> f: futures) {
+			if (f != null) { f.cancel(false); }
+		}
 	}
 
-	@Override public void deflate(K key) throws TaskAbortException {
-		// TODO
+	/**
+	** Cancels and forgets everything that was {@link #prefetch(Node, Node)
+	** prefetched}.
+	*/
+	protected void dropPrefetched() {
+		List<Future<PullTask<SkeletonNode>>> futures;
+		synchronized (prefetched) {
+			futures = new ArrayList<Future<PullTask<SkeletonNode>>>(prefetched.values());
+			prefetched.clear();
+		}
+		for (Future<PullTask<SkeletonNode>> f: futures) { f.cancel(false); }
 	}
 
-	@Override public void inflate(K key) throws TaskAbortException {
-		try {
-			get(key);
-		} catch (DataNotLoadedException e) {
-			e.getParent().deflate(e.getKey());
+	/**
+	** Sets how many siblings of a {@link GhostNode} to {@link #prefetch(Node,
+	** Node) prefetch}, on each side, when a lookup has to pull it because it
+	** was not prefetched. Lookups for keys that are near each other, such as
+	** related terms or the terms with a given prefix, then tend to find the
+	** nodes that they need already pulled, or on the way. This only has an
+	** effect if {@link #prefetcher} is set; the prefetches can be made less
+	** urgent than other work by giving that executor low-priority threads.
+	**
+	** Use {@link #getPrefetchCount()}, {@link #getPrefetchHits()} and {@link
+	** #getPrefetchMisses()} to see whether this is worth it.
+	**
+	** @param n The number of siblings on each side, or {@code 0} to not
+	**        prefetch siblings
+	*/
+	public void setSiblingPrefetch(int n) {
+		if (n < 0) {
+			throw new IllegalArgumentException("Number of siblings must be non-negative");
 		}
+		siblings = n;
 	}
 
+	/**
+	** Prefetches the {@link GhostNode} siblings of a node, up to {@link
+	** #siblings} on each side of it.
+	*/
+	protected void prefetchSiblings(SkeletonNode parent, Node node) {
+		Node l = node, r = node;
+		for (int i=0; i<siblings; ++i) {
+			if (l != null && (l = parent.nodeL(l)) != null) { prefetch(parent, l); }
+			if (r != null && (r = parent.nodeR(r)) != null) { prefetch(parent, r); }
+		}
+	}
 
 	/**
-	** This is necessary because Node is a non-static class.
+	** Returns the number of nodes that have been prefetched, whether or not
+	** they were then used.
 	*/
-	public NodeTranslator makeNodeTranslator(Translator<K, String> ktr, Translator<SkeletonTreeMap<K, V>, Map<String, Object>> mtr) {
-		return new NodeTranslator(ktr, mtr);
+	public int getPrefetchCount() {
+		return prefetches.get();
 	}
 
-	public class NodeTranslator implements Translator<SkeletonNode, Map<String, Object>> {
+	/**
+	** Returns the number of prefetched nodes that have been used.
+	*/
+	public int getPrefetchHits() {
+		return prefetchHits.get();
+	}
 
-		final Translator<K, String> ktr;
-		final Translator<SkeletonTreeMap<K, V>, Map<String, Object>> mtr;
+	/**
+	** Returns the number of nodes that lookups have had to pull because they
+	** had not been prefetched, whilst {@link #prefetcher} was set.
+	*/
+	public int getPrefetchMisses() {
+		return prefetchMisses.get();
+	}
 
-		public NodeTranslator(Translator<K, String> k, Translator<SkeletonTreeMap<K, V>, Map<String, Object>> m) {
-			ktr = k;
-			mtr = m;
+	/**
+	** Takes the data that was pulled ahead of time for a ghost, waiting for
+	** the pull to finish if need be.
+	**
+	** @return The completed task, or {@code null} if the ghost wasn't
+	**         prefetched, or the pull failed (in which case it should be tried
+	**         again, to report the error)
+	*/
+	protected PullTask<SkeletonNode> takePrefetched(GhostNode ghost) {
+		Future<PullTask<SkeletonNode>> future;
+		synchronized (prefetched) {
+			if (prefetched.isEmpty()) { return null; }
+			future = prefetched.remove(ghost);
 		}
-
+		if (future == null) { return null; }
+		try {
+			PullTask<SkeletonNode> task = future.get();
+			prefetchHits.incrementAndGet();
+			return task;
+		} catch (ExecutionException e) {
+			return null;
+		} catch (CancellationException e) {
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	** Sets the most nodes to keep loaded, out of those inflated from {@link
+	** GhostNode}s from now on. Past this, the least recently used ones that
+	** have not been changed are turned back into their ghosts; see {@link
+	** #evict()}. Each node holds a bounded number of entries (or bytes; see
+	** {@link #setNodeSize(SizeEstimator, int)}), so this bounds the memory
+	** used by the map, apart from nodes that have been changed and not yet
+	** committed. Nodes that have been pulled ahead of time (see {@link
+	** #setPrefetcher(Executor)}) count towards this too; room is kept for
+	** as many of them as {@link #prefetchLimit()} allows.
+	**
+	** @param nodes The most nodes to keep, or {@code 0} for no limit
+	*/
+	public void setCacheSize(int nodes) {
+		if (nodes < 0) {
+			throw new IllegalArgumentException("Cache size must be non-negative");
+		}
+		lockTree();
+		try {
+			cacheSize = nodes;
+			if (nodes == 0) {
+				clock.clear();
+				held.clear();
+			}
+		} finally {
+			unlockTree();
+		}
+		evict();
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation marks the node as used, for {@link #evict()}.
+	*/
+	@Override protected void accessed(Node node) {
+		if (cacheSize == 0) { return; }
+		SkeletonNode skel = (SkeletonNode)node;
+		// don't write to memory that readers share unless we have to
+		if (!skel.used) { skel.used = true; }
+	}
+
+	/**
+	** Turns inflated nodes back into the {@link GhostNode}s they were
+	** inflated from, least recently used first, until there are no more
+	** than {@link #cacheSize} of them, less {@link #prefetchLimit()} if there
+	** is a {@link #prefetcher}. This is the CLOCK approximation of LRU:
+	** the nodes are gone through in turn, and each one that has been {@link
+	** #accessed(Node) used} since the last time round is marked as unused and
+	** kept, whilst the first one that hasn't is discarded.
+	**
+	** Only nodes that have not been changed since they were inflated, and
+	** that have no loaded subnodes, are discarded, so nothing needs to be
+	** pushed. A parent can go once all of its subnodes have gone. Nodes that
+	** are {@link #isPinned(Node, int) pinned} are set aside, and don't count
+	** towards the limit.
+	*/
+	protected void evict() {
+		// the nodes that are pulled ahead of time take up room too; they can
+		// be added without going through here, so keep room for all of them
+		int limit = cacheSize - (prefetcher == null? 0: prefetchLimit());
+		if (cacheSize == 0 || clock.size() <= limit) { return; }
+		// in concurrent mode, block writers but not readers
+		lockTree();
+		try {
+			// enough to go round twice: once to clear the marks, and once to
+			// evict; and once more after each eviction, since that can leave
+			// a parent that was passed over with no loaded subnodes
+			for (int i=2*clock.size(); i>0 && clock.size() > limit; --i) {
+				SkeletonNode node = clock.removeFirst();
+				List<SkeletonNode> path = pathTo(node);
+				if (path == null) { continue; } // no longer in the tree
+				if (isPinned(node, path.size())) {
+					held.add(node);
+					continue;
+				}
+				if (node.used || node.isDirty() || !node.isLeaf() && node.ghosts < node.lnodes.size()) {
+					node.used = false;
+					clock.addLast(node);
+					continue;
+				}
+				path.get(path.size()-1).discard(node.rkey);
+				i = Math.max(i, clock.size()+1);
+			}
+		} finally {
+			unlockTree();
+		}
+	}
+
+	/**
+	** Returns the ancestors of a node, from the root down, or {@code null} if
+	** the node is the root or is no longer in the tree.
+	*/
+	private List<SkeletonNode> pathTo(SkeletonNode node) {
+		if (node.entries.isEmpty()) { return null; }
+		K key = node.entries.firstKey();
+		List<SkeletonNode> path = new ArrayList<SkeletonNode>();
+		Node n = root;
+		while (n != node) {
+			if (n.entries == null || n.isLeaf()) { return null; }
+			Node next = n.selectNode(key);
+			if (next == null) { return null; }
+			path.add((SkeletonNode)n);
+			n = next;
+		}
+		return path.isEmpty()? null: path;
+	}
+
+	/**
+	** Whether a node is pinned: it is on one of the {@link #pinLevels(int)
+	** pinned levels}, or on the path to a {@link #pin(Object) pinned key}.
+	**
+	** @param node The node
+	** @param depth The depth of the node, with the root at {@code 0}
+	*/
+	protected boolean isPinned(Node node, int depth) {
+		if (depth < pinnedLevels) { return true; }
+		if (pinned.isEmpty()) { return false; }
+		K key = (node.lkey == null)? pinned.first(): pinned.higher(node.lkey);
+		return key != null && compare2(key, node.rkey) < 0;
+	}
+
+	/**
+	** Keeps the top levels of the tree loaded. The nodes on these levels,
+	** and their values, are inflated now, a level at a time as for {@link
+	** SkeletonNode#inflate()}; and {@link #evict()} leaves them alone from
+	** then on. Every lookup goes through the top of the tree, so once it is
+	** pinned, a lookup only needs to pull the nodes below it.
+	**
+	** @param levels The number of levels to pin, counting the root as one,
+	**        or {@code 0} to unpin them all
+	*/
+	public void pinLevels(int levels) throws TaskAbortException {
+		if (levels < 0) {
+			throw new IllegalArgumentException("Number of levels must be non-negative");
+		}
+		if (levels < pinnedLevels) {
+			pinnedLevels = levels;
+			release();
+		}
+		pinnedLevels = levels;
+		if (levels == 0) { return; }
+
+		SkeletonNode top = (SkeletonNode)root;
+		List<SkeletonNode> level = Collections.singletonList(top);
+		for (int i=1; ; ++i) {
+			inflateValues(level);
+			if (i >= levels || level.isEmpty() || level.get(0).isLeaf()) { break; }
+			level = top.inflateLevel(level);
+		}
+		evict();
+	}
+
+	/**
+	** Keeps the path from the root to a key loaded, along with the value for
+	** the key, if it is in the map. The path is inflated now, as for {@link
+	** #getAsync(Object)}; and {@link #evict()} leaves it alone until the key
+	** is {@link #unpin(Object) unpinned}.
+	**
+	** @param key The key to pin
+	*/
+	public void pin(K key) throws TaskAbortException {
+		lockTree();
+		try {
+			pinned.add(key);
+		} finally {
+			unlockTree();
+		}
+		resolve(key, false);
+	}
+
+	/**
+	** Lets the path to a key be evicted again. See {@link #pin(Object)}.
+	**
+	** @param key The key to unpin
+	*/
+	public void unpin(K key) {
+		lockTree();
+		try {
+			pinned.remove(key);
+		} finally {
+			unlockTree();
+		}
+		release();
+	}
+
+	/**
+	** Puts the nodes that were {@link #held} back into the {@link #clock},
+	** after something has been unpinned. Those that are still pinned are
+	** set aside again by {@link #evict()}.
+	*/
+	private void release() {
+		lockTree();
+		try {
+			clock.addAll(held);
+			held.clear();
+		} finally {
+			unlockTree();
+		}
+		evict();
+	}
+
+	/**
+	** Sets the executor to deflate the values of many nodes with in parallel,
+	** when a subtree is deflated. The nodes themselves are pushed in batches
+	** by the node serialiser, which does the pushes in parallel if it is an
+	** {@link IterableSerialiser}, regardless of this.
+	**
+	** @param e The executor, or {@code null} to deflate the values of each
+	**        node in turn
+	*/
+	public void setDeflater(Executor e) {
+		deflater = e;
+	}
+
+	/**
+	** Pushes a group of nodes, as a single batch if the node serialiser is an
+	** {@link IterableSerialiser}, or else one at a time. The tasks for nodes
+	** that were already being pushed by something else are left without
+	** metadata.
+	*/
+	protected void pushAll(List<PushTask<SkeletonNode>> tasks) throws TaskAbortException {
+		try {
+			if (nsrl instanceof IterableSerialiser) {
+				// the serialiser removes tasks that it is already doing from the list
+				((IterableSerialiser<SkeletonNode>)nsrl).push(new ArrayList<PushTask<SkeletonNode>>(tasks));
+			} else {
+				for (PushTask<SkeletonNode> task: tasks) {
+					try {
+						nsrl.push(task);
+					} catch (TaskCompleteException e) {
+						continue;
+					}
+				}
+			}
+		} catch (TaskCompleteException e) {
+			return;
+		} catch (RuntimeException e) {
+			throw new TaskAbortException("Could not deflate BTreeMap Nodes", e);
+		}
+	}
+
+	/**
+	** Inflates a group of {@link GhostNode}s, pulling them as a single batch
+	** (see {@link #pullAll(List)}). Ghosts that were {@link #prefetch(Node,
+	** Node) prefetched} are taken from there instead.
+	**
+	** The ghosts are pulled without blocking writers, so by the time they
+	** are attached, a ghost might no longer be in the tree; it is then left
+	** alone.
+	**
+	** @param owners The parent of each ghost
+	** @param ghosts The ghosts
+	*/
+	protected void inflateGhosts(List<SkeletonNode> owners, List<GhostNode> ghosts) throws TaskAbortException {
+		List<PullTask<SkeletonNode>> pulled = new ArrayList<PullTask<SkeletonNode>>(ghosts.size());
+		List<PullTask<SkeletonNode>> tasks = new ArrayList<PullTask<SkeletonNode>>(ghosts.size());
+		for (GhostNode ghost: ghosts) {
+			PullTask<SkeletonNode> task = takePrefetched(ghost);
+			if (task == null) {
+				tasks.add(task = new PullTask<SkeletonNode>(ghost));
+			}
+			pulled.add(task);
+		}
+
+		pullAll(tasks);
+		// in concurrent mode, block writers but not readers
+		lockTree();
+		try {
+			for (int i=0; i<pulled.size(); ++i) {
+				SkeletonNode owner = owners.get(i);
+				GhostNode ghost = ghosts.get(i);
+				if (owner.lnodes.get(ghost.rkey) != ghost) { continue; }
+				PullTask<SkeletonNode> task = pulled.get(i);
+				if (task.data == null) {
+					// it was already being pulled elsewhere, so try again on its own
+					owner.inflate(ghost.rkey);
+					continue;
+				}
+				try {
+					owner.attachPulled(ghost, task.data);
+				} catch (RuntimeException e) {
+					throw new TaskAbortException("Could not inflate BTreeMap Node " + ghost.lkey + "-" + ghost.rkey, e);
+				}
+			}
+		} finally {
+			unlockTree();
+		}
+	}
+
+	/**
+	** Pulls a group of nodes, as a single batch if the node serialiser is an
+	** {@link IterableSerialiser}, or else one at a time. The tasks for nodes
+	** that were already being pulled by something else are left without
+	** data.
+	*/
+	protected void pullAll(List<PullTask<SkeletonNode>> tasks) throws TaskAbortException {
+		if (tasks.isEmpty()) { return; }
+		try {
+			if (nsrl instanceof IterableSerialiser) {
+				// the serialiser removes tasks that it is already doing from the list
+				((IterableSerialiser<SkeletonNode>)nsrl).pull(new ArrayList<PullTask<SkeletonNode>>(tasks));
+			} else {
+				for (PullTask<SkeletonNode> task: tasks) {
+					try {
+						nsrl.pull(task);
+					} catch (TaskCompleteException e) {
+						continue;
+					}
+				}
+			}
+		} catch (TaskCompleteException e) {
+			return;
+		} catch (RuntimeException e) {
+			throw new TaskAbortException("Could not inflate BTreeMap Nodes", e);
+		}
+	}
+
+	/**
+	** Inflates the values of a group of nodes, pulling them all together; see
+	** {@link SkeletonTreeMap#inflateAll(Collection)}. In concurrent mode,
+	** this blocks writers until it is done, since the values of a node are
+	** not thread-safe, unlike the nodes.
+	*/
+	protected void inflateValues(List<SkeletonNode> nodes) throws TaskAbortException {
+		List<SkeletonTreeMap<K, V>> maps = new ArrayList<SkeletonTreeMap<K, V>>(nodes.size());
+		for (SkeletonNode n: nodes) {
+			maps.add((SkeletonTreeMap<K, V>)n.entries);
+		}
+		lockTree();
+		try {
+			SkeletonTreeMap.inflateAll(maps);
+		} finally {
+			unlockTree();
+		}
+	}
+
+	/**
+	** Deflates the values of a group of nodes, in parallel through {@link
+	** #deflater} if it is set, and waits for them all to finish. If any of
+	** these fail, the first failure is thrown once all of them are done.
+	*/
+	protected void deflateValues(List<SkeletonNode> nodes) throws TaskAbortException {
+		if (deflater == null || nodes.size() < 2) {
+			for (SkeletonNode n: nodes) {
+				((SkeletonTreeMap<K, V>)n.entries).deflate();
+			}
+			return;
+		}
+
+		List<FutureTask<Object>> futures = new ArrayList<FutureTask<Object>>(nodes.size());
+		for (final SkeletonNode n: nodes) {
+			FutureTask<Object> future = new FutureTask<Object>(new Callable<Object>() {
+				public Object call() throws TaskAbortException {
+					((SkeletonTreeMap<K, V>)n.entries).deflate();
+					return null;
+				}
+			});
+			futures.add(future);
+			deflater.execute(future);
+		}
+
+		Throwable fail = null;
+		boolean interrupted = false;
+		for (FutureTask<Object> future: futures) {
+			for (;;) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					if (fail == null) { fail = e.getCause(); }
+				} catch (InterruptedException e) {
+					// the values are still being deflated, so wait for them anyway
+					interrupted = true;
+					continue;
+				}
+				break;
+			}
+		}
+		if (interrupted) { Thread.currentThread().interrupt(); }
+
+		if (fail instanceof TaskAbortException) {
+			throw (TaskAbortException)fail;
+		} else if (fail instanceof RuntimeException) {
+			throw (RuntimeException)fail;
+		} else if (fail instanceof Error) {
+			throw (Error)fail;
+		} else if (fail != null) {
+			throw new TaskAbortException("Could not deflate BTreeMap values", fail);
+		}
+	}
+
+	/**
+	** Keeps a Bloom filter of the keys of each subtree that is pushed, in the
+	** {@link GhostNode} that refers to it, and in the data of its parent (see
+	** {@link NodeTranslator}). A lookup that reaches a ghost whose filter does
+	** not have the key then knows that the key is not in the map, without
+	** pulling anything. Most lookups for keys that are not in the map can
+	** then stop at the lowest ghost on their path that has a filter.
+	**
+	** The filter of a subtree is made from the keys of its root and the
+	** filters of its subtrees, so all the filters of a map must be the same
+	** size, and this stops at subtrees too big for the size given: about
+	** {@code bits * 0.69 / hashes} keys. The keys must have hash codes that
+	** are the same from one run to the next, as {@link String}s do, and
+	** that are consistent with their natural ordering: keys that compare as
+	** equal must have the same hash code. Lookups go by the ordering, so if
+	** this does not hold, a filter could say that a key in the map is not
+	** there. For the same reason, filters can't be used with a comparator.
+	**
+	** Subtrees that are already pushed have no filter (nor do their parents)
+	** until they are next pushed.
+	**
+	** @param bits The number of bits in each filter, or {@code 0} to not
+	**        make filters
+	** @param hashes The number of bits that each key sets; about {@code 0.69}
+	**        times the number of bits per key is best
+	** @throws IllegalStateException if the map has a comparator
+	** @see BloomFilter
+	*/
+	public void setKeyFilter(int bits, int hashes) {
+		if (bits < 0 || bits > 0 && hashes <= 0) {
+			throw new IllegalArgumentException("Bad key filter parameters");
+		}
+		if (bits > 0 && comparator != null) {
+			throw new IllegalStateException("Key filters go by hash code, so can't be used with a comparator");
+		}
+		filterBits = bits;
+		filterHashes = hashes;
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation returns {@code null} rather than throwing {@link
+	** DataNotLoadedException} when it reaches a {@link GhostNode} whose
+	** filter does not have the key; see {@link #setKeyFilter(int, int)}.
+	*/
+	@Override public V get(Object key) {
+		try {
+			return super.get(key);
+		} catch (DataNotLoadedException e) {
+			if (isFilteredOut(e, key)) { return null; }
+			throw e;
+		}
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation returns {@code false} rather than throwing {@link
+	** DataNotLoadedException} when it reaches a {@link GhostNode} whose
+	** filter does not have the key; see {@link #setKeyFilter(int, int)}.
+	*/
+	@Override public boolean containsKey(Object key) {
+		try {
+			return super.containsKey(key);
+		} catch (DataNotLoadedException e) {
+			if (isFilteredOut(e, key)) { return false; }
+			throw e;
+		}
+	}
+
+	/**
+	** Whether a lookup for a key stopped at a {@link GhostNode} whose filter
+	** does not have the key.
+	*/
+	private boolean isFilteredOut(DataNotLoadedException e, Object key) {
+		Object node = e.getValue();
+		return node instanceof SkeletonBTreeMap.GhostNode && !((GhostNode)node).mayContain(key);
+	}
+
+	/**
+	** Bounds the size of nodes by their estimated serialised size, as well
+	** as by their number of entries. Nodes are split when they are estimated
+	** to be bigger than the given size, and merged with a sibling when they
+	** are estimated to be smaller than a quarter of it, if both would then
+	** fit into one node. {@link #putAll(Map) Bulk-loading} and bulk-merging
+	** pack entries into nodes of roughly equal size, filling them up to the
+	** given size.
+	**
+	** The resulting nodes are only roughly of the given size: a node can go
+	** over it by an entry or so before it is split, and must always have at
+	** least {@link #ENT_MIN} entries. To let the byte size be the one that
+	** matters, give the tree a small minimum and a large maximum number of
+	** subnodes (see {@link #SkeletonBTreeMap(Comparator, int, int,
+	** boolean)}).
+	**
+	** Nodes that are already in the tree are not changed until they are
+	** next modified; {@link #restructure()} rebuilds the whole tree.
+	**
+	** @param est The estimator, or {@code null} to bound the size of nodes
+	**        only by their number of entries
+	** @param bytes The size, in bytes, that each node should fit into
+	*/
+	public void setNodeSize(SizeEstimator<? super K> est, int bytes) {
+		if (est != null && bytes <= 0) {
+			throw new IllegalArgumentException("Node size must be positive");
+		}
+		estimator = est;
+		nodeBytes = bytes;
+	}
+
+	/**
+	** Returns the estimated serialised size of a node, in bytes, using the
+	** {@link #estimator}. This is cached in the node until it is next
+	** modified.
+	*/
+	protected int sizeInBytes(Node node) {
+		SkeletonNode skel = (SkeletonNode)node;
+		if (skel.bytes >= 0 && skel.bytesModCount == skel.modCount && skel.bytesSize == skel.size()) {
+			return skel.bytes;
+		}
+		int bytes = skel.isLeaf()? 0: estimator.linkSize() * skel.lnodes.size();
+		for (K key: skel.entries.keySet()) {
+			bytes += estimator.entrySize(key);
+		}
+		skel.bytesModCount = skel.modCount;
+		skel.bytesSize = skel.size();
+		return skel.bytes = bytes;
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation returns whether the node is estimated to be bigger
+	** than {@link #nodeBytes}, if the {@link #estimator} is set.
+	*/
+	@Override protected boolean isOversized(Node node) {
+		return estimator != null && sizeInBytes(node) > nodeBytes;
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation returns whether the node is estimated to be smaller
+	** than a quarter of {@link #nodeBytes}, if the {@link #estimator} is set
+	** and the node's siblings are loaded.
+	*/
+	@Override protected boolean isUndersized(Node parent, Node node) {
+		if (estimator == null || sizeInBytes(node) >= nodeBytes>>2) { return false; }
+		Node lnode = parent.nodeL(node), rnode = parent.nodeR(node);
+		return (lnode == null || lnode.entries != null) && (rnode == null || rnode.entries != null);
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation returns whether the merged node would fit into
+	** {@link #nodeBytes}, if the {@link #estimator} is set.
+	*/
+	@Override protected boolean canMerge(Node lnode, Node rnode) {
+		return estimator != null
+		    && (long)sizeInBytes(lnode) + sizeInBytes(rnode) + estimator.entrySize(lnode.rkey) <= nodeBytes;
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** If the {@link #estimator} is set, this implementation splits the node
+	** so that both halves are estimated to be about the same size.
+	*/
+	@Override protected int splitIndex(Node node) {
+		if (estimator == null) { return super.splitIndex(node); }
+		int link = node.isLeaf()? 0: estimator.linkSize();
+		long half = sizeInBytes(node) >> 1, sum = 0;
+		int i = 0;
+		for (K key: node.entries.keySet()) {
+			sum += estimator.entrySize(key) + link;
+			if (sum > half) { break; }
+			++i;
+		}
+		return Math.max(ENT_MIN, Math.min(i, node.size()-1-ENT_MIN));
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** If the {@link #estimator} is set, this implementation uses enough nodes
+	** for each to fit into {@link #nodeBytes}, where possible, and divides
+	** the entries so that each node is estimated to be about the same size.
+	*/
+	@Override protected int[] packShares(List<K> keys, List<Node> subs) {
+		if (estimator == null) { return super.packShares(keys, subs); }
+		int e = keys.size();
+		int link = (subs == null)? 0: estimator.linkSize();
+
+		// sum[j] is the size of the first j entries, and the subnodes left of them
+		long[] sum = new long[e+1];
+		for (int j=0; j<e; ++j) {
+			sum[j+1] = sum[j] + estimator.entrySize(keys.get(j)) + link;
+		}
+		long total = sum[e] + link;
+
+		// enough nodes to fit the entries, but not so many that some have
+		// less than ENT_MIN entries, nor so few that some have more than ENT_MAX
+		int kmin = super.packShares(keys, subs).length, kmax = Math.max(kmin, (e + 1) / NODE_MIN);
+		int k = (int)Math.max(kmin, Math.min(kmax, (total + nodeBytes - 1) / nodeBytes));
+		for (;;) {
+			int[] shares = packShares(sum, k, link);
+			if (k == kmax || fitsShares(sum, shares, link)) { return shares; }
+			// dividing the entries unevenly made some node too big
+			++k;
+		}
+	}
+
+	/**
+	** Divides entries between {@code k} nodes, such that each node is
+	** estimated to be about the same size.
+	**
+	** @param sum The running total of the sizes of the entries
+	** @param k The number of nodes
+	** @param link The size of a subnode link, or 0 for a leaf level
+	*/
+	private int[] packShares(long[] sum, int k, int link) {
+		int e = sum.length - 1;
+		long total = sum[e] + link;
+		int[] shares = new int[k];
+		int j = 0;
+		for (int i=0; i<k-1; ++i) {
+			// the rest of the nodes, and the separators between them, must be
+			// able to take the rest of the entries
+			int rest = k-i-1, left = e-j-1 - (rest-1);
+			int lo = Math.max(ENT_MIN, left - rest*ENT_MAX);
+			int hi = Math.min(ENT_MAX, left - rest*ENT_MIN);
+			assert(lo <= hi);
+
+			long target = total * (i+1) / k;
+			int c = 0;
+			while (j+c < e && sum[j+c+1] <= target) { ++c; }
+			shares[i] = Math.max(lo, Math.min(c, hi));
+			j += shares[i] + 1;
+		}
+		shares[k-1] = e - j;
+		return shares;
+	}
+
+	/**
+	** Whether each node of the given shares fits into {@link #nodeBytes}.
+	*/
+	private boolean fitsShares(long[] sum, int[] shares, int link) {
+		int j = 0;
+		for (int c: shares) {
+			if (sum[j+c] - sum[j] + link > nodeBytes) { return false; }
+			j += c + 1;
+		}
+		return true;
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** Ghost subnodes point back to their parent, so these are copied rather
+	** than being shared with the old parent.
+	*/
+	@Override protected void attachNode(Node node, Node sub) {
+		if (sub.entries == null) {
+			GhostNode ghost = new GhostNode((SkeletonNode)node, sub.lkey, sub.rkey);
+			ghost.setMeta(((GhostNode)sub).getMeta());
+			ghost.count = sub.count;
+			ghost.filter = ((GhostNode)sub).filter;
+			sub = ghost;
+			++((SkeletonNode)node).ghosts;
+		}
+		super.attachNode(node, sub);
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** This also recounts the {@link SkeletonNode#ghosts} of the node, and
+	** points its ghost subnodes back at it, since restructuring the tree
+	** moves subnodes between nodes regardless of whether they are loaded.
+	*/
+	@Override protected void recount(Node node) {
+		super.recount(node);
+		if (node.isLeaf()) { return; }
+		SkeletonNode skel = (SkeletonNode)node;
+		int g = 0;
+		for (Node sub: node.lnodes.values()) {
+			if (sub.entries == null) {
+				((GhostNode)sub).parent = skel;
+				++g;
+			}
+		}
+		skel.ghosts = g;
+	}
+
+
+
+
+	/**
+	** Returns the values for a group of keys, loading whatever is needed to
+	** find them, rather than having the caller {@link #get(Object) get} each
+	** key in turn and {@link #inflate(Object) inflate} the node or value that
+	** it failed on.
+	**
+	** The keys are sorted, and the tree is descended once for all of them,
+	** a level at a time. On each level, the {@link GhostNode}s that any of
+	** the keys need are pulled as a single batch (see {@link
+	** #inflateGhosts(List, List)}), so nodes that many keys need are only
+	** pulled once. When the bottom is reached, the values of all the keys
+	** that were found are pulled together (see {@link
+	** SkeletonTreeMap#inflateAll(Map)}). So this takes about as many round
+	** trips as the tree has levels, however many keys there are.
+	**
+	** In concurrent mode, each node is read-latched whilst its keys are
+	** searched, and writers are blocked whilst the values are pulled, since
+	** the values of a node are not thread-safe. A key that a writer moved in
+	** the meantime is looked up again on its own.
+	**
+	** @param keys The keys to look up
+	** @return A map of each key that is in this map to its value
+	*/
+	public SortedMap<K, V> getAll(Collection<? extends K> keys) throws TaskAbortException {
+		SortedSet<K> sorted = new TreeSet<K>(comparator);
+		sorted.addAll(keys);
+		loadAll(sorted);
+
+		SortedMap<K, V> results = new TreeMap<K, V>(comparator);
+		for (K key: sorted) {
+			// something else might have deflated part of the tree since
+			for (;;) {
+				try {
+					V v = get(key);
+					if (v != null || containsKey(key)) { results.put(key, v); }
+					break;
+				} catch (DataNotLoadedException e) {
+					((Skeleton<K>)e.getParent()).inflate((K)e.getKey());
+				}
+			}
+		}
+		evict();
+		return results;
+	}
+
+	/**
+	** Loads the nodes and values needed to look up the given keys. See
+	** {@link #getAll(Collection)}.
+	*/
+	private void loadAll(SortedSet<K> keys) throws TaskAbortException {
+		// the nodes to search on this level, and the keys to search each for
+		List<SkeletonNode> nodes = new ArrayList<SkeletonNode>();
+		List<List<K>> groups = new ArrayList<List<K>>();
+		nodes.add((SkeletonNode)root);
+		groups.add(new ArrayList<K>(keys));
+		// the values to pull, by the maps they are in
+		Map<SkeletonTreeMap<K, V>, List<K>> values = new IdentityHashMap<SkeletonTreeMap<K, V>, List<K>>();
+
+		while (!nodes.isEmpty()) {
+			// the subnodes to search on the next level, and their parents
+			List<SkeletonNode> owners = new ArrayList<SkeletonNode>();
+			List<Node> subs = new ArrayList<Node>();
+			List<List<K>> subgroups = new ArrayList<List<K>>();
+
+			for (int i=0; i<nodes.size(); ++i) {
+				SkeletonNode node = nodes.get(i);
+				Node sub = null;
+				List<K> subkeys = null;
+				latchR(node);
+				try {
+					for (K key: groups.get(i)) {
+						if (node.entries.containsKey(key)) {
+							SkeletonTreeMap<K, V> map = (SkeletonTreeMap<K, V>)node.entries;
+							List<K> vkeys = values.get(map);
+							if (vkeys == null) { values.put(map, vkeys = new ArrayList<K>()); }
+							vkeys.add(key);
+							continue;
+						}
+						if (node.isLeaf()) { continue; } // not in the map
+						Node n = node.selectNode(key);
+						if (n.entries == null && !((GhostNode)n).mayContain(key)) { continue; }
+						// the keys are sorted, so keys for the same subnode are together
+						if (n != sub) {
+							sub = n;
+							owners.add(node);
+							subs.add(sub);
+							subgroups.add(subkeys = new ArrayList<K>());
+						}
+						subkeys.add(key);
+					}
+				} finally {
+					unlatchR(node);
+				}
+			}
+
+			List<SkeletonNode> gowners = new ArrayList<SkeletonNode>();
+			List<GhostNode> ghosts = new ArrayList<GhostNode>();
+			for (int i=0; i<subs.size(); ++i) {
+				if (subs.get(i).entries != null) { continue; } // skeleton node
+				gowners.add(owners.get(i));
+				ghosts.add((GhostNode)subs.get(i));
+			}
+			inflateGhosts(gowners, ghosts);
+
+			nodes = new ArrayList<SkeletonNode>(subs.size());
+			groups = new ArrayList<List<K>>(subs.size());
+			for (int i=0; i<subs.size(); ++i) {
+				SkeletonNode owner = owners.get(i);
+				Node n;
+				latchR(owner);
+				try {
+					n = owner.lnodes.get(subs.get(i).rkey);
+				} finally {
+					unlatchR(owner);
+				}
+				// a writer might have got in the way, in concurrent mode; getAll()
+				// will deal with these keys when it gets them
+				if (n == null || n.entries == null) { continue; }
+				nodes.add((SkeletonNode)n);
+				groups.add(subgroups.get(i));
+			}
+		}
+
+		// the values of a node are not thread-safe, unlike the nodes
+		lockTree();
+		try {
+			SkeletonTreeMap.inflateAll(values);
+		} finally {
+			unlockTree();
+		}
+	}
+
+	/**
+	** Sets the executor to run the lookups for {@link #getAsync(Object)} with.
+	** A lookup waits for each pull that it needs in turn, so this lets the
+	** caller get on with something else in the meantime. Lookups can then
+	** run at the same time as each other, so the map should be in concurrent
+	** mode.
+	**
+	** @param e The executor, or {@code null} to look up keys in the calling
+	**        thread
+	*/
+	public void setResolver(Executor e) {
+		resolver = e;
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation descends the tree to the key, pulling each {@link
+	** GhostNode} on the way, then pulls the value itself. Each step checks
+	** whether the data it needs is loaded, rather than catching {@link
+	** DataNotLoadedException} from {@link #get(Object)}. The lookup runs
+	** through {@link #resolver} if it is set; otherwise this blocks until the
+	** lookup is done, and returns a future that is already done. In both
+	** cases, the thread that runs the lookup waits for each pull in turn.
+	*/
+	public Future<V> getAsync(final K key) {
+		FutureTask<V> future = new FutureTask<V>(new Callable<V>() {
+			public V call() throws TaskAbortException {
+				return resolve(key, true);
+			}
+		});
+		if (resolver == null) {
+			future.run();
+		} else {
+			resolver.execute(future);
+		}
+		return future;
+	}
+
+	/**
+	** Looks up a key, loading whatever is needed on the way. See {@link
+	** #getAsync(Object)}.
+	**
+	** @param key The key to look up
+	** @param filtered Whether to stop at a {@link GhostNode} whose filter
+	**        does not have the key (see {@link #setKeyFilter(int, int)}),
+	**        rather than loading the whole path to the leaf
+	*/
+	protected V resolve(K key, boolean filtered) throws TaskAbortException {
+		// latch-coupled descent, as for the fallback in lookupConcurrent
+		Node node = latchRoot(false);
+		for (;;) {
+			Node ghost = null;
+			try {
+				for (;;) {
+					accessed(node);
+					SkeletonTreeMap<K, V> map = (SkeletonTreeMap<K, V>)node.entries;
+					if (map.containsKey(key)) {
+						if (map.getDummy(key) == null) { return map.get(key); }
+						break;
+					}
+					if (node.isLeaf()) { return null; }
+
+					Node sub = node.selectNode(key);
+					if (sub.entries == null) {
+						if (filtered && !((GhostNode)sub).mayContain(key)) { return null; }
+						ghost = sub;
+						break;
+					}
+					latchR(sub);
+					unlatchR(node);
+					node = sub;
+				}
+			} finally {
+				unlatchR(node);
+			}
+
+			// pull what is missing with no latches held, since a pull takes the
+			// latches that it needs. we carry on from the pulled node even if
+			// evict() has discarded it again, or else lookups that need more
+			// nodes than the cache holds would never finish
+			if (ghost != null) {
+				Node sub = ((SkeletonNode)node).pullSubnode(ghost.rkey);
+				if (sub == null) {
+					// a writer got in the way, in concurrent mode
+					node = latchRoot(false);
+				} else {
+					latchR(sub);
+					node = sub;
+				}
+				continue;
+			}
+
+			// the values of a node are not thread-safe, unlike the nodes
+			lockTree();
+			try {
+				SkeletonTreeMap<K, V> map = (SkeletonTreeMap<K, V>)node.entries;
+				if (!node.retired && map.getDummy(key) != null) { map.inflate(key); }
+			} finally {
+				unlockTree();
+			}
+			latchR(node);
+			if (node.retired) {
+				unlatchR(node);
+				node = latchRoot(false);
+			}
+		}
+	}
+
+	@Override public Object getMeta() { return null; }
+	@Override public void setMeta(Object m) { }
+
+	@Override public boolean isLive() {
+		return ((SkeletonNode)root).isLive();
+	}
+
+	@Override public boolean isBare() {
+		return ((SkeletonNode)root).isBare();
+	}
+
+	@Override public void deflate() throws TaskAbortException {
+		((SkeletonNode)root).deflate();
+	}
+
+	@Override public void inflate() throws TaskAbortException {
+		((SkeletonNode)root).inflate();
+	}
+
+	/**
+	** Deflates the nodes that have been changed since they were last
+	** committed, leaving the {@link #root} bare, so that re-publishing the
+	** tree after a small update only pushes the nodes on the paths to the
+	** changes, rather than the whole tree. A node counts as committed when
+	** it is inflated, or (for the root) when the tree is.
+	**
+	** Values in the changed nodes that have been put since they were last
+	** pulled are pushed along with them. Other values, whether loaded or not,
+	** only have their metadata passed to the serialiser, which can leave
+	** them where they are (see {@link SkeletonTreeMap#deflate()}); so a value
+	** that is changed in place must be put back into the map for the change
+	** to be pushed.
+	**
+	** @see BTreeMap#dirtyNodes()
+	*/
+	public void deflateDirty() throws TaskAbortException {
+		lockTree();
+		try {
+			SkeletonNode node = (SkeletonNode)root;
+			node.deflateDirty();
+			// the root is pushed as part of the tree, so it must be bare even if it
+			// hasn't changed
+			if (!node.isDirty()) { ((SkeletonTreeMap<K, V>)node.entries).deflate(); }
+			assert(isBare());
+		} finally {
+			unlockTree();
+		}
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation only deflates the path from the root to the key,
+	** and only as far up as it needs to. The nodes on the path are deflated
+	** from the bottom up, each one first being made bare as for {@link
+	** SkeletonNode#deflateDirty()}, which pushes any of its other subnodes
+	** that have been changed and drops the rest. A node that has not been
+	** changed is then just replaced by the {@link GhostNode} it was inflated
+	** from, and this stops there, since its parent still refers to it by the
+	** same metadata. Otherwise the node is pushed, which changes its parent,
+	** and so on up to the {@link #root}, which is pushed as part of the tree.
+	**
+	** So committing a change to one key of a tree that is otherwise bare
+	** pushes one node per level, rather than deflating the whole tree. If
+	** nothing on the path has changed, and the value for the key has not
+	** been put since it was last pulled (see {@link
+	** SkeletonTreeMap#isChanged(Object)}), this does nothing.
+	*/
+	@Override public void deflate(K key) throws TaskAbortException {
+		lockTree();
+		try {
+			// the path to the node that has the key, or the leaf that would have it
+			List<SkeletonNode> path = new ArrayList<SkeletonNode>();
+			boolean changed = false;
+			Node node = root;
+			for (;;) {
+				path.add((SkeletonNode)node);
+				changed |= node.isDirty();
+				if (node.isLeaf() || node.entries.containsKey(key)) { break; }
+				node = node.selectNode(key);
+				if (node.entries == null) { return; } // nothing under here is loaded
+			}
+			SkeletonTreeMap<K, V> map = (SkeletonTreeMap<K, V>)node.entries;
+			boolean loaded = map.isChanged(key);
+			if (!changed && !loaded) { return; }
+
+			for (int i=path.size()-1; i>0; --i) {
+				SkeletonNode skel = path.get(i), parent = path.get(i-1);
+				skel.deflateDirty();
+				if (!skel.isDirty()) {
+					parent.discard(skel.rkey);
+					return;
+				}
+				PushTask<SkeletonNode> task = new PushTask<SkeletonNode>(skel);
+				pushAll(Collections.singletonList(task));
+				// it was already being pushed by something else
+				if (task.meta == null) { return; }
+				parent.attachGhost((GhostNode)task.meta);
+			}
+
+			// the key is in the root itself
+			if (path.size() == 1 && loaded) {
+				map.deflate(key);
+				latchW(root);
+				try {
+					root.modified();
+				} finally {
+					unlatchW(root);
+				}
+			}
+		} finally {
+			unlockTree();
+		}
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation pulls the nodes on the path from the root to the
+	** key that are not loaded, and then the value for the key, descending as
+	** for {@link #getAsync(Object)}. Unlike a lookup, this goes all the way
+	** down to a leaf even if the key is not in the map, so the key can then
+	** be put without loading anything else: splitting a full node on the
+	** path moves its values as they are, if the value serialiser is a {@link
+	** MapSerialiser.Relocatable} (see {@link
+	** SkeletonTreeMap#checkMove(SortedArrayMap, int, int)}). Removing the key
+	** may still need more of the tree, since that can merge the nodes on the
+	** path with their siblings.
+	*/
+	@Override public void inflate(K key) throws TaskAbortException {
+		resolve(key, false);
+	}
+
+	/**
+	** This is necessary because Node is a non-static class.
+	*/
+	public NodeTranslator makeNodeTranslator(Translator<K, String> ktr, Translator<SkeletonTreeMap<K, V>, Map<String, Object>> mtr) {
+		return new NodeTranslator(ktr, mtr);
+	}
+
+	public class NodeTranslator implements Translator<SkeletonNode, Map<String, Object>> {
+
+		final Translator<K, String> ktr;
+		final Translator<SkeletonTreeMap<K, V>, Map<String, Object>> mtr;
+
+		public NodeTranslator(Translator<K, String> k, Translator<SkeletonTreeMap<K, V>, Map<String, Object>> m) {
+			ktr = k;
+			mtr = m;
+		}
+
 		@Override public Map<String, Object> app(SkeletonNode node) {
 			if (!node.isBare()) {
 				throw new IllegalStateException("Cannot translate non-bare node");
@@ -309,6 +2035,21 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 				GhostNode gh = (GhostNode)node.lnodes.get(node.rkey);
 				subnodes.add(gh.getMeta());
 				map.put("subnodes", subnodes);
+
+				// entry counts of the subtrees, for the order-statistic methods
+				List<Integer> counts = new ArrayList<Integer>();
+				for (Node n: node.lnodes.values()) { counts.add(n.count); }
+				map.put("counts", counts);
+
+				// key filters of the subtrees, so lookups can skip pulling them
+				List<byte[]> filters = new ArrayList<byte[]>();
+				boolean any = false;
+				for (Node n: node.lnodes.values()) {
+					BloomFilter f = ((GhostNode)n).filter;
+					filters.add((f == null)? null: f.toBytes());
+					any |= (f != null);
+				}
+				if (any) { map.put("filters", filters); }
 			}
 			return map;
 		}
@@ -320,23 +2061,43 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 				node.rkey = (ktr == null)? (K)map.get("rkey"): ktr.rev((String)map.get("rkey"));
 				if (!node.isLeaf()) {
 					List<Object> subnodes = (List<Object>)map.get("subnodes");
+					// older data doesn't have these
+					List<Integer> counts = (List<Integer>)map.get("counts");
+					if (counts != null && (counts.size() != subnodes.size() || counts.contains(null))) {
+						throw new DataFormatException("Subtree counts do not match the subnodes", null, null, null);
+					}
+					Iterator<Integer> cit = (counts == null)? null: counts.iterator();
+					List<byte[]> filters = (List<byte[]>)map.get("filters");
+					if (filters != null && filters.size() != subnodes.size()) {
+						throw new DataFormatException("Subtree filters do not match the subnodes", null, null, null);
+					}
+					Iterator<byte[]> fit = (filters == null)? null: filters.iterator();
 					K lastkey = node.lkey;
 					Iterator<K> keys = node.entries.keySet().iterator();
 					for (Object meta: subnodes) {
 						K thiskey = keys.hasNext()? keys.next(): node.rkey;
 						GhostNode ghost = new GhostNode(node, lastkey, thiskey);
 						ghost.setMeta(meta);
+						if (cit != null) { ghost.count = cit.next(); }
+						if (fit != null) {
+							byte[] f = fit.next();
+							if (f != null) { ghost.filter = new BloomFilter(f); }
+						}
 						node.rnodes.put(lastkey, ghost);
 						node.lnodes.put(thiskey, ghost);
+						++node.ghosts;
 						lastkey = thiskey;
 					}
 				}
+				recount(node);
 				verifyNodeIntegrity(node);
 				return node;
 			} catch (ClassCastException e) {
 				throw new DataFormatException("Could not build SkeletonNode from data", e, null, null, null);
 			} catch (IllegalStateException e) {
 				throw new DataFormatException("Could not build SkeletonNode from data", e, null, null, null);
+			} catch (IllegalArgumentException e) {
+				throw new DataFormatException("Could not build SkeletonNode from data", e, null, null, null);
 			}
 		}
 
@@ -358,6 +2119,7 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 			}
 			Map<String, Object> map = new LinkedHashMap<String, Object>();
 			map.put("node_min", tree.NODE_MIN);
+			map.put("node_max", tree.NODE_MAX);
 			map.put("size", tree.size);
 			map.put("root", tree.makeNodeTranslator(ktr, mtr).app((SkeletonBTreeMap.SkeletonNode)tree.root));
 			return map;
@@ -365,10 +2127,14 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 
 		@Override public SkeletonBTreeMap<K, V> rev(Map<String, Object> map) {
 			try {
-				SkeletonBTreeMap<K, V> tree = new SkeletonBTreeMap<K, V>((Integer)map.get("node_min"));
+				int node_min = (Integer)map.get("node_min");
+				// older data has no node_max
+				Integer node_max = (Integer)map.get("node_max");
+				SkeletonBTreeMap<K, V> tree = new SkeletonBTreeMap<K, V>(null, node_min, (node_max == null)? node_min<<1: node_max, false);
 				tree.size = (Integer)map.get("size"); // TODO have some way of verifying this
 				// make this not do the "size" check for root
 				tree.root = tree.makeNodeTranslator(ktr, mtr).rev((Map<String, Object>)map.get("root"));
+				tree.root.count = tree.size;
 				return tree;
 			} catch (ClassCastException e) {
 				throw new DataFormatException("Could not build SkeletonBTreeMap from data", e, null, null, null);
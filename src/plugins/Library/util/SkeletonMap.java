@@ -8,6 +8,7 @@ import plugins.Library.serial.Serialiser;
 import plugins.Library.serial.TaskAbortException;
 
 import java.util.Map;
+import java.util.concurrent.Future;
 
 /**
 ** A {@link Skeleton} of a {@link Map}.
@@ -54,4 +55,26 @@ public interface SkeletonMap<K, V> extends Map<K, V>, Skeleton<K> {
 	*/
 	public void deflate(K key) throws TaskAbortException;
 
+	/**
+	** Returns a {@link Future} for the value of a key, which loads whatever is
+	** needed to get it. Unlike {@link Map#get(Object) get(key)}, this does not
+	** throw {@link DataNotLoadedException}; the caller doesn't have to catch
+	** it and {@link #inflate(Object) inflate} the key itself, over and over.
+	**
+	** Implementations may do the lookup in the background, on an executor
+	** that has been set for it, or before this method returns. If no
+	** executor is set, this call blocks: the whole lookup, including every
+	** pull that it needs, runs in the calling thread, and the future that is
+	** returned is already done. Either way, the serialisers pull data
+	** synchronously, so the lookup holds a thread whilst it waits for each
+	** pull. If the data could not be loaded, then {@link Future#get()} throws
+	** an {@link java.util.concurrent.ExecutionException} whose cause is a
+	** {@link TaskAbortException}.
+	**
+	** @param key The key for whose value to get.
+	** @return A future for the value, which is {@code null} if the key is not
+	**         in the map.
+	*/
+	public Future<V> getAsync(K key);
+
 }
@@ -16,6 +16,9 @@ import java.util.TreeMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
 ** A {@link SkeletonMap} of a {@link PrefixTreeMap}.
@@ -63,6 +66,7 @@ implements SkeletonMap<K, V> {
 		@Override public void deflate() { throw childNotLoaded(); }
 		@Override public void inflate(K key) { throw childNotLoaded(); }
 		@Override public void deflate(K key) { throw childNotLoaded(); }
+		@Override public Future<V> getAsync(K key) { throw childNotLoaded(); }
 
 		final protected DataNotLoadedException childNotLoaded() {
 			return new DataNotLoadedException("Child tree " + prefix + " not loaded for PrefixTreeMap " + parent.prefix, parent, prefix, meta);
@@ -363,6 +367,25 @@ implements SkeletonMap<K, V> {
 		}
 	}
 
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation has no executor, and always blocks until the
+	** lookup is done. {@link
+	** #inflate(Object)} already loads every child tree on the way to the key,
+	** so the value can be got straight after it.
+	*/
+	public Future<V> getAsync(final K key) {
+		FutureTask<V> future = new FutureTask<V>(new Callable<V>() {
+			public V call() throws TaskAbortException {
+				inflate(key);
+				return get(key);
+			}
+		});
+		future.run();
+		return future;
+	}
+
 	/************************************************************************
 	** {@link Translator} with access to the members of {@link PrefixTreeMap}.
 	**
@@ -10,35 +10,71 @@ import plugins.Library.serial.DataFormatException;
 import plugins.Library.serial.TaskAbortException;
 
 import java.util.Comparator;
-import java.util.Set;
-import java.util.AbstractSet;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.AbstractCollection;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
-** A {@link SkeletonMap} of a {@link TreeMap}.
+** A {@link SkeletonMap} of a {@link SortedArrayMap}.
+**
+** Each key has a single slot, which holds either its value or, if that has
+** not been loaded, a {@link Dummy} holding its metadata. So the load status
+** of a key costs nothing extra to keep or to look up, and the whole map is
+** just two arrays.
+**
+** A value that is pulled is pushed again only if it is put back into the
+** map; until then, only its metadata is passed to the serialiser. So a
+** value that is changed in place must be put back for the change to be
+** pushed.
+**
+** This is a {@link SortedMap}, but not a {@link java.util.NavigableMap}; code
+** that needs to search near a key can use the index methods of {@link
+** SortedArrayMap}, such as {@link SortedArrayMap#ceilingIndex(Object)}.
 **
 ** This implementation is NOT thread-safe.
 **
 ** @author infinity0
 */
 public class SkeletonTreeMap<K, V>
-extends TreeMap<K, V>
+extends SortedArrayMap<K, V>
 implements SkeletonMap<K, V> {
 
 	/**
-	** A TreeMap of objects tracking the load status of each key. This map
-	** always contains the same keys as the main map, and for all keys k:
-	** (loaded.get(k) != null) if and only if the value for k has not been
-	** loaded into the map, and implies that (get(k) == null). (However, note
-	** that (get(k) == null) could also be the actual loaded value for key k.)
+	** Placeholder for a value that has not been loaded, holding its
+	** metadata.
 	*/
-	final TreeMap<K, Object> loaded;
+	final static class Dummy {
+
+		final Object meta;
+
+		Dummy(Object m) {
+			meta = m;
+		}
+
+		@Override public boolean equals(Object o) {
+			if (!(o instanceof Dummy)) { return false; }
+			Object m = ((Dummy)o).meta;
+			return meta == null? m == null: meta.equals(m);
+		}
+
+		@Override public int hashCode() {
+			return (meta == null)? 0: meta.hashCode();
+		}
+
+		@Override public String toString() {
+			return "(" + meta + ")";
+		}
+
+	}
 
 	/**
 	** The meta data for this skeleton.
@@ -50,42 +86,102 @@ implements SkeletonMap<K, V> {
 	*/
 	protected transient int dummyCount;
 
+	/**
+	** The metadata of the loaded values that have not been changed since
+	** they were pulled, or {@code null} if there are none. These values are
+	** pushed as metadata only, like the values that are not loaded, so that
+	** pushing the map after changing a few of its values only pushes those
+	** values (see {@link plugins.Library.serial.Packer#push(Map, Object)}).
+	*/
+	protected transient SortedMap<K, Object> cleanmeta;
+
 	public SkeletonTreeMap() {
 		super();
-		loaded = new TreeMap<K, Object>();
 	}
 
 	public SkeletonTreeMap(Comparator<? super K> c) {
 		super(c);
-		loaded = new TreeMap<K, Object>(c);
 	}
 
 	public SkeletonTreeMap(Map<? extends K,? extends V> m) {
-		super(m);
-		loaded = new TreeMap<K, Object>();
-		for (K key: m.keySet()) {
-			loaded.put(key, null);
-		}
+		super();
+		// put the keys in order, so they are all appended
+		putAll((m instanceof SortedMap)? m: new TreeMap<K, V>(m));
 	}
 
 	public SkeletonTreeMap(SortedMap<K,? extends V> m) {
-		super(m);
-		loaded = new TreeMap<K, Object>(m.comparator());
-		for (K key: m.keySet()) {
-			loaded.put(key, null);
-		}
+		super(m.comparator());
+		putAll(m);
 	}
 
+	/**
+	** Creates a copy of a map, including the metadata of the values that are
+	** not loaded, and of the map itself.
+	*/
 	public SkeletonTreeMap(SkeletonTreeMap<K, V> m) {
 		super(m);
-		loaded = (TreeMap<K, Object>)m.loaded.clone();
+		dummyCount = m.dummyCount;
+		mapmeta = m.mapmeta;
+		if (m.cleanmeta != null) { cleanmeta = new TreeMap<K, Object>(m.cleanmeta); }
 	}
 
 	public Object putDummy(K key, Object o) {
-		put(key, null);
-		Object d = loaded.put(key, o);
-		if (d == null) { ++dummyCount; }
-		return d;
+		Dummy d = new Dummy(o);
+		// fast path for appends, which is what the translator does
+		int i = (size > 0 && compare(keys[size-1], key) < 0)? -(size + 1): search(key);
+		if (i < 0) {
+			insertAt(-(i + 1), key, (V)d);
+			++dummyCount;
+			return null;
+		}
+		Object old = vals[i];
+		vals[i] = (V)d;
+		if (old instanceof Dummy) { return ((Dummy)old).meta; }
+		if (cleanmeta != null) { cleanmeta.remove(key); }
+		++dummyCount;
+		return null;
+	}
+
+	/**
+	** Puts a value that was pulled with the given metadata, so that it is not
+	** pushed again unless it is changed.
+	*/
+	protected void putPulled(K key, V value, Object meta) {
+		put(key, value);
+		if (meta == null) { return; }
+		if (cleanmeta == null) { cleanmeta = new TreeMap<K, Object>(comparator); }
+		cleanmeta.put(key, meta);
+	}
+
+	/**
+	** Returns whether the value for the given key is loaded, and has been
+	** put since it was pulled (or was never pulled), and so needs to be
+	** pushed. Returns {@code false} if the key is not in the map.
+	*/
+	public boolean isChanged(Object key) {
+		int i = search(key);
+		return i >= 0 && !(vals[i] instanceof Dummy) && (cleanmeta == null || !cleanmeta.containsKey(key));
+	}
+
+	/**
+	** Returns the task to push the value at the given index with. Values
+	** that are not loaded, or have not been changed since they were pulled,
+	** only pass their metadata.
+	*/
+	private PushTask<V> pushTask(int i) {
+		if (vals[i] instanceof Dummy) { return new PushTask<V>(null, ((Dummy)vals[i]).meta); }
+		Object m = (cleanmeta == null)? null: cleanmeta.get(keys[i]);
+		return (m != null)? new PushTask<V>(null, m): new PushTask<V>(vals[i]);
+	}
+
+	/**
+	** Returns the metadata for the value of the given key, if the value has
+	** not been loaded. Returns {@code null} if it has been loaded, or if the
+	** key is not in the map.
+	*/
+	public Object getDummy(Object key) {
+		int i = search(key);
+		return (i >= 0 && vals[i] instanceof Dummy)? ((Dummy)vals[i]).meta: null;
 	}
 
 	protected MapSerialiser<K, V> serialiser;
@@ -118,25 +214,121 @@ implements SkeletonMap<K, V> {
 	@Override public void inflate() throws TaskAbortException {
 		if (serialiser == null) { throw new IllegalStateException("No serialiser set for this structure."); }
 
-		Map<K, PullTask<V>> tasks = new HashMap<K, PullTask<V>>(size()*2);
-		for (K k: keySet()) {
-			Object o = loaded.get(k);
-			if (o == null) { continue; }
-			tasks.put(k, new PullTask<V>(o));
+		Map<K, PullTask<V>> tasks = new HashMap<K, PullTask<V>>(dummyCount*2);
+		for (int i=0; i<size; ++i) {
+			if (!(vals[i] instanceof Dummy)) { continue; }
+			tasks.put(keys[i], new PullTask<V>(((Dummy)vals[i]).meta));
 		}
 		serialiser.pull(tasks, mapmeta);
 
 		for (Map.Entry<K, PullTask<V>> en: tasks.entrySet()) {
-			put(en.getKey(), en.getValue().data);
+			// the serialiser may have added tasks for data that it came across on
+			// the way, which might be out of date; see inflate(K)
+			Object m = getDummy(en.getKey());
+			if (m != null && m.equals(en.getValue().meta)) {
+				putPulled(en.getKey(), en.getValue().data, m);
+			}
 		}
 	}
 
+	/**
+	** Inflates a group of maps, pulling the values of all the maps that have
+	** the same {@link #getMeta() metadata} with a single call to the
+	** serialiser, rather than one call per map. This lets the serialiser pull
+	** them all as one batch, and pull data that several maps share only once.
+	**
+	** The maps must all have the same serialiser. They should not have any
+	** keys in common; a map that does is inflated on its own.
+	**
+	** @param maps The maps to inflate
+	*/
+	public static <K, V> void inflateAll(Collection<? extends SkeletonTreeMap<K, V>> maps) throws TaskAbortException {
+		Map<SkeletonTreeMap<K, V>, Collection<K>> keys = new IdentityHashMap<SkeletonTreeMap<K, V>, Collection<K>>();
+		for (SkeletonTreeMap<K, V> map: maps) {
+			keys.put(map, null);
+		}
+		inflateAll(keys);
+	}
+
+	/**
+	** Inflates some of the keys of a group of maps, pulling them together as
+	** for {@link #inflateAll(Collection)}.
+	**
+	** @param keys A map of each map to inflate, to the keys to inflate in it,
+	**        or {@code null} to inflate all of its keys
+	*/
+	public static <K, V> void inflateAll(Map<? extends SkeletonTreeMap<K, V>, ? extends Collection<K>> keys) throws TaskAbortException {
+		MapSerialiser<K, V> serialiser = null;
+		// the maps with each metadata, and the tasks for all of their values
+		Map<Object, List<SkeletonTreeMap<K, V>>> groups = new HashMap<Object, List<SkeletonTreeMap<K, V>>>();
+		Map<Object, Map<K, PullTask<V>>> grouptasks = new HashMap<Object, Map<K, PullTask<V>>>();
+		// the tasks for the values of each map
+		Map<SkeletonTreeMap<K, V>, Map<K, PullTask<V>>> maptasks = new IdentityHashMap<SkeletonTreeMap<K, V>, Map<K, PullTask<V>>>();
+
+		for (Map.Entry<? extends SkeletonTreeMap<K, V>, ? extends Collection<K>> men: keys.entrySet()) {
+			SkeletonTreeMap<K, V> map = men.getKey();
+			if (map.serialiser == null) { throw new IllegalStateException("No serialiser set for this structure."); }
+			if (serialiser == null) {
+				serialiser = map.serialiser;
+			} else if (map.serialiser != serialiser) {
+				throw new IllegalArgumentException("Cannot inflate maps with different serialisers together.");
+			}
+			if (map.isLive()) { continue; }
+
+			Map<K, PullTask<V>> alltasks = grouptasks.get(map.mapmeta);
+			if (alltasks == null) {
+				grouptasks.put(map.mapmeta, alltasks = new HashMap<K, PullTask<V>>());
+				groups.put(map.mapmeta, new ArrayList<SkeletonTreeMap<K, V>>());
+			}
+
+			Map<K, PullTask<V>> tasks = new HashMap<K, PullTask<V>>(map.dummyCount*2);
+			boolean clash = false;
+			for (K k: (men.getValue() == null)? map.keySet(): men.getValue()) {
+				Object o = map.getDummy(k);
+				if (o == null) { continue; }
+				if (alltasks.containsKey(k)) { clash = true; break; }
+				tasks.put(k, new PullTask<V>(o));
+			}
+			if (clash) {
+				if (men.getValue() == null) {
+					map.inflate();
+				} else {
+					for (K k: men.getValue()) { map.inflate(k); }
+				}
+				continue;
+			}
+			alltasks.putAll(tasks);
+			groups.get(map.mapmeta).add(map);
+			maptasks.put(map, tasks);
+		}
+
+		for (Map.Entry<Object, List<SkeletonTreeMap<K, V>>> en: groups.entrySet()) {
+			if (en.getValue().isEmpty()) { continue; }
+			serialiser.pull(grouptasks.get(en.getKey()), en.getKey());
+			for (SkeletonTreeMap<K, V> map: en.getValue()) {
+				for (Map.Entry<K, PullTask<V>> ten: maptasks.get(map).entrySet()) {
+					map.putPulled(ten.getKey(), ten.getValue().data, ten.getValue().meta);
+				}
+			}
+		}
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** Values that are not loaded, or that have not been changed since they
+	** were pulled, are passed to the serialiser as metadata only, so it can
+	** leave them where they are (see {@link
+	** plugins.Library.serial.Packer#push(Map, Object)}).
+	*/
 	@Override public void deflate() throws TaskAbortException {
 		if (serialiser == null) { throw new IllegalStateException("No serialiser set for this structure."); }
 
-		Map<K, PushTask<V>> tasks = new HashMap<K, PushTask<V>>(size()*2);
-		for (K k: keySet()) {
-			tasks.put(k, new PushTask<V>(get(k), loaded.get(k)));
+		Map<K, PushTask<V>> tasks = new HashMap<K, PushTask<V>>(size*2);
+		for (int i=0; i<size; ++i) {
+			// values that aren't loaded, or haven't changed since they were pulled,
+			// are already pushed, so only pass their metadata
+			tasks.put(keys[i], pushTask(i));
 		}
 		//try {
 			serialiser.push(tasks, mapmeta);
@@ -145,65 +337,97 @@ implements SkeletonMap<K, V> {
 		//}
 
 		for (Map.Entry<K, PushTask<V>> en: tasks.entrySet()) {
-			putDummy(en.getKey(), en.getValue().meta);
+			// values that weren't loaded may have been moved to other bins too
+			if (getDummy(en.getKey()) != en.getValue().meta) {
+				putDummy(en.getKey(), en.getValue().meta);
+			}
 		}
 	}
 
 	@Override public void inflate(K key) throws TaskAbortException {
 		if (serialiser == null) { throw new IllegalStateException("No serialiser set for this structure."); }
 
-		Object keymeta = loaded.get(key);
+		Object keymeta = getDummy(key);
 		if (keymeta == null) { return; }
 		Map<K, PullTask<V>> tasks = new HashMap<K, PullTask<V>>();
 		tasks.put(key, new PullTask<V>(keymeta));
 
 		serialiser.pull(tasks, mapmeta);
 
-		put(key, tasks.remove(key).data);
+		putPulled(key, tasks.remove(key).data, keymeta);
 		if (tasks.isEmpty()) { return; }
 
 		for (Map.Entry<K, PullTask<V>> en: tasks.entrySet()) {
 			// other keys may also have been inflated, so add them if the metadata
 			// match. if they don't match, then the data was only partially inflated
-			// so ignore for now. (needs a new data structure to allow partial
-			// inflates of values...)
+			// so ignore it; the serialiser can keep it around so that inflating
+			// that key later only pulls the rest (see Packer.setCacheSize())
 			K k = en.getKey();
 			PullTask<V> t = en.getValue();
-			Object m = loaded.get(k);
-			if (m.equals(t.meta)) {
-				put(k, t.data);
+			Object m = getDummy(k);
+			if (m != null && m.equals(t.meta)) {
+				putPulled(k, t.data, m);
 			}
 		}
 	}
 
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation pushes the value for the key along with the
+	** metadata of the values that are not loaded, or have not been changed
+	** since they were pulled, which the serialiser should leave where they
+	** are (see {@link plugins.Library.serial.Packer#push(Map, Object)}),
+	** though it may give some of them new metadata. The other loaded values
+	** are not passed to the serialiser at all, since they have no metadata
+	** to keep; they stay loaded. If the value for the key has not been
+	** changed since it was pulled, this does nothing.
+	*/
 	@Override public void deflate(K key) throws TaskAbortException {
-		// TODO: redesign this, or the bin packer
 		if (serialiser == null) { throw new IllegalStateException("No serialiser set for this structure."); }
+		if (!isChanged(key)) { return; }
+		int j = search(key);
 
-		Map<K, PushTask<V>> tasks = new HashMap<K, PushTask<V>>(size()*2);
-		for (K k: keySet()) {
-			// PRIORITY there ought to be a better way of doing things than this. the
-			// whole system could be redesigned at some point to allow smoother partial
-			// writes of indexes
-
-			// also, at the moment, even the Packer does not support this
-			tasks.put(k, new PushTask<V>(k.equals(key)? get(k): null, loaded.get(k)));
+		Map<K, PushTask<V>> tasks = new HashMap<K, PushTask<V>>((dummyCount+1)*2);
+		for (int i=0; i<size; ++i) {
+			PushTask<V> task = pushTask(i);
+			if (task.data == null) { tasks.put(keys[i], task); }
 		}
-		//try {
-			serialiser.push(tasks, mapmeta);
-		//} catch (DataNotLoadedException e) {
-		//	throw new DataNotLoadedException("The deflate operation requires some extra data to be loaded first", this, (K)e.getKey(), e.getValue());
-		//}
+		tasks.put(key, new PushTask<V>(vals[j]));
+		serialiser.push(tasks, mapmeta);
 
 		for (Map.Entry<K, PushTask<V>> en: tasks.entrySet()) {
-			if (en.getValue().data != null) {
-				putDummy(en.getKey(), en.getValue().meta);
+			K k = en.getKey();
+			Object m = en.getValue().meta;
+			if (cleanmeta != null && cleanmeta.containsKey(k)) {
+				// values that were pulled may have been moved to other bins too
+				cleanmeta.put(k, m);
+			} else if (getDummy(k) != m) {
+				putDummy(k, m);
 			}
 		}
 	}
 
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation has no executor, and always blocks until the
+	** lookup is done, since there is at most one pull to wait for.
+	*/
+	public Future<V> getAsync(final K key) {
+		FutureTask<V> future = new FutureTask<V>(new Callable<V>() {
+			public V call() throws TaskAbortException {
+				if (getDummy(key) != null) { inflate(key); }
+				return get(key);
+			}
+		});
+		future.run();
+		return future;
+	}
+
 	/************************************************************************
-	** {@link Translator} with access to the members of {@link TreeMap}.
+	** {@link Translator} with access to the members of {@link
+	** SkeletonTreeMap}.
 	**
 	** This implementation provides static methods to translate between this
 	** class and a map from ({@link String} forms of the key) to ({@link
@@ -230,14 +454,9 @@ implements SkeletonMap<K, V> {
 				throw new UnsupportedOperationException("Sorry, this translator does not (yet) support comparators");
 			}
 			// OPTIMISE maybe get rid of intm and just always use IdentityHashMap
-			if (ktr != null) {
-				for (Map.Entry<K, Object> en: map.loaded.entrySet()) {
-					intm.put(ktr.app(en.getKey()), en.getValue());
-				}
-			} else {
-				for (Map.Entry<K, Object> en: map.loaded.entrySet()) {
-					intm.put(en.getKey().toString(), en.getValue());
-				}
+			for (int i=0; i<map.size; ++i) {
+				K key = map.keys[i];
+				intm.put((ktr != null)? ktr.app(key): key.toString(), ((Dummy)map.vals[i]).meta);
 			}
 			return intm;
 		}
@@ -251,58 +470,168 @@ implements SkeletonMap<K, V> {
 		** @param ktr A translator between key and {@link String}
 		*/
 		public static <K, V> SkeletonTreeMap<K, V> rev(Map<String, Object> intm, SkeletonTreeMap<K, V> map, Translator<K, String> ktr) {
+			// the String forms of the keys need not sort in the same order as the
+			// keys, so sort the keys first, so that they are all appended
+			List<K> keys = new ArrayList<K>(intm.size());
+			Map<K, Object> metas = new HashMap<K, Object>(intm.size()*2);
 			if (ktr == null) {
 				try {
 					for (Map.Entry<String, Object> en: intm.entrySet()) {
-						map.putDummy((K)en.getKey(), en.getValue());
+						K key = (K)en.getKey();
+						keys.add(key);
+						metas.put(key, en.getValue());
 					}
 				} catch (ClassCastException e) {
 					throw new DataFormatException("TreeMapTranslator: reverse translation failed. Try supplying a non-null key-translator.", e, null, null, null);
 				}
 			} else {
 				for (Map.Entry<String, Object> en: intm.entrySet()) {
-					map.putDummy(ktr.rev(en.getKey()), en.getValue());
+					K key = ktr.rev(en.getKey());
+					keys.add(key);
+					metas.put(key, en.getValue());
 				}
 			}
+			Collections.sort(keys, map.comparator());
+			map.ensureCapacity(map.size() + keys.size());
+			for (K key: keys) {
+				map.putDummy(key, metas.get(key));
+			}
 			return map;
 		}
 
 	}
 
 	/*========================================================================
-	  public class TreeMap
+	  public class SortedArrayMap
 	 ========================================================================*/
 
-	@Override public void clear() {
-		super.clear();
-		loaded.clear();
+	/**
+	** {@inheritDoc}
+	**
+	** @throws DataNotLoadedException if the value has not been loaded
+	*/
+	@Override public V valueAt(int i) {
+		V v = super.valueAt(i);
+		if (v instanceof Dummy) {
+			Object o = ((Dummy)v).meta;
+			throw new DataNotLoadedException("Data not loaded for key " + keys[i] + ": " + o, this, keys[i], o);
+		}
+		return v;
 	}
 
-	@Override public int size() { return loaded.size(); }
+	/**
+	** {@inheritDoc}
+	**
+	** NOTE: if the value at the index hasn't been loaded yet, then this
+	** method will return **null** instead of returning the actual previous
+	** value (that hasn't been loaded yet).
+	*/
+	@Override public V setValueAt(int i, V value) {
+		if (cleanmeta != null) { cleanmeta.remove(keys[i]); }
+		V old = super.setValueAt(i, value);
+		if (old instanceof Dummy) {
+			--dummyCount;
+			return null;
+		}
+		return old;
+	}
 
-	@Override public Object clone() {
-		return new SkeletonTreeMap(this);
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation returns {@code false} if the value has not been
+	** loaded.
+	*/
+	@Override public boolean hasValueAt(int i) {
+		if (i >= size) { throw new IndexOutOfBoundsException(); }
+		return !(vals[i] instanceof Dummy);
 	}
 
-	@Override public Comparator<? super K> comparator() { return super.comparator(); }
+	/**
+	** {@inheritDoc}
+	**
+	** NOTE: if the value at the index hasn't been loaded yet, then this
+	** method will return **null** instead of returning the actual previous
+	** value (that hasn't been loaded yet).
+	*/
+	@Override public V removeAt(int i) {
+		V old = super.removeAt(i);
+		return (old instanceof Dummy)? null: old;
+	}
 
-	@Override public boolean containsKey(Object key) { return loaded.containsKey(key); }
+	@Override public void removeRange(int from, int to) {
+		if (from < 0 || to > size || from > to) { throw new IndexOutOfBoundsException(); }
+		for (int i=from; i<to; ++i) {
+			if (vals[i] instanceof Dummy) { --dummyCount; }
+			if (cleanmeta != null) { cleanmeta.remove(keys[i]); }
+		}
+		super.removeRange(from, to);
+	}
 
-	@Override public boolean containsValue(Object value) {
-		// TODO maybe make this iterate through values()
-		if (!isLive()) {
-			throw new DataNotLoadedException("TreeMap not fully loaded.", this);
-		} else {
-			return super.containsValue(value);
+	/**
+	** {@inheritDoc}
+	**
+	** A value that has not been loaded can only be moved into another {@code
+	** SkeletonTreeMap} with the same serialiser, and only if that is a {@link
+	** MapSerialiser.Relocatable} which says that the value's metadata does
+	** not need the metadata of this map; otherwise the value must be loaded
+	** first.
+	**
+	** @throws DataNotLoadedException if any of the values in the range have
+	**         not been loaded and can't be moved without that
+	*/
+	@Override public void checkMove(SortedArrayMap<K, V> dst, int from, int to) {
+		super.checkMove(dst, from, to);
+		if (dummyCount == 0) { return; }
+		boolean relocatable = dst instanceof SkeletonTreeMap
+		  && ((SkeletonTreeMap<K, V>)dst).serialiser == serialiser
+		  && serialiser instanceof MapSerialiser.Relocatable;
+		for (int i=from; i<to; ++i) {
+			if (!(vals[i] instanceof Dummy)) { continue; }
+			Object o = ((Dummy)vals[i]).meta;
+			if (relocatable && ((MapSerialiser.Relocatable<K, V>)serialiser).isSelfContained(o)) { continue; }
+			throw new DataNotLoadedException("Data not loaded for key " + keys[i] + ": " + o, this, keys[i], o);
 		}
 	}
 
-	@Override public V get(Object key) {
-		Object o = loaded.get(key);
-		if (o != null) {
-			throw new DataNotLoadedException("Data not loaded for key " + key + ": " + o, this, (K)key, o);
+	/**
+	** {@inheritDoc}
+	**
+	** Values that have not been loaded are moved as they are, if {@link
+	** #checkMove(SortedArrayMap, int, int)} allows it.
+	**
+	** @throws DataNotLoadedException if any of the values in the range have
+	**         not been loaded and can't be moved; nothing is moved in this
+	**         case
+	*/
+	@Override public void moveTo(SortedArrayMap<K, V> dst, int from, int to) {
+		int moved = 0;
+		if (dummyCount > 0) {
+			for (int i=from; i<to; ++i) {
+				if (vals[i] instanceof Dummy) { ++moved; }
+			}
 		}
-		return super.get(key);
+		// this checks the move before anything is changed
+		super.moveTo(dst, from, to);
+		if (moved > 0) { ((SkeletonTreeMap<K, V>)dst).dummyCount += moved; }
+	}
+
+	/*========================================================================
+	  public interface Map
+	 ========================================================================*/
+
+	@Override public Object clone() {
+		return new SkeletonTreeMap<K, V>(this);
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** @throws DataNotLoadedException if a value that has not been loaded is
+	**         reached before the given value is found
+	*/
+	@Override public boolean containsValue(Object value) {
+		return super.containsValue(value);
 	}
 
 	/**
@@ -317,13 +646,9 @@ implements SkeletonMap<K, V> {
 	** the user's discretion.
 	*/
 	@Override public V put(K key, V value) {
-		Object o = loaded.put(key, null);
-		if (o != null) { --dummyCount; }
 		return super.put(key, value);
 	}
 
-	//public void putAll(Map<? extends K,? extends V> map);
-
 	/**
 	** {@inheritDoc}
 	**
@@ -336,182 +661,51 @@ implements SkeletonMap<K, V> {
 	** the user's discretion.
 	*/
 	@Override public V remove(Object key) {
-		loaded.remove(key);
 		return super.remove(key);
 	}
 
-	private Set<Map.Entry<K,V>> entries;
-	@Override public Set<Map.Entry<K,V>> entrySet() {
-		if (entries == null) {
-			entries = new AbstractSet<Map.Entry<K, V>>() {
-
-				public int size() { return SkeletonTreeMap.this.size(); }
-
-				public Iterator<Map.Entry<K, V>> iterator() {
-					return new CombinedIterator(SkeletonTreeMap.super.entrySet().iterator(), SkeletonTreeMap.this.loaded.entrySet().iterator(), CombinedIterator.ENTRY);
-				}
-
-				public void clear() {
-					SkeletonTreeMap.this.clear();
-				}
-
-				public boolean contains(Object o) {
-					if (!(o instanceof Map.Entry)) { return false; }
-					Map.Entry e = (Map.Entry)o;
-					return SkeletonTreeMap.this.get(e.getKey()).equals(e.getValue());
-				}
-
-				public boolean remove(Object o) {
-					boolean c = contains(o);
-					if (c) {
-						Map.Entry e = (Map.Entry)o;
-						SkeletonTreeMap.this.remove(e.getKey());
-					}
-					return c;
-				}
-
-			};
-		}
-		return entries;
-	}
-
-	private Set<K> keys;
-	@Override public Set<K> keySet() {
-		if (keys == null) {
-			keys = new AbstractSet<K>() {
-
-				public int size() { return SkeletonTreeMap.this.size(); }
-
-				public Iterator<K> iterator() {
-					return new CombinedIterator(SkeletonTreeMap.super.keySet().iterator(), SkeletonTreeMap.this.loaded.entrySet().iterator(), CombinedIterator.KEY);
-				}
-
-				public void clear() { SkeletonTreeMap.this.clear(); }
-
-				public boolean contains(Object o) {
-					return SkeletonTreeMap.this.containsKey(o);
-				}
-
-				public boolean remove(Object o) {
-					boolean c = contains(o);
-					SkeletonTreeMap.this.remove(o);
-					return c;
-				}
-
-			};
-		}
-		return keys;
-	}
-
-	private Collection<V> values;
-	@Override public Collection<V> values() {
-		if (values == null) {
-			values = new AbstractCollection<V>() {
-
-				public int size() { return SkeletonTreeMap.this.size(); }
-
-				public Iterator<V> iterator() {
-					return new CombinedIterator(SkeletonTreeMap.super.values().iterator(), SkeletonTreeMap.this.loaded.entrySet().iterator(), CombinedIterator.VALUE);
-				}
-
-				public void clear() { SkeletonTreeMap.this.clear(); }
-
-			};
-		}
-		return values;
-	}
-
-	@Override public K firstKey() { return loaded.firstKey(); }
-
-	@Override public K lastKey() { return loaded.lastKey(); }
-
-	@Override public SortedMap<K,V> headMap(K toKey) {
-		throw new UnsupportedOperationException("Not implemented.");
-	}
-
-	@Override public SortedMap<K,V> subMap(K fromKey, K toKey) {
-		throw new UnsupportedOperationException("Not implemented.");
-	}
-
-	@Override public SortedMap<K,V> tailMap(K fromKey) {
-		return super.tailMap(fromKey);
-		// URGENT: this is ONLY here for SkeletonBTreeMap
-		//throw new UnsupportedOperationException("Not implemented.");
-	}
-
-
 	/*========================================================================
 	  public class AbstractMap
 	 ========================================================================*/
 
+	/**
+	** {@inheritDoc}
+	**
+	** Two skeleton maps are equal if they have the same keys, the same loaded
+	** values, and the same metadata for the values that are not loaded. Any
+	** other map is compared as for {@link
+	** java.util.AbstractMap#equals(Object)}, which needs every value of this
+	** map to be loaded.
+	**
+	** @throws DataNotLoadedException if the other map is not a skeleton map,
+	**         and a value of this map that it has to look at is not loaded
+	*/
 	@Override public boolean equals(Object o) {
-		if (!(o instanceof SkeletonTreeMap)) { return false; }
-		return super.equals(o) && loaded.equals(((SkeletonTreeMap)o).loaded);
+		if (!(o instanceof SkeletonTreeMap)) { return super.equals(o); }
+		SkeletonTreeMap m = (SkeletonTreeMap)o;
+		if (m.size != size) { return false; }
+		for (int i=0; i<size; ++i) {
+			Object k = keys[i], v = vals[i];
+			if (!(k == null? m.keys[i] == null: k.equals(m.keys[i]))) { return false; }
+			if (!(v == null? m.vals[i] == null: v.equals(m.vals[i]))) { return false; }
+		}
+		return true;
 	}
 
-	@Override public int hashCode() { return super.hashCode() ^ loaded.hashCode(); }
-
-	@Override public boolean isEmpty() { return loaded.isEmpty(); }
-
-	// public String toString() { return super.toString(); }
-
-	/************************************************************************
-	** Iterator that goes through both the loaded map and the object map at the
-	** same time, throwing {@link DataNotLoadedException} when it encounters
-	** meta elements. After this occurs, all subsequent attempts to fetch the
-	** next value will fail with {@link IllegalStateException} with the cause
-	** set to the {@link DataNotLoadedException} that was thrown.
+	/**
+	** {@inheritDoc}
 	**
-	** @author infinity0
+	** A value that is not loaded adds the hash code of its metadata in its
+	** place, so a fully loaded map has the same hash code as any other map
+	** that it is equal to.
 	*/
-	private class CombinedIterator<T> implements Iterator<T> {
-
-		final private Iterator<T> iter;
-		final private Iterator<Map.Entry<K, V>> iterloaded;
-
-		final private int type;
-		final private static int KEY = 0;
-		final private static int VALUE = 1;
-		final private static int ENTRY = 2;
-
-		RuntimeException exceptionThrown;
-
-		CombinedIterator(Iterator<T> it, Iterator<Map.Entry<K, V>> itl, int t) {
-			iter = it;
-			iterloaded = itl;
-			type = t;
+	@Override public int hashCode() {
+		int h = 0;
+		for (int i=0; i<size; ++i) {
+			Object k = keys[i], v = vals[i];
+			h += (k == null? 0: k.hashCode()) ^ (v == null? 0: v.hashCode());
 		}
-
-		public boolean hasNext() {
-			return iterloaded.hasNext();
-		}
-
-		public T next() throws DataNotLoadedException {
-
-			if (exceptionThrown != null) {
-				throw new IllegalStateException(exceptionThrown);
-			}
-
-			Map.Entry<K, V> e = iterloaded.next();
-			T n = iter.next();
-
-			switch(type) {
-			case ENTRY:
-			case VALUE:
-				if (e.getValue() != null) {
-					throw exceptionThrown = new DataNotLoadedException("Data not loaded for key " + e.getKey() + ": " + e.getValue(), SkeletonTreeMap.this, e.getKey(), e.getValue());
-				}
-				break;
-			}
-
-			return n;
-		}
-
-		public void remove() {
-			iterloaded.remove();
-			iter.remove();
-		}
-
+		return h;
 	}
 
 }
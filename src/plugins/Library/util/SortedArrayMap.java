@@ -0,0 +1,653 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.Map;
+import java.util.AbstractSet;
+import java.util.AbstractMap;
+import java.util.SortedMap;
+import java.util.NoSuchElementException;
+import java.util.ConcurrentModificationException;
+
+/**
+** A {@link SortedMap} backed by two parallel sorted arrays of keys and
+** values. Lookups use binary search; insertions and removals shift the tail
+** of the arrays along by one.
+**
+** This is much more compact than a {@link java.util.TreeMap}, since it does
+** not create an entry object for each mapping, and is meant to be used for
+** the nodes of a {@link BTreeMap}, which are only ever modified in bulk or
+** one element at a time. It also exposes the position of each mapping, so
+** that callers can do positional lookups and bulk moves between maps without
+** going through the {@link SortedMap} interface.
+**
+** The comparator (if given) may admit {@code null} keys, in which case they
+** are treated just like any other key.
+**
+** This implementation is NOT thread-safe.
+**
+** @author infinity0
+*/
+public class SortedArrayMap<K, V> extends AbstractMap<K, V>
+implements Map<K, V>, SortedMap<K, V> {
+
+	/**
+	** Default initial capacity.
+	*/
+	final public static int DEFAULT_CAPACITY = 8;
+
+	/**
+	** Comparator for this {@link SortedMap}.
+	*/
+	final protected Comparator<? super K> comparator;
+
+	/**
+	** Sorted array of keys. Only the first {@link #size} elements are valid.
+	*/
+	protected K[] keys;
+
+	/**
+	** Array of values, parallel to {@link #keys}.
+	*/
+	protected V[] vals;
+
+	/**
+	** Number of mappings in the map.
+	*/
+	protected int size;
+
+	/**
+	** Number of modifications made to the map, used by the iterators to
+	** detect concurrent modification.
+	*/
+	protected transient int modCount;
+
+	public SortedArrayMap(Comparator<? super K> cmp, int capacity) {
+		comparator = cmp;
+		keys = (K[])new Object[capacity];
+		vals = (V[])new Object[capacity];
+	}
+
+	public SortedArrayMap(Comparator<? super K> cmp) {
+		this(cmp, DEFAULT_CAPACITY);
+	}
+
+	public SortedArrayMap() {
+		this(null, DEFAULT_CAPACITY);
+	}
+
+	/**
+	** Creates a new map with the same mappings and comparator as the given
+	** map. This is a straight copy of the arrays.
+	*/
+	public SortedArrayMap(SortedArrayMap<K, ? extends V> m) {
+		this(m.comparator, m.keys.length);
+		System.arraycopy(m.keys, 0, keys, 0, m.size);
+		System.arraycopy(m.vals, 0, vals, 0, m.size);
+		size = m.size;
+	}
+
+	/**
+	** Compares two keys using the comparator for this map, or the keys'
+	** {@link Comparable natural} ordering if no comparator was given.
+	*/
+	protected int compare(K key1, K key2) {
+		return (comparator != null)? comparator.compare(key1, key2): ((Comparable<K>)key1).compareTo(key2);
+	}
+
+	/**
+	** Binary search for the given key.
+	**
+	** @return The index of the key, if it is in the map; otherwise {@code
+	**         (-(insertion point) - 1)}, just like {@link
+	**         java.util.Arrays#binarySearch(Object[], Object)}.
+	*/
+	public int search(Object k) {
+		K key = (K)k;
+		int lo = 0, hi = size-1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int c = compare(keys[mid], key);
+			if (c < 0) {
+				lo = mid + 1;
+			} else if (c > 0) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -(lo + 1);
+	}
+
+	/**
+	** Returns the index of the smallest key greater than or equal to the
+	** given key, or {@link #size()} if there is no such key.
+	*/
+	public int ceilingIndex(K key) {
+		int i = search(key);
+		return (i < 0)? -(i + 1): i;
+	}
+
+	public K keyAt(int i) {
+		if (i >= size) { throw new IndexOutOfBoundsException(); }
+		return keys[i];
+	}
+
+	public V valueAt(int i) {
+		if (i >= size) { throw new IndexOutOfBoundsException(); }
+		return vals[i];
+	}
+
+	public V setValueAt(int i, V value) {
+		if (i >= size) { throw new IndexOutOfBoundsException(); }
+		V old = vals[i];
+		vals[i] = value;
+		return old;
+	}
+
+	/**
+	** Whether {@link #valueAt(int)} can return the value at the given index
+	** straight away. This implementation always returns {@code true}; it is
+	** for subclasses that keep something other than the actual value in some
+	** slots, and which look up the value in {@link #valueAt(int)}.
+	**
+	** All reads and writes of values go through {@link #valueAt(int)} and
+	** {@link #setValueAt(int, Object)}, so such subclasses need only override
+	** those.
+	*/
+	public boolean hasValueAt(int i) {
+		return true;
+	}
+
+	/**
+	** Makes sure there is space for at least the given number of mappings.
+	*/
+	public void ensureCapacity(int n) {
+		if (n <= keys.length) { return; }
+		int cap = keys.length + (keys.length >> 1) + 1;
+		if (cap < n) { cap = n; }
+		K[] nkeys = (K[])new Object[cap];
+		V[] nvals = (V[])new Object[cap];
+		System.arraycopy(keys, 0, nkeys, 0, size);
+		System.arraycopy(vals, 0, nvals, 0, size);
+		keys = nkeys;
+		vals = nvals;
+	}
+
+	/**
+	** Inserts a mapping at the given index, shifting the tail along. The
+	** caller must make sure this keeps the keys in order.
+	*/
+	protected void insertAt(int i, K key, V value) {
+		ensureCapacity(size + 1);
+		System.arraycopy(keys, i, keys, i+1, size-i);
+		System.arraycopy(vals, i, vals, i+1, size-i);
+		keys[i] = key;
+		vals[i] = value;
+		++size;
+		++modCount;
+	}
+
+	/**
+	** Removes the mapping at the given index, and returns its value.
+	*/
+	public V removeAt(int i) {
+		if (i >= size) { throw new IndexOutOfBoundsException(); }
+		V old = vals[i];
+		removeRange(i, i+1);
+		return old;
+	}
+
+	/**
+	** Removes all mappings in the given range of indexes.
+	**
+	** @param from Index of the first mapping to remove (inclusive)
+	** @param to Index of the last mapping to remove (exclusive)
+	*/
+	public void removeRange(int from, int to) {
+		if (from < 0 || to > size || from > to) { throw new IndexOutOfBoundsException(); }
+		int n = to - from;
+		if (n == 0) { return; }
+		System.arraycopy(keys, to, keys, from, size-to);
+		System.arraycopy(vals, to, vals, from, size-to);
+		for (int i=size-n; i<size; ++i) {
+			keys[i] = null;
+			vals[i] = null;
+		}
+		size -= n;
+		++modCount;
+	}
+
+	/**
+	** Checks that a range of mappings can be moved into another map by
+	** {@link #moveTo(SortedArrayMap, int, int)}, without moving anything.
+	** Code that makes several moves which must all happen or not at all can
+	** call this for each of them first.
+	**
+	** This implementation only checks the range, since any mapping can be
+	** moved; subclasses which hold mappings that can't be should throw an
+	** exception that says why.
+	**
+	** @param dst The map to move the mappings into
+	** @param from Index of the first mapping to move (inclusive)
+	** @param to Index of the last mapping to move (exclusive)
+	*/
+	public void checkMove(SortedArrayMap<K, V> dst, int from, int to) {
+		if (from < 0 || to > size || from > to) { throw new IndexOutOfBoundsException(); }
+	}
+
+	/**
+	** Moves a range of mappings from this map into another map. The keys in
+	** the range must all be either strictly smaller or strictly greater than
+	** each of the keys in the other map that they would be adjacent to. In
+	** other words, the range must not need to be interleaved with the other
+	** map's mappings. It is up to the calling code to ensure that this holds.
+	**
+	** @param dst The map to move the mappings into
+	** @param from Index of the first mapping to move (inclusive)
+	** @param to Index of the last mapping to move (exclusive)
+	** @see #checkMove(SortedArrayMap, int, int)
+	*/
+	public void moveTo(SortedArrayMap<K, V> dst, int from, int to) {
+		checkMove(dst, from, to);
+		int n = to - from;
+		if (n == 0) { return; }
+		int i = dst.ceilingIndex(keys[from]);
+		assert(i == dst.size || dst.compare(keys[to-1], dst.keys[i]) < 0);
+
+		dst.ensureCapacity(dst.size + n);
+		System.arraycopy(dst.keys, i, dst.keys, i+n, dst.size-i);
+		System.arraycopy(dst.vals, i, dst.vals, i+n, dst.size-i);
+		System.arraycopy(keys, from, dst.keys, i, n);
+		System.arraycopy(vals, from, dst.vals, i, n);
+		dst.size += n;
+		++dst.modCount;
+
+		removeRange(from, to);
+	}
+
+	/*========================================================================
+	  public interface Map
+	 ========================================================================*/
+
+	@Override public int size() {
+		return size;
+	}
+
+	@Override public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override public void clear() {
+		removeRange(0, size);
+	}
+
+	@Override public boolean containsKey(Object key) {
+		return search(key) >= 0;
+	}
+
+	@Override public V get(Object key) {
+		int i = search(key);
+		return (i < 0)? null: valueAt(i);
+	}
+
+	@Override public V put(K key, V value) {
+		// fast path for appends, which is what the bulk-loader does
+		if (size > 0 && compare(keys[size-1], key) < 0) {
+			insertAt(size, key, value);
+			return null;
+		}
+		int i = search(key);
+		if (i >= 0) { return setValueAt(i, value); }
+		insertAt(-(i + 1), key, value);
+		return null;
+	}
+
+	@Override public V remove(Object key) {
+		int i = search(key);
+		return (i < 0)? null: removeAt(i);
+	}
+
+	private Set<Map.Entry<K, V>> entrySet = null;
+	@Override public Set<Map.Entry<K, V>> entrySet() {
+		if (entrySet == null) {
+			entrySet = new AbstractSet<Map.Entry<K, V>>() {
+
+				@Override public int size() { return size; }
+
+				@Override public Iterator<Map.Entry<K, V>> iterator() {
+					return new Iterator<Map.Entry<K, V>>() {
+
+						int next = 0;
+						int last = -1;
+						int expectedModCount = modCount;
+
+						@Override public boolean hasNext() {
+							return next < size;
+						}
+
+						@Override public Map.Entry<K, V> next() {
+							if (modCount != expectedModCount) { throw new ConcurrentModificationException(); }
+							if (next >= size) { throw new NoSuchElementException(); }
+							last = next++;
+							return new ArrayEntry(last);
+						}
+
+						@Override public void remove() {
+							if (last < 0) { throw new IllegalStateException(); }
+							if (modCount != expectedModCount) { throw new ConcurrentModificationException(); }
+							removeAt(last);
+							next = last;
+							last = -1;
+							expectedModCount = modCount;
+						}
+
+					};
+				}
+
+				@Override public void clear() {
+					SortedArrayMap.this.clear();
+				}
+
+				@Override public boolean contains(Object o) {
+					if (!(o instanceof Map.Entry)) { return false; }
+					Map.Entry e = (Map.Entry)o;
+					int i = search(e.getKey());
+					if (i < 0) { return false; }
+					V v = valueAt(i);
+					return v == null? e.getValue() == null: v.equals(e.getValue());
+				}
+
+				@Override public boolean remove(Object o) {
+					if (contains(o)) {
+						removeAt(search(((Map.Entry)o).getKey()));
+						return true;
+					}
+					return false;
+				}
+
+			};
+		}
+		return entrySet;
+	}
+
+	/*========================================================================
+	  public interface SortedMap
+	 ========================================================================*/
+
+	@Override public Comparator<? super K> comparator() {
+		return comparator;
+	}
+
+	@Override public K firstKey() {
+		if (size == 0) { throw new NoSuchElementException(); }
+		return keys[0];
+	}
+
+	@Override public K lastKey() {
+		if (size == 0) { throw new NoSuchElementException(); }
+		return keys[size-1];
+	}
+
+	@Override public SortedMap<K, V> headMap(K rkey) {
+		return new SubMap(null, false, rkey, true);
+	}
+
+	@Override public SortedMap<K, V> tailMap(K lkey) {
+		return new SubMap(lkey, true, null, false);
+	}
+
+	@Override public SortedMap<K, V> subMap(K lkey, K rkey) {
+		if (compare(lkey, rkey) > 0) { throw new IllegalArgumentException("fromKey > toKey"); }
+		return new SubMap(lkey, true, rkey, true);
+	}
+
+	/************************************************************************
+	** A view of the mappings between two (optional) bounds. The bounds are
+	** turned into a range of indexes each time the view is used, so it
+	** stays in step with changes to the backing map.
+	*/
+	protected class SubMap extends AbstractMap<K, V>
+	implements Map<K, V>, SortedMap<K, V> {
+
+		/**
+		** Lower bound (inclusive), if {@link #lo}.
+		*/
+		final K lkey;
+
+		/**
+		** Upper bound (exclusive), if {@link #hi}.
+		*/
+		final K rkey;
+
+		final boolean lo;
+		final boolean hi;
+
+		SubMap(K l, boolean lb, K r, boolean rb) {
+			lkey = l;
+			lo = lb;
+			rkey = r;
+			hi = rb;
+		}
+
+		protected boolean inRange(Object k) {
+			K key = (K)k;
+			return (!lo || compare(key, lkey) >= 0) && (!hi || compare(key, rkey) < 0);
+		}
+
+		/**
+		** Whether the key can be a bound of a view of this view.
+		*/
+		protected boolean inClosedRange(K key) {
+			return (!lo || compare(key, lkey) >= 0) && (!hi || compare(key, rkey) <= 0);
+		}
+
+		/**
+		** Index of the first mapping in the view.
+		*/
+		protected int from() {
+			return lo? ceilingIndex(lkey): 0;
+		}
+
+		/**
+		** Index after the last mapping in the view.
+		*/
+		protected int to() {
+			return hi? ceilingIndex(rkey): size;
+		}
+
+		@Override public int size() {
+			int n = to() - from();
+			return (n < 0)? 0: n;
+		}
+
+		@Override public boolean isEmpty() {
+			return size() == 0;
+		}
+
+		@Override public void clear() {
+			int from = from(), to = to();
+			if (from < to) { removeRange(from, to); }
+		}
+
+		@Override public boolean containsKey(Object key) {
+			return inRange(key) && SortedArrayMap.this.containsKey(key);
+		}
+
+		@Override public V get(Object key) {
+			return inRange(key)? SortedArrayMap.this.get(key): null;
+		}
+
+		@Override public V put(K key, V value) {
+			if (!inRange(key)) { throw new IllegalArgumentException("key out of range"); }
+			return SortedArrayMap.this.put(key, value);
+		}
+
+		@Override public V remove(Object key) {
+			return inRange(key)? SortedArrayMap.this.remove(key): null;
+		}
+
+		private Set<Map.Entry<K, V>> entrySet = null;
+		@Override public Set<Map.Entry<K, V>> entrySet() {
+			if (entrySet == null) {
+				entrySet = new AbstractSet<Map.Entry<K, V>>() {
+
+					@Override public int size() { return SubMap.this.size(); }
+
+					@Override public Iterator<Map.Entry<K, V>> iterator() {
+						return new Iterator<Map.Entry<K, V>>() {
+
+							int next = from();
+							int end = to();
+							int last = -1;
+							int expectedModCount = modCount;
+
+							@Override public boolean hasNext() {
+								return next < end;
+							}
+
+							@Override public Map.Entry<K, V> next() {
+								if (modCount != expectedModCount) { throw new ConcurrentModificationException(); }
+								if (next >= end) { throw new NoSuchElementException(); }
+								last = next++;
+								return new ArrayEntry(last);
+							}
+
+							@Override public void remove() {
+								if (last < 0) { throw new IllegalStateException(); }
+								if (modCount != expectedModCount) { throw new ConcurrentModificationException(); }
+								removeAt(last);
+								next = last;
+								--end;
+								last = -1;
+								expectedModCount = modCount;
+							}
+
+						};
+					}
+
+					@Override public void clear() {
+						SubMap.this.clear();
+					}
+
+					@Override public boolean contains(Object o) {
+						if (!(o instanceof Map.Entry)) { return false; }
+						Map.Entry e = (Map.Entry)o;
+						return inRange(e.getKey()) && SortedArrayMap.this.entrySet().contains(e);
+					}
+
+					@Override public boolean remove(Object o) {
+						return contains(o) && SortedArrayMap.this.entrySet().remove(o);
+					}
+
+				};
+			}
+			return entrySet;
+		}
+
+		@Override public Comparator<? super K> comparator() {
+			return comparator;
+		}
+
+		@Override public K firstKey() {
+			int from = from();
+			if (from >= to()) { throw new NoSuchElementException(); }
+			return keys[from];
+		}
+
+		@Override public K lastKey() {
+			int to = to();
+			if (from() >= to) { throw new NoSuchElementException(); }
+			return keys[to-1];
+		}
+
+		@Override public SortedMap<K, V> headMap(K r) {
+			if (!inClosedRange(r)) { throw new IllegalArgumentException("key out of range"); }
+			return new SubMap(lkey, lo, r, true);
+		}
+
+		@Override public SortedMap<K, V> tailMap(K l) {
+			if (!inClosedRange(l)) { throw new IllegalArgumentException("key out of range"); }
+			return new SubMap(l, true, rkey, hi);
+		}
+
+		@Override public SortedMap<K, V> subMap(K l, K r) {
+			if (!inClosedRange(l) || !inClosedRange(r)) { throw new IllegalArgumentException("key out of range"); }
+			if (compare(l, r) > 0) { throw new IllegalArgumentException("fromKey > toKey"); }
+			return new SubMap(l, true, r, true);
+		}
+
+	}
+
+	/************************************************************************
+	** A {@link Map.Entry} that writes through to the arrays. The entry stays
+	** valid across shifts of the arrays, by re-locating its key if needed.
+	*/
+	protected class ArrayEntry implements Map.Entry<K, V> {
+
+		final K key;
+		int index;
+
+		/**
+		** Last value seen, returned if the entry is no longer in the map.
+		*/
+		V value;
+
+		ArrayEntry(int i) {
+			index = i;
+			key = keys[i];
+			if (hasValueAt(i)) { value = vals[i]; }
+		}
+
+		/**
+		** @return The current index of the entry, or -1 if it was removed.
+		*/
+		int locate() {
+			if (index < 0 || index >= size || keys[index] != key) {
+				index = search(key);
+			}
+			return index;
+		}
+
+		@Override public K getKey() {
+			return key;
+		}
+
+		@Override public V getValue() {
+			int i = locate();
+			if (i >= 0) { value = valueAt(i); }
+			return value;
+		}
+
+		@Override public V setValue(V v) {
+			int i = locate();
+			if (i < 0) { throw new IllegalStateException("Entry was removed from the map"); }
+			V old = setValueAt(i, v);
+			value = v;
+			return old;
+		}
+
+		@Override public boolean equals(Object o) {
+			if (!(o instanceof Map.Entry)) { return false; }
+			Map.Entry e = (Map.Entry)o;
+			V v = getValue();
+			return (key == null? e.getKey() == null: key.equals(e.getKey()))
+			    && (v == null? e.getValue() == null: v.equals(e.getValue()));
+		}
+
+		@Override public int hashCode() {
+			V v = getValue();
+			return (key == null? 0: key.hashCode()) ^ (v == null? 0: v.hashCode());
+		}
+
+		@Override public String toString() {
+			return key + "=" + getValue();
+		}
+
+	}
+
+}
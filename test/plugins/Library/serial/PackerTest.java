@@ -11,9 +11,12 @@ import plugins.Library.serial.Serialiser.*;
 
 import java.util.Map;
 import java.util.List;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.HashSet;
 import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.Collection;
 
 /**
 ** TODO: toad : unit tests should be reproducible so they can be debugged; it
@@ -32,6 +35,38 @@ public class PackerTest extends TestCase {
 		public void push(PushTask<Map<String, HashSet>> t) {}
 	}, 256, HashSet.class);
 
+	/**
+	** Keeps the bins in memory, by their index, and counts how many are
+	** pulled and pushed.
+	*/
+	static class BinStore implements IterableSerialiser<Map<String, HashSet>> {
+
+		final Map<Object, Map<String, HashSet>> bins = new HashMap<Object, Map<String, HashSet>>();
+		// the bins pushed since this was last cleared
+		final HashSet<Object> pushed = new HashSet<Object>();
+		int pulls, pushes;
+
+		public void pull(PullTask<Map<String, HashSet>> task) {
+			task.data = new HashMap<String, HashSet>(bins.get(((Object[])task.meta)[1]));
+			++pulls;
+		}
+
+		public void push(PushTask<Map<String, HashSet>> task) {
+			bins.put(((Object[])task.meta)[1], new HashMap<String, HashSet>(task.data));
+			pushed.add(((Object[])task.meta)[1]);
+			++pushes;
+		}
+
+		public void pull(Iterable<PullTask<Map<String, HashSet>>> tasks) {
+			for (PullTask<Map<String, HashSet>> task: tasks) { pull(task); }
+		}
+
+		public void push(Iterable<PushTask<Map<String, HashSet>>> tasks) {
+			for (PushTask<Map<String, HashSet>> task: tasks) { push(task); }
+		}
+
+	}
+
 	protected Map<String, PushTask<HashSet>> generateTasks(int[] sizes) {
 		String meta = "dummy metadata";
 		Map<String, PushTask<HashSet>> tasks = new HashMap<String, PushTask<HashSet>>();
@@ -107,6 +142,234 @@ public class PackerTest extends TestCase {
 
 	}
 
+	public void testBinPackRandom() {
+		CollectionPacker<String, Collection> packer = new CollectionPacker<String, Collection>(
+		  (IterableSerialiser)srl.getChildSerialiser(), 256, TreeSet.class);
+		for (int n=0; n<0x10; ++n) {
+			Map<String, PushTask<Collection>> tasks = new HashMap<String, PushTask<Collection>>();
+			int total = 0;
+			for (int i=Generators.rand.nextInt(0x400); i>0; --i) {
+				int size = 1 + Generators.rand.nextInt((Generators.rand.nextInt(8) == 0)? 0x400: 0x40);
+				TreeSet<Integer> ts = new TreeSet<Integer>();
+				for (int j=0; j<size; ++j) { ts.add(j); }
+				tasks.put(Generators.rndStr(), new PushTask<Collection>(ts));
+				total += size;
+			}
+
+			Bin<Collection, String>[] bins = packer.binPack(tasks);
+			int half = 0;
+			Map<String, Integer> last = new HashMap<String, Integer>();
+			for (int i=0; i<bins.length; ++i) {
+				assertTrue(bins[i].getIndex() == i);
+				assertTrue(bins[i].filled() <= 256);
+				if (bins[i].filled() <= 128) { ++half; }
+				total -= bins[i].filled();
+				// the partitions of each element should be in order
+				for (Map.Entry<Collection, String> en: bins[i].entrySet()) {
+					Integer prev = last.get(en.getValue());
+					assertTrue(prev == null || prev < (Integer)((TreeSet)en.getKey()).first());
+					last.put(en.getValue(), (Integer)((TreeSet)en.getKey()).last());
+				}
+			}
+			assertTrue(half <= 1);
+			assertTrue(total == 0);
+		}
+	}
+
+	public void testPartialPush() throws TaskAbortException {
+		BinStore store = new BinStore();
+		CollectionPacker<String, HashSet> packer = new CollectionPacker<String, HashSet>(store, 256, HashSet.class);
+
+		Map<String, PushTask<HashSet>> tasks = generateTasks(new int[]{200, 100, 100, 50, 20, 300});
+		for (PushTask<HashSet> task: tasks.values()) { task.meta = null; }
+		packer.push(tasks, "meta");
+		int bins = store.pushes;
+
+		// update one element, and keep the metadata of the rest
+		String key = tasks.keySet().iterator().next();
+		Map<String, Object> metas = new HashMap<String, Object>();
+		Map<String, PushTask<HashSet>> update = new HashMap<String, PushTask<HashSet>>();
+		for (Map.Entry<String, PushTask<HashSet>> en: tasks.entrySet()) {
+			metas.put(en.getKey(), en.getValue().meta);
+			update.put(en.getKey(), new PushTask<HashSet>(null, en.getValue().meta));
+		}
+		HashSet<Integer> hs = new HashSet<Integer>();
+		for (int i=0; i<10; ++i) { hs.add(-i); }
+		update.put(key, new PushTask<HashSet>(hs));
+
+		// work out which bins are still more than half full without it
+		Map<Object, Integer> loads = new HashMap<Object, Integer>();
+		for (Map.Entry<String, Object> en: metas.entrySet()) {
+			if (en.getKey().equals(key)) { continue; }
+			List<Object> binlist = (List<Object>)((Map)en.getValue()).get("bins");
+			List<Integer> sizes = (List<Integer>)((Map)en.getValue()).get("size");
+			for (int i=0; i<binlist.size(); ++i) {
+				Integer load = loads.get(binlist.get(i));
+				loads.put(binlist.get(i), ((load == null)? 0: load) + sizes.get(i));
+			}
+		}
+
+		packer.push(update, "meta");
+		assertTrue(store.pushes > bins);
+		for (Map.Entry<String, PushTask<HashSet>> en: update.entrySet()) {
+			assertTrue(en.getValue().data == null || en.getKey().equals(key));
+			if (en.getKey().equals(key)) { continue; }
+			// elements in bins that are still more than half full stay there, and
+			// the rest are moved to new bins
+			List<Object> binlist = (List<Object>)((Map)metas.get(en.getKey())).get("bins");
+			if (loads.get(binlist.get(0)) > 128) {
+				assertTrue(en.getValue().meta == metas.get(en.getKey()));
+			} else {
+				for (Object o: (List<Object>)((Map)en.getValue().meta).get("bins")) {
+					assertTrue((Integer)o >= bins);
+				}
+			}
+		}
+
+		// the old partitions of the updated element are skipped
+		Map<String, PullTask<HashSet>> pulls = new HashMap<String, PullTask<HashSet>>();
+		for (Map.Entry<String, PushTask<HashSet>> en: update.entrySet()) {
+			pulls.put(en.getKey(), new PullTask<HashSet>(en.getValue().meta));
+		}
+		packer.pull(pulls, "meta");
+		assertTrue(pulls.size() == tasks.size());
+		assertTrue(pulls.get(key).data.equals(hs));
+		for (Map.Entry<String, PushTask<HashSet>> en: tasks.entrySet()) {
+			if (!en.getKey().equals(key)) { assertTrue(pulls.get(en.getKey()).data.equals(en.getValue().data)); }
+		}
+	}
+
+	public void testIncrementalPush() throws TaskAbortException {
+		BinStore store = new BinStore();
+		CollectionPacker<String, HashSet> packer = new CollectionPacker<String, HashSet>(store, 256, HashSet.class);
+
+		int[] sizes = new int[0x40];
+		for (int i=0; i<sizes.length; ++i) { sizes[i] = 1 + Generators.rand.nextInt(0x40); }
+		Map<String, PushTask<HashSet>> tasks = generateTasks(sizes);
+		for (PushTask<HashSet> task: tasks.values()) { task.meta = null; }
+		packer.push(tasks, "meta");
+
+		Map<String, HashSet> data = new HashMap<String, HashSet>();
+		Map<String, Object> metas = new HashMap<String, Object>();
+		for (Map.Entry<String, PushTask<HashSet>> en: tasks.entrySet()) {
+			data.put(en.getKey(), en.getValue().data);
+			metas.put(en.getKey(), en.getValue().meta);
+		}
+
+		for (int n=0; n<0x40; ++n) {
+			// change, add or remove a few elements
+			Map<String, PushTask<HashSet>> update = new HashMap<String, PushTask<HashSet>>();
+			for (Map.Entry<String, Object> en: metas.entrySet()) {
+				update.put(en.getKey(), new PushTask<HashSet>(null, en.getValue()));
+			}
+			for (int i=Generators.rand.nextInt(4); i>=0; --i) {
+				HashSet<Integer> hs = new HashSet<Integer>();
+				for (int j=Generators.rand.nextInt(0x40); j>=0; --j) { hs.add(-j); }
+				String key = (Generators.rand.nextBoolean())? Generators.rndStr(): update.keySet().iterator().next();
+				update.put(key, new PushTask<HashSet>(hs));
+				data.put(key, hs);
+			}
+			if (Generators.rand.nextBoolean()) {
+				String key = update.keySet().iterator().next();
+				update.remove(key);
+				data.remove(key);
+			}
+			store.pushed.clear();
+			packer.push(update, "meta");
+
+			// at most one bin is half full or less, not counting old partitions
+			Map<Object, Integer> loads = new HashMap<Object, Integer>();
+			Map<String, Object> oldmetas = metas;
+			metas = new HashMap<String, Object>();
+			for (Map.Entry<String, PushTask<HashSet>> en: update.entrySet()) {
+				Map m = (Map)en.getValue().meta;
+				List<Object> binlist = (List<Object>)m.get("bins");
+				List<Integer> size = (List<Integer>)m.get("size");
+				// bins that weren't changed shouldn't have been pushed again
+				if (m == oldmetas.get(en.getKey())) { assertTrue(!store.pushed.contains(binlist.get(0))); }
+				metas.put(en.getKey(), m);
+				for (int i=0; i<binlist.size(); ++i) {
+					Integer load = loads.get(binlist.get(i));
+					loads.put(binlist.get(i), ((load == null)? 0: load) + size.get(i));
+				}
+			}
+			int half = 0;
+			for (Integer load: loads.values()) {
+				assertTrue(load <= 256);
+				if (load <= 128) { ++half; }
+			}
+			assertTrue(half <= 1);
+
+			Map<String, PullTask<HashSet>> pulls = new HashMap<String, PullTask<HashSet>>();
+			for (Map.Entry<String, Object> en: metas.entrySet()) {
+				pulls.put(en.getKey(), new PullTask<HashSet>(en.getValue()));
+			}
+			packer.pull(pulls, "meta");
+			for (Map.Entry<String, HashSet> en: data.entrySet()) {
+				assertTrue(pulls.get(en.getKey()).data.equals(en.getValue()));
+			}
+		}
+	}
+
+	public void testCache() throws TaskAbortException {
+		BinStore store = new BinStore();
+		CollectionPacker<String, HashSet> packer = new CollectionPacker<String, HashSet>(store, 256, HashSet.class);
+		packer.setCacheSize(0x100);
+
+		Map<String, PushTask<HashSet>> tasks = generateTasks(new int[]{400, 200, 100, 100, 50, 20, 300, 10, 10});
+		for (PushTask<HashSet> task: tasks.values()) { task.meta = null; }
+		packer.push(tasks, "meta");
+
+		// the bins we just pushed are cached, so nothing should be pulled
+		for (int i=0; i<2; ++i) {
+			// pull the elements one at a time; each bin should only be pulled once
+			for (Map.Entry<String, PushTask<HashSet>> en: tasks.entrySet()) {
+				Map<String, PullTask<HashSet>> pulls = new HashMap<String, PullTask<HashSet>>();
+				pulls.put(en.getKey(), new PullTask<HashSet>(en.getValue().meta));
+				packer.pull(pulls, "meta");
+				assertTrue(pulls.get(en.getKey()).data.equals(en.getValue().data));
+			}
+			assertTrue(store.pulls == i*store.bins.size());
+			packer.setCacheSize(0);
+			packer.setCacheSize(0x100);
+		}
+
+		// pushing over the bins replaces them in the cache
+		for (PushTask<HashSet> task: tasks.values()) {
+			task.data.add(-1);
+			task.meta = null;
+		}
+		packer.push(tasks, "meta");
+		for (Map.Entry<String, PushTask<HashSet>> en: tasks.entrySet()) {
+			Map<String, PullTask<HashSet>> pulls = new HashMap<String, PullTask<HashSet>>();
+			pulls.put(en.getKey(), new PullTask<HashSet>(en.getValue().meta));
+			packer.pull(pulls, "meta");
+			assertTrue(pulls.get(en.getKey()).data.equals(en.getValue().data));
+		}
+	}
+
+	public void testSelfContained() throws TaskAbortException {
+		BinStore store = new BinStore();
+		CollectionPacker<String, HashSet> packer = new CollectionPacker<String, HashSet>(store, 256, HashSet.class);
+
+		// bins that are referred to by their index need the group metadata
+		Map<String, PushTask<HashSet>> tasks = generateTasks(new int[]{200, 100, 50});
+		for (PushTask<HashSet> task: tasks.values()) { task.meta = null; }
+		packer.push(tasks, "meta");
+		for (PushTask<HashSet> task: tasks.values()) {
+			assertFalse(packer.isSelfContained(task.meta));
+		}
+
+		// bins that the child serialiser gave their own metadata don't
+		Map<String, Object> meta = new HashMap<String, Object>();
+		meta.put("size", Arrays.asList(10, 20));
+		meta.put("bins", Arrays.<Object>asList("bin one", "bin two"));
+		assertTrue(packer.isSelfContained(meta));
+		meta.put("bins", Arrays.<Object>asList("bin one", 2));
+		assertFalse(packer.isSelfContained(meta));
+		assertFalse(packer.isSelfContained(null));
+	}
+
 	// TODO write some more tests for this...
 
 
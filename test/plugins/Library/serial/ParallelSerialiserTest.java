@@ -0,0 +1,59 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.serial;
+
+import junit.framework.TestCase;
+
+import plugins.Library.serial.Serialiser.*;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+** @author infinity0
+*/
+public class ParallelSerialiserTest extends TestCase {
+
+	public void testParallelStart() throws TaskAbortException {
+		final int n = 8;
+		final CountDownLatch started = new CountDownLatch(n);
+		final AtomicInteger together = new AtomicInteger();
+		ParallelSerialiser<String, SimpleProgress> srl = new ParallelSerialiser<String, SimpleProgress>(
+		  new ProgressTracker<String, SimpleProgress>(SimpleProgress.class)) {
+			@Override public void pullLive(PullTask<String> task, SimpleProgress p) {
+				throw new UnsupportedOperationException();
+			}
+			@Override public void pushLive(PushTask<String> task, SimpleProgress p) {
+				p.addTotal(1, true);
+				// each task waits for all of them to have started
+				started.countDown();
+				try {
+					if (started.await(5, TimeUnit.SECONDS)) { together.incrementAndGet(); }
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				task.meta = task.data;
+				p.addPartDone();
+			}
+		};
+		srl.setMaxThreads(n);
+
+		List<PushTask<String>> tasks = new ArrayList<PushTask<String>>();
+		for (int i=0; i<n; ++i) {
+			tasks.add(new PushTask<String>("task " + i));
+		}
+		long t = System.currentTimeMillis();
+		srl.push(tasks);
+		// the group must not have waited for a handler to time out
+		assertEquals(n, together.get());
+		assertTrue(System.currentTimeMillis() - t < 5000);
+		for (PushTask<String> task: tasks) {
+			assertEquals(task.data, task.meta);
+		}
+	}
+
+}
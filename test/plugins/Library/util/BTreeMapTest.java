@@ -10,6 +10,9 @@ import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.NavigableMap;
 
 /**
 ** @author infinity0
@@ -72,4 +75,358 @@ public class BTreeMapTest extends SortedMapTestSkeleton {
 
 	}
 
+	public void testBulkMerge() {
+
+		for (int n=0; n<0x40; ++n) {
+			BTreeMap<String, String> testmap = new BTreeMap<String, String>(2);
+			TreeMap<String, String> backmap = new TreeMap<String, String>();
+			for (int i=0; i<n*4; ++i) {
+				String k = Generators.rndKey(), v = Generators.rndStr();
+				testmap.put(k, v);
+				backmap.put(k, v);
+			}
+
+			for (int r=0; r<4; ++r) {
+				SortedMap<String, String> batch = new TreeMap<String, String>();
+				for (int i=0; i<n*(r+1); ++i) {
+					batch.put(Generators.rndKey(), Generators.rndStr());
+				}
+				// overwrite some existing keys too
+				int i = 0;
+				for (String k: backmap.keySet()) {
+					if ((i++ & 3) == 0) { batch.put(k, Generators.rndStr()); }
+				}
+				testmap.putAll(batch);
+				backmap.putAll(batch);
+				testmap.verifyTreeIntegrity();
+				assertEquals(backmap.size(), testmap.size());
+				assertEquals(backmap, testmap);
+			}
+		}
+
+	}
+
+	public void testDirtyNodes() {
+
+		BTreeMap<String, String> testmap = new BTreeMap<String, String>(2);
+		for (int i=0; i<0x400; ++i) {
+			testmap.put(Generators.rndKey(), Generators.rndStr());
+		}
+
+		for (int r=0; r<0x40; ++r) {
+			// subnodes come before their parents
+			java.util.Set<BTreeMap<String, String>.Node> seen = new java.util.HashSet<BTreeMap<String, String>.Node>();
+			for (Iterator<BTreeMap<String, String>.Node> it = testmap.dirtyNodes(); it.hasNext();) {
+				BTreeMap<String, String>.Node node = it.next();
+				assertTrue(node.isDirty());
+				if (!node.isLeaf()) {
+					for (BTreeMap<String, String>.Node sub: node.lnodes.values()) {
+						assertTrue(!sub.isDirty() || seen.contains(sub));
+					}
+				}
+				seen.add(node);
+				node.markClean();
+			}
+			assertFalse(testmap.dirtyNodes().hasNext());
+
+			String k = Generators.rndKey();
+			if ((r & 1) == 0) {
+				testmap.put(k, Generators.rndStr());
+			} else {
+				testmap.remove(testmap.ceilingKey(k) == null? testmap.firstKey(): testmap.ceilingKey(k));
+			}
+			assertTrue(testmap.dirtyNodes().hasNext());
+		}
+		testmap.verifyTreeIntegrity();
+
+	}
+
+	public void testIteratorRemove() {
+
+		for (int node_min: new int[]{2, 16}) {
+			BTreeMap<String, String> testmap = new BTreeMap<String, String>(node_min);
+			TreeMap<String, String> backmap = new TreeMap<String, String>();
+			for (int i=0; i<0x1000; ++i) {
+				String k = Generators.rndKey(), v = Generators.rndStr();
+				testmap.put(k, v);
+				backmap.put(k, v);
+			}
+
+			Iterator<Map.Entry<String, String>> it = testmap.entrySet().iterator();
+			Iterator<String> backit = backmap.keySet().iterator();
+			while (it.hasNext()) {
+				String k = it.next().getKey();
+				assertEquals(backit.next(), k);
+				if (Generators.rand.nextInt(3) != 0) { it.remove(); backit.remove(); }
+			}
+			assertFalse(backit.hasNext());
+			testmap.verifyTreeIntegrity();
+			assertEquals(backmap, testmap);
+
+			Iterator<String> dit = testmap.descendingMap().keySet().iterator();
+			Iterator<String> dbackit = backmap.descendingMap().keySet().iterator();
+			while (dit.hasNext()) {
+				String k = dit.next();
+				assertEquals(dbackit.next(), k);
+				if ((k.hashCode() & 1) == 0) { dit.remove(); dbackit.remove(); }
+			}
+			testmap.verifyTreeIntegrity();
+			assertEquals(backmap, testmap);
+
+			it = testmap.entrySet().iterator();
+			it.next();
+			testmap.remove(testmap.lastKey());
+			try { it.next(); fail(); } catch (java.util.ConcurrentModificationException e) { }
+			try { it.remove(); fail(); } catch (java.util.ConcurrentModificationException e) { }
+		}
+
+	}
+
+	public void testOrderStatistics() {
+
+		BTreeMap<String, String> testmap = new BTreeMap<String, String>(2);
+		TreeMap<String, String> backmap = new TreeMap<String, String>();
+		for (int n=0; n<8; ++n) {
+			for (int i=0; i<0x100; ++i) {
+				String k = Generators.rndKey(), v = Generators.rndStr();
+				testmap.put(k, v);
+				backmap.put(k, v);
+			}
+			SortedMap<String, String> batch = new TreeMap<String, String>();
+			for (int i=0; i<0x40; ++i) { batch.put(Generators.rndKey(), Generators.rndStr()); }
+			testmap.putAll(batch);
+			backmap.putAll(batch);
+			Iterator<String> it = testmap.keySet().iterator();
+			while (it.hasNext()) {
+				String k = it.next();
+				if (Generators.rand.nextInt(8) == 0) { it.remove(); backmap.remove(k); }
+			}
+			testmap.verifyTreeIntegrity();
+
+			List<String> keys = new ArrayList<String>(backmap.keySet());
+			for (int i=0; i<keys.size(); ++i) {
+				assertEquals(keys.get(i), testmap.getKeyAt(i));
+				assertEquals(i, testmap.rankOf(keys.get(i)));
+			}
+			for (int i=0; i<0x40; ++i) {
+				String k = Generators.rndKey();
+				assertEquals(backmap.headMap(k).size(), testmap.rankOf(k));
+			}
+			assertEquals(backmap.firstEntry(), testmap.getEntryAt(0));
+			try { testmap.getEntryAt(keys.size()); fail(); } catch (IndexOutOfBoundsException e) { }
+		}
+
+		testmap.clear();
+		assertEquals(0, testmap.rankOf("x"));
+		BTreeMap<String, String> bulkmap = new BTreeMap<String, String>(2);
+		bulkmap.putAll(backmap);
+		bulkmap.verifyTreeIntegrity();
+		assertEquals(backmap.lastKey(), bulkmap.getKeyAt(backmap.size()-1));
+
+	}
+
+	public void testRangeViews() {
+
+		BTreeMap<String, String> testmap = new BTreeMap<String, String>(2);
+		TreeMap<String, String> backmap = new TreeMap<String, String>();
+		for (int i=0; i<0x400; ++i) {
+			String k = Generators.rndKey(), v = Generators.rndStr();
+			testmap.put(k, v);
+			backmap.put(k, v);
+		}
+
+		for (int i=0; i<0x40; ++i) {
+			String k1 = Generators.rndKey(), k2 = Generators.rndKey();
+			if (k1.compareTo(k2) > 0) { String t = k1; k1 = k2; k2 = t; }
+			// also test bounds that are actually in the map
+			if ((i & 1) != 0) { k1 = backmap.ceilingKey(k1); if (k1 == null || k1.compareTo(k2) > 0) { continue; } }
+
+			assertEquals(backmap.headMap(k1), testmap.headMap(k1));
+			assertEquals(backmap.tailMap(k1), testmap.tailMap(k1));
+			SortedMap<String, String> sub = testmap.subMap(k1, k2), backsub = backmap.subMap(k1, k2);
+			assertEquals(backsub, sub);
+			assertEquals(backsub.size(), sub.size());
+			assertEquals(backsub.isEmpty(), sub.isEmpty());
+			if (!backsub.isEmpty()) {
+				assertEquals(backsub.firstKey(), sub.firstKey());
+				assertEquals(backsub.lastKey(), sub.lastKey());
+			}
+			assertEquals(backmap.tailMap(k1).headMap(k2), testmap.tailMap(k1).headMap(k2));
+		}
+
+		// removal through the view
+		String k1 = backmap.firstKey(), k2 = backmap.lastKey();
+		Iterator<String> it = testmap.subMap(k1, k2).keySet().iterator();
+		for (int i=0; it.hasNext(); ++i) {
+			String k = it.next();
+			if (i % 3 != 0) { it.remove(); backmap.remove(k); }
+		}
+		testmap.verifyTreeIntegrity();
+		assertEquals(backmap, testmap);
+
+	}
+
+	public void testNavigable() {
+
+		BTreeMap<String, String> testmap = new BTreeMap<String, String>(2);
+		TreeMap<String, String> backmap = new TreeMap<String, String>();
+		for (int i=0; i<0x400; ++i) {
+			String k = Generators.rndKey(), v = Generators.rndStr();
+			testmap.put(k, v);
+			backmap.put(k, v);
+		}
+
+		List<NavigableMap<String, String>> tests = new ArrayList<NavigableMap<String, String>>();
+		List<NavigableMap<String, String>> backs = new ArrayList<NavigableMap<String, String>>();
+		tests.add(testmap); backs.add(backmap);
+		tests.add(testmap.descendingMap()); backs.add(backmap.descendingMap());
+		String k1 = backmap.higherKey(backmap.firstKey()), k2 = backmap.lowerKey(backmap.lastKey());
+		tests.add(testmap.subMap(k1, false, k2, true)); backs.add(backmap.subMap(k1, false, k2, true));
+		tests.add(testmap.descendingMap().headMap(k1, true)); backs.add(backmap.descendingMap().headMap(k1, true));
+		tests.add(testmap.tailMap(k1, true).descendingMap().tailMap(k2, false)); backs.add(backmap.tailMap(k1, true).descendingMap().tailMap(k2, false));
+
+		for (int t=0; t<tests.size(); ++t) {
+			NavigableMap<String, String> test = tests.get(t), back = backs.get(t);
+			assertEquals(back, test);
+			assertEquals(new ArrayList<String>(back.keySet()), new ArrayList<String>(test.keySet()));
+			assertEquals(new ArrayList<String>(back.descendingKeySet()), new ArrayList<String>(test.descendingKeySet()));
+			assertEquals(back.firstEntry(), test.firstEntry());
+			assertEquals(back.lastEntry(), test.lastEntry());
+
+			for (int i=0; i<0x100; ++i) {
+				String k = (i & 1) != 0? Generators.rndKey(): backmap.keySet().toArray(new String[0])[i % backmap.size()];
+				assertEquals(back.ceilingKey(k), test.ceilingKey(k));
+				assertEquals(back.floorKey(k), test.floorKey(k));
+				assertEquals(back.higherKey(k), test.higherKey(k));
+				assertEquals(back.lowerKey(k), test.lowerKey(k));
+				assertEquals(back.ceilingEntry(k), test.ceilingEntry(k));
+				assertEquals(back.lowerEntry(k), test.lowerEntry(k));
+			}
+		}
+
+		while (!backmap.isEmpty()) {
+			assertEquals(backmap.pollFirstEntry(), testmap.pollFirstEntry());
+			assertEquals(backmap.pollLastEntry(), testmap.pollLastEntry());
+		}
+		assertTrue(testmap.isEmpty());
+		assertNull(testmap.pollFirstEntry());
+		testmap.verifyTreeIntegrity();
+
+	}
+
+	public void testConcurrent() throws InterruptedException {
+
+		final BTreeMap<String, String> testmap = new BTreeMap<String, String>(null, 2, true);
+		final Map<String, String> stable = new HashMap<String, String>();
+		for (int i=0; i<0x400; ++i) {
+			String k = Generators.rndKey(), v = Generators.rndStr();
+			testmap.put(k, v);
+			stable.put(k, v);
+		}
+
+		final List<Throwable> errors = java.util.Collections.synchronizedList(new ArrayList<Throwable>());
+		final List<Map<String, String>> written = new ArrayList<Map<String, String>>();
+		final boolean[] stop = new boolean[1];
+		List<Thread> threads = new ArrayList<Thread>();
+
+		for (int t=0; t<4; ++t) {
+			final Map<String, String> mine = new HashMap<String, String>();
+			written.add(mine);
+			threads.add(new Thread() {
+				@Override public void run() {
+					try {
+						for (int i=0; i<0x800; ++i) {
+							String k = Generators.rndKey(), v = Generators.rndStr();
+							if (stable.containsKey(k)) { continue; }
+							testmap.put(k, v);
+							mine.put(k, v);
+							if ((i & 3) == 0) {
+								String r = mine.keySet().iterator().next();
+								assertEquals(mine.remove(r), testmap.remove(r));
+							}
+						}
+					} catch (Throwable e) {
+						errors.add(e);
+					}
+				}
+			});
+		}
+		for (int t=0; t<4; ++t) {
+			threads.add(new Thread() {
+				@Override public void run() {
+					try {
+						while (!stop[0]) {
+							for (Map.Entry<String, String> en: stable.entrySet()) {
+								assertEquals(en.getValue(), testmap.get(en.getKey()));
+								assertTrue(testmap.containsKey(en.getKey()));
+							}
+						}
+					} catch (Throwable e) {
+						errors.add(e);
+					}
+				}
+			});
+		}
+
+		for (Thread th: threads) { th.start(); }
+		for (Thread th: threads.subList(0, 4)) { th.join(); }
+		stop[0] = true;
+		for (Thread th: threads) { th.join(); }
+		if (!errors.isEmpty()) { throw new AssertionError(errors.get(0)); }
+
+		testmap.verifyTreeIntegrity();
+		Map<String, String> backmap = new HashMap<String, String>(stable);
+		for (Map<String, String> mine: written) { backmap.putAll(mine); }
+		assertEquals(backmap.size(), testmap.size());
+		assertEquals(backmap, testmap);
+
+	}
+
+	public void testSnapshot() {
+
+		BTreeMap<String, String> testmap = new BTreeMap<String, String>(2);
+		TreeMap<String, String> backmap = new TreeMap<String, String>();
+		List<BTreeMap<String, String>> snaps = new ArrayList<BTreeMap<String, String>>();
+		List<Map<String, String>> backs = new ArrayList<Map<String, String>>();
+
+		for (int n=0; n<8; ++n) {
+			for (int i=0; i<0x100; ++i) {
+				String k = Generators.rndKey(), v = Generators.rndStr();
+				testmap.put(k, v);
+				backmap.put(k, v);
+			}
+			Iterator<String> it = backmap.keySet().iterator();
+			for (int i=0; i<0x40 && it.hasNext(); ++i) {
+				String k = it.next();
+				if ((i & 1) == 0) { it.remove(); testmap.remove(k); }
+			}
+			for (Map.Entry<String, String> en: testmap.entrySet()) {
+				if (Generators.rand.nextInt(16) == 0) {
+					en.setValue(Generators.rndStr());
+					backmap.put(en.getKey(), en.getValue());
+				}
+			}
+			testmap.verifyTreeIntegrity();
+			snaps.add(testmap.snapshot());
+			backs.add(new TreeMap<String, String>(backmap));
+		}
+
+		for (int n=0; n<snaps.size(); ++n) {
+			BTreeMap<String, String> snap = snaps.get(n);
+			snap.verifyTreeIntegrity();
+			assertEquals(backs.get(n), snap);
+			assertEquals(backs.get(n).size(), snap.size());
+		}
+		assertEquals(backmap, testmap);
+
+		BTreeMap<String, String> snap = snaps.get(0);
+		String k = snap.firstKey();
+		try { snap.put(k, "x"); fail(); } catch (UnsupportedOperationException e) { }
+		try { snap.remove(k); fail(); } catch (UnsupportedOperationException e) { }
+		try { snap.firstEntry().setValue("x"); fail(); } catch (UnsupportedOperationException e) { }
+		try { snap.clear(); fail(); } catch (UnsupportedOperationException e) { }
+		assertEquals(backs.get(0), snap);
+
+	}
+
 }
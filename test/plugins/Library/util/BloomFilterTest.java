@@ -0,0 +1,59 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util;
+
+import junit.framework.TestCase;
+
+import java.util.Set;
+import java.util.HashSet;
+
+/**
+** @author infinity0
+*/
+public class BloomFilterTest extends TestCase {
+
+	public void testFilter() {
+		// about 10 bits per key, which should give about 1% false positives
+		BloomFilter f = new BloomFilter(0x1000, 7);
+		Set<String> keys = new HashSet<String>();
+		while (keys.size() < 0x180) { keys.add(Generators.rndKey()); }
+		for (String k: keys) { f.put(k); }
+
+		for (String k: keys) { assertTrue(f.has(k)); }
+		int fp = 0;
+		for (int i=0; i<0x1000; ++i) {
+			String k = Generators.rndKey();
+			if (!keys.contains(k) && f.has(k)) { ++fp; }
+		}
+		assertTrue(fp < 0x1000/20);
+
+		BloomFilter g = new BloomFilter(f.toBytes());
+		assertTrue(g.size() == f.size() && g.hashes() == f.hashes());
+		assertTrue(g.cardinality() == f.cardinality());
+		for (String k: keys) { assertTrue(g.has(k)); }
+	}
+
+	public void testPutAll() {
+		BloomFilter f = new BloomFilter(0x400, 5);
+		BloomFilter g = new BloomFilter(0x400, 5);
+		Set<String> fk = new HashSet<String>(), gk = new HashSet<String>();
+		for (int i=0; i<0x40; ++i) {
+			String k = Generators.rndKey();
+			f.put(k);
+			fk.add(k);
+			k = Generators.rndKey();
+			g.put(k);
+			gk.add(k);
+		}
+		f.putAll(g);
+		for (String k: fk) { assertTrue(f.has(k)); }
+		for (String k: gk) { assertTrue(f.has(k)); }
+
+		try {
+			f.putAll(new BloomFilter(0x800, 5));
+			fail();
+		} catch (IllegalArgumentException e) { }
+	}
+
+}
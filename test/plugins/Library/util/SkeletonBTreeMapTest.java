@@ -0,0 +1,1076 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util;
+
+import junit.framework.TestCase;
+
+import plugins.Library.serial.IterableSerialiser;
+import plugins.Library.serial.MapSerialiser;
+import plugins.Library.serial.TaskAbortException;
+import plugins.Library.serial.DataFormatException;
+import plugins.Library.serial.Serialiser.*;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+** @author infinity0
+*/
+public class SkeletonBTreeMapTest extends TestCase {
+
+	SkeletonBTreeMap<String, String> testmap;
+	TreeMap<String, String> backmap;
+	NodeStore nodes;
+	ValueStore values;
+
+	/**
+	** Whether {@link #prefetcher} is running a task.
+	*/
+	boolean prefetching;
+
+	/**
+	** Runs prefetches straight away, in the calling thread.
+	*/
+	final Executor prefetcher = new Executor() {
+		public void execute(Runnable r) {
+			prefetching = true;
+			try {
+				r.run();
+			} finally {
+				prefetching = false;
+			}
+		}
+	};
+
+	/**
+	** Keeps the nodes of {@link #testmap} in memory, in their translated
+	** form, and counts what is pulled and pushed.
+	*/
+	class NodeStore implements IterableSerialiser<SkeletonBTreeMap<String, String>.SkeletonNode> {
+
+		final Map<Object, Map<String, Object>> store = new HashMap<Object, Map<String, Object>>();
+		final SkeletonBTreeMap<String, String>.NodeTranslator trans = testmap.makeNodeTranslator(null,
+		  new SkeletonTreeMap.TreeMapTranslator<String, String>() {
+			public Map<String, Object> app(SkeletonTreeMap<String, String> map) {
+				return app(map, new HashMap<String, Object>(), null);
+			}
+			public SkeletonTreeMap<String, String> rev(Map<String, Object> map) {
+				return rev(map, new SkeletonTreeMap<String, String>(), null);
+			}
+		});
+
+		int id;
+		/** Nodes pulled and pushed, and leaves pulled by the prefetcher or not */
+		int pulls, pushes, leafPrefetches, leafPulls;
+		/** Sizes of the batches pulled and pushed, in order */
+		final List<Integer> pullBatches = new ArrayList<Integer>(), pushBatches = new ArrayList<Integer>();
+
+		synchronized public void pull(PullTask<SkeletonBTreeMap<String, String>.SkeletonNode> task) {
+			++pulls;
+			task.data = trans.rev(store.get(((SkeletonBTreeMap.GhostNode)task.meta).getMeta()));
+			if (task.data.isLeaf()) {
+				if (prefetching) { ++leafPrefetches; } else { ++leafPulls; }
+			}
+		}
+
+		synchronized public void push(PushTask<SkeletonBTreeMap<String, String>.SkeletonNode> task) {
+			++pushes;
+			Integer i = ++id;
+			store.put(i, trans.app(task.data));
+			task.meta = task.data.makeGhost(i);
+		}
+
+		public void pull(Iterable<PullTask<SkeletonBTreeMap<String, String>.SkeletonNode>> tasks) {
+			int n = 0;
+			for (PullTask<SkeletonBTreeMap<String, String>.SkeletonNode> task: tasks) { pull(task); ++n; }
+			pullBatches.add(n);
+		}
+
+		public void push(Iterable<PushTask<SkeletonBTreeMap<String, String>.SkeletonNode>> tasks) {
+			int n = 0;
+			for (PushTask<SkeletonBTreeMap<String, String>.SkeletonNode> task: tasks) { push(task); ++n; }
+			pushBatches.add(n);
+		}
+
+		void reset() {
+			pulls = pushes = leafPrefetches = leafPulls = 0;
+			pullBatches.clear();
+			pushBatches.clear();
+		}
+
+	}
+
+	/**
+	** Keeps the values of {@link #testmap} in memory, and counts what is
+	** pulled and pushed.
+	*/
+	static class ValueStore implements MapSerialiser.Relocatable<String, String> {
+
+		final Map<Object, String> store = new HashMap<Object, String>();
+
+		int id;
+		/** Values pulled and pushed, and calls to pull and push */
+		int pulls, pushes, pullCalls, pushCalls;
+		/** A key whose value can't be pushed, if not {@code null} */
+		String failKey;
+
+		synchronized public void pull(Map<String, PullTask<String>> tasks, Object meta) {
+			++pullCalls;
+			for (PullTask<String> task: tasks.values()) {
+				if (task.meta == null) { continue; }
+				task.data = store.get(task.meta);
+				++pulls;
+			}
+		}
+
+		synchronized public void push(Map<String, PushTask<String>> tasks, Object meta) throws TaskAbortException {
+			++pushCalls;
+			if (failKey != null && tasks.containsKey(failKey) && tasks.get(failKey).data != null) {
+				throw new TaskAbortException("could not push " + failKey, null);
+			}
+			for (PushTask<String> task: tasks.values()) {
+				if (task.data == null) { continue; }
+				task.meta = ++id;
+				store.put(task.meta, task.data);
+				++pushes;
+			}
+		}
+
+		/**
+		** The metadata of each value is its own key in {@link #store}.
+		*/
+		public boolean isSelfContained(Object meta) {
+			return true;
+		}
+
+		void reset() {
+			pulls = pushes = pullCalls = pushCalls = 0;
+		}
+
+	}
+
+	/**
+	** Makes a map of the given size, with the given minimum node size, and
+	** deflates it.
+	*/
+	protected void makeTestMap(int size, int node_min) throws TaskAbortException {
+		makeTestMap(size, node_min, false);
+	}
+
+	protected void makeTestMap(int size, int node_min, boolean concurrent) throws TaskAbortException {
+		testmap = new SkeletonBTreeMap<String, String>(null, node_min, concurrent);
+		backmap = new TreeMap<String, String>();
+		nodes = new NodeStore();
+		values = new ValueStore();
+		testmap.setSerialiser(nodes, values);
+		for (int i=0; i<size; ++i) {
+			String k = Generators.rndKey(), v = Generators.rndStr();
+			testmap.put(k, v);
+			backmap.put(k, v);
+		}
+		testmap.deflate();
+		assertTrue(testmap.isBare());
+		nodes.reset();
+		values.reset();
+	}
+
+	/**
+	** Turns all the leaves under a loaded node back into ghosts.
+	*/
+	protected void discardLeaves(BTreeMap<String, String>.Node node) {
+		if (node.isLeaf()) { return; }
+		SkeletonBTreeMap<String, String>.SkeletonNode skel = (SkeletonBTreeMap<String, String>.SkeletonNode)node;
+		for (String k: node.lnodes.keySet().toArray(new String[0])) {
+			BTreeMap<String, String>.Node sub = node.lnodes.get(k);
+			if (sub.entries == null) { continue; }
+			if (sub.isLeaf()) {
+				skel.discard(k);
+			} else {
+				discardLeaves(sub);
+			}
+		}
+	}
+
+	/**
+	** Returns the number of nodes at each depth under the given node, which
+	** must be loaded.
+	*/
+	protected List<Integer> levelSizes(BTreeMap<String, String>.Node node) {
+		List<Integer> sizes = new ArrayList<Integer>();
+		List<BTreeMap<String, String>.Node> level = new ArrayList<BTreeMap<String, String>.Node>();
+		level.add(node);
+		while (!level.isEmpty()) {
+			sizes.add(level.size());
+			List<BTreeMap<String, String>.Node> next = new ArrayList<BTreeMap<String, String>.Node>();
+			for (BTreeMap<String, String>.Node n: level) {
+				if (!n.isLeaf()) { next.addAll(n.lnodes.values()); }
+			}
+			level = next;
+		}
+		return sizes;
+	}
+
+	/**
+	** Goes through a set of keys backed by the map, inflating what it needs
+	** as it goes.
+	*/
+	protected List<String> scan(Set<String> keys) throws TaskAbortException {
+		List<String> list = new ArrayList<String>();
+		Iterator<String> it = keys.iterator();
+		for (;;) {
+			try {
+				if (!it.hasNext()) { return list; }
+				list.add(it.next());
+			} catch (DataNotLoadedException e) {
+				e.getParent().inflate(e.getKey());
+			}
+		}
+	}
+
+	public void testPrefetchNext() throws TaskAbortException {
+		makeTestMap(0x400, 2);
+		testmap.inflate();
+		List<Integer> sizes = levelSizes(testmap.root);
+		assertTrue(sizes.size() >= 4);
+		int leaves = sizes.get(sizes.size()-1);
+		testmap.setPrefetcher(prefetcher);
+
+		// every leaf after the first is pulled ahead of time, including those
+		// under a different parent from the leaf before
+		discardLeaves(testmap.root);
+		nodes.reset();
+		assertEquals(new ArrayList<String>(backmap.keySet()), scan(testmap.keySet()));
+		assertEquals(1, nodes.leafPulls);
+		assertEquals(leaves - 1, nodes.leafPrefetches);
+		assertEquals(leaves, nodes.pulls);
+		assertEquals(leaves - 1, testmap.getPrefetchHits());
+		assertEquals(1, testmap.getPrefetchMisses());
+
+		// and likewise backwards
+		discardLeaves(testmap.root);
+		nodes.reset();
+		assertEquals(new ArrayList<String>(backmap.descendingKeySet()), scan(testmap.descendingKeySet()));
+		assertEquals(1, nodes.leafPulls);
+		assertEquals(leaves - 1, nodes.leafPrefetches);
+
+		// a range stops prefetching at its end
+		discardLeaves(testmap.root);
+		nodes.reset();
+		String[] keys = backmap.keySet().toArray(new String[0]);
+		String lkey = keys[keys.length/4], rkey = keys[keys.length/2];
+		assertEquals(new ArrayList<String>(backmap.subMap(lkey, rkey).keySet()), scan(testmap.subMap(lkey, rkey).keySet()));
+		assertEquals(1, nodes.leafPulls);
+		assertTrue(nodes.leafPrefetches < leaves/3);
+
+		// when the next subtree isn't loaded, its root is pulled ahead of time
+		testmap.deflate();
+		nodes.reset();
+		assertEquals(new ArrayList<String>(backmap.keySet()), scan(testmap.keySet()));
+		assertEquals(testmap.getPrefetchCount(), testmap.getPrefetchHits());
+		assertTrue(nodes.leafPrefetches > 0);
+		testmap.verifyTreeIntegrity();
+	}
+
+	/**
+	** Checks that all the subnodes of a node are ghosts that point back to it.
+	*/
+	protected void assertGhosts(BTreeMap<String, String>.Node node) {
+		SkeletonBTreeMap<String, String>.SkeletonNode skel = (SkeletonBTreeMap<String, String>.SkeletonNode)node;
+		assertEquals(node.lnodes.size(), skel.ghosts);
+		for (BTreeMap<String, String>.Node sub: node.lnodes.values()) {
+			assertNull(sub.entries);
+			assertTrue(((SkeletonBTreeMap<String, String>.GhostNode)sub).parent == node);
+		}
+	}
+
+	public void testDeflateLevels() throws TaskAbortException {
+		makeTestMap(0x400, 2);
+		testmap.inflate();
+		List<Integer> sizes = levelSizes(testmap.root);
+		int total = 0;
+		for (int n: sizes) { total += n; }
+		nodes.reset();
+		values.reset();
+
+		// each level below the root is pushed as one batch, from the bottom up
+		testmap.deflate();
+		List<Integer> batches = new ArrayList<Integer>();
+		for (int i=sizes.size()-1; i>0; --i) { batches.add(sizes.get(i)); }
+		assertEquals(batches, nodes.pushBatches);
+		assertEquals(total - 1, nodes.pushes);
+		assertEquals(0, nodes.pulls);
+		// the values of every node were deflated, but none had changed
+		assertEquals(total, values.pushCalls);
+		assertEquals(0, values.pushes);
+		assertTrue(testmap.isBare());
+		assertGhosts(testmap.root);
+
+		testmap.inflate();
+		testmap.verifyTreeIntegrity();
+		assertEquals(backmap, testmap);
+	}
+
+	public void testNodeSize() {
+
+		SkeletonBTreeMap.SizeEstimator<String> est = new SkeletonBTreeMap.SizeEstimator<String>() {
+			public int entrySize(String key) { return key.length(); }
+			public int linkSize() { return 16; }
+		};
+		testmap = new SkeletonBTreeMap<String, String>(null, 2, 0x400, false);
+		testmap.setNodeSize(est, 0x200);
+		backmap = new TreeMap<String, String>();
+		for (int i=0; i<0x1000; ++i) {
+			String k = Generators.rndKey(), v = Generators.rndStr();
+			testmap.put(k, v);
+			backmap.put(k, v);
+		}
+		testmap.verifyTreeIntegrity();
+		assertEquals(backmap, testmap);
+		assertNodeSize(testmap, testmap.root, 0x200 + 0x100);
+
+		testmap.restructure();
+		testmap.verifyTreeIntegrity();
+		assertEquals(backmap, testmap);
+		assertNodeSize(testmap, testmap.root, 0x200);
+
+		for (String k: backmap.keySet().toArray(new String[0])) {
+			if (Generators.rand.nextInt(4) != 0) {
+				assertEquals(backmap.remove(k), testmap.remove(k));
+			}
+		}
+		testmap.verifyTreeIntegrity();
+		assertEquals(backmap, testmap);
+		assertNodeSize(testmap, testmap.root, 0x200 + 0x100);
+
+	}
+
+	protected void assertNodeSize(SkeletonBTreeMap<String, String> map, BTreeMap<String, String>.Node node, int max) {
+		assertTrue(map.sizeInBytes(node) <= max);
+		if (node.isLeaf()) { return; }
+		for (BTreeMap<String, String>.Node n: node.lnodes.values()) {
+			assertNodeSize(map, n, max);
+		}
+	}
+
+	/**
+	** Returns a copy of the stored data of a node that is not a leaf.
+	*/
+	protected Map<String, Object> storedParent() {
+		for (Map<String, Object> data: nodes.store.values()) {
+			if (data.containsKey("subnodes")) { return new HashMap<String, Object>(data); }
+		}
+		throw new AssertionError("no stored parent");
+	}
+
+	/**
+	** Checks that translating some node data back fails with {@link
+	** DataFormatException}.
+	*/
+	protected void assertBadData(Map<String, Object> data) {
+		try {
+			nodes.trans.rev(data);
+			fail();
+		} catch (DataFormatException e) {
+			// expected
+		}
+	}
+
+	public void testBadNodeData() throws TaskAbortException {
+		makeTestMap(0x400, 2);
+		testmap.deflate();
+		assertNotNull(nodes.trans.rev(storedParent()));
+
+		// the subtree counts must match the subnodes
+		Map<String, Object> data = storedParent();
+		List<Integer> counts = new ArrayList<Integer>((List<Integer>)data.get("counts"));
+		counts.remove(counts.size()-1);
+		data.put("counts", counts);
+		assertBadData(data);
+		counts.add(null);
+		assertBadData(data);
+		counts.add(0);
+		assertBadData(data);
+
+		// and so must the filters, if there are any; a missing one is null
+		data = storedParent();
+		List<byte[]> filters = new ArrayList<byte[]>();
+		for (int i=((List)data.get("subnodes")).size(); i>0; --i) { filters.add(null); }
+		data.put("filters", filters);
+		assertNotNull(nodes.trans.rev(data));
+		filters.remove(0);
+		assertBadData(data);
+		filters.add(null);
+		filters.add(null);
+		assertBadData(data);
+	}
+
+	public void testDeflateValuesFail() throws TaskAbortException {
+		ExecutorService deflater = Executors.newFixedThreadPool(4);
+		try {
+			for (int round=0; round<2; ++round) {
+				makeTestMap(0x400, 2);
+				if (round == 1) { testmap.setDeflater(deflater); }
+				testmap.inflate();
+				for (String k: backmap.keySet()) {
+					String v = Generators.rndStr();
+					testmap.put(k, v);
+					backmap.put(k, v);
+				}
+
+				// a failure to push the values stops the deflate before the level
+				// that holds them is pushed
+				String[] keys = testmap.root.entries.keySet().toArray(new String[0]);
+				BTreeMap<String, String>.Node leaf = testmap.root;
+				while (!leaf.isLeaf()) { leaf = leaf.lnodes.get(keys[0]); }
+				values.failKey = leaf.entries.firstKey();
+				nodes.reset();
+				try {
+					testmap.deflate();
+					fail();
+				} catch (TaskAbortException e) {
+					assertEquals(0, nodes.pushes);
+				}
+				assertTrue(leaf.entries != null && testmap.root.lnodes.get(keys[0]).entries != null);
+
+				// once the values can be pushed, the deflate can be done again
+				values.failKey = null;
+				testmap.deflate();
+				assertTrue(testmap.isBare());
+				assertGhosts(testmap.root);
+				testmap.inflate();
+				testmap.verifyTreeIntegrity();
+				assertEquals(backmap, testmap);
+			}
+		} finally {
+			deflater.shutdown();
+		}
+	}
+
+	public void testInflateLevels() throws TaskAbortException {
+		makeTestMap(0x400, 2);
+		testmap.inflate();
+		List<Integer> sizes = levelSizes(testmap.root);
+		testmap.deflate();
+		nodes.reset();
+		values.reset();
+
+		// each level below the root is pulled as one batch, from the top down,
+		// and the values of each level with one pull, since the nodes all have
+		// the same metadata for their values
+		testmap.inflate();
+		assertEquals(sizes.subList(1, sizes.size()), nodes.pullBatches);
+		assertEquals(sizes.size(), values.pullCalls);
+		assertEquals(backmap.size(), values.pulls);
+		assertEquals(0, nodes.pushes + values.pushCalls);
+		// the pulled nodes are attached as clean, and remember their ghosts. the
+		// root refers to them by new metadata, so it is still changed
+		for (Iterator<BTreeMap<String, String>.Node> it = testmap.dirtyNodes(); it.hasNext();) {
+			assertTrue(it.next() == testmap.root);
+		}
+		for (BTreeMap<String, String>.Node n: testmap.root.lnodes.values()) {
+			assertNotNull(((SkeletonBTreeMap<String, String>.SkeletonNode)n).meta);
+		}
+		testmap.verifyTreeIntegrity();
+		assertEquals(backmap, testmap);
+
+		// ghosts that were prefetched are taken from there, not pulled again
+		testmap.deflate();
+		testmap.setPrefetcher(prefetcher);
+		String rkey = testmap.root.lnodes.firstKey();
+		testmap.prefetch(testmap.root, testmap.root.lnodes.get(rkey));
+		nodes.reset();
+		testmap.inflate();
+		assertEquals(sizes.get(1) - 1, (int)nodes.pullBatches.get(0));
+		assertEquals(1, testmap.getPrefetchHits());
+		assertEquals(backmap, testmap);
+	}
+
+	/**
+	** Returns the number of loaded nodes under a node, not counting itself.
+	*/
+	protected int loadedNodes(BTreeMap<String, String>.Node node) {
+		return loadedNodes(node, Integer.MAX_VALUE);
+	}
+
+	/**
+	** Returns the number of loaded nodes under a node, down to the given
+	** number of levels below it.
+	*/
+	protected int loadedNodes(BTreeMap<String, String>.Node node, int levels) {
+		if (node.isLeaf() || levels == 0) { return 0; }
+		int n = 0;
+		for (BTreeMap<String, String>.Node sub: node.lnodes.values()) {
+			if (sub.entries != null) { n += 1 + loadedNodes(sub, levels-1); }
+		}
+		return n;
+	}
+
+	public void testGetAll() throws TaskAbortException {
+		makeTestMap(0x400, 2);
+		testmap.inflate();
+		List<Integer> sizes = levelSizes(testmap.root);
+		testmap.deflate();
+		nodes.reset();
+		values.reset();
+
+		List<String> keys = new ArrayList<String>();
+		TreeMap<String, String> expected = new TreeMap<String, String>();
+		int i = 0;
+		for (Map.Entry<String, String> en: backmap.entrySet()) {
+			if (i++ % 16 != 0) { continue; }
+			keys.add(en.getKey());
+			expected.put(en.getKey(), en.getValue());
+		}
+		for (int j=0; j<16; ++j) {
+			String k = Generators.rndKey();
+			if (!backmap.containsKey(k)) { keys.add(k); }
+		}
+
+		// one batch of nodes for each level below the root, each node pulled
+		// at most once, and one pull for all the values
+		SortedMap<String, String> results = testmap.getAll(keys);
+		assertEquals(expected, results);
+		assertEquals(sizes.size() - 1, nodes.pullBatches.size());
+		int pulled = 0;
+		for (int j=0; j<nodes.pullBatches.size(); ++j) {
+			assertTrue(nodes.pullBatches.get(j) <= sizes.get(j+1));
+			pulled += nodes.pullBatches.get(j);
+		}
+		assertEquals(nodes.pulls, pulled);
+		assertEquals(loadedNodes(testmap.root), nodes.pulls);
+		assertEquals(1, values.pullCalls);
+		assertEquals(expected.size(), values.pulls);
+
+		// everything needed is now loaded
+		nodes.reset();
+		values.reset();
+		assertEquals(expected, testmap.getAll(keys));
+		assertEquals(0, nodes.pulls + values.pulls);
+
+		// a part of the tree that has been loaded is not pulled again
+		testmap.deflate();
+		List<String> half = keys.subList(0, keys.size()/2);
+		testmap.getAll(half);
+		int loaded = loadedNodes(testmap.root);
+		nodes.reset();
+		assertEquals(expected, testmap.getAll(keys));
+		assertEquals(loadedNodes(testmap.root) - loaded, nodes.pulls);
+	}
+
+	public void testGetAsync() throws Exception {
+		makeTestMap(0x400, 2);
+		testmap.inflate();
+		int depth = levelSizes(testmap.root).size();
+		testmap.deflate();
+		nodes.reset();
+		values.reset();
+
+		// the path to the key is pulled, then the value, and after that nothing
+		String key = backmap.lastKey();
+		assertEquals(backmap.get(key), testmap.getAsync(key).get());
+		assertEquals(loadedNodes(testmap.root), nodes.pulls);
+		assertTrue(nodes.pulls < depth);
+		assertEquals(1, values.pulls);
+		nodes.reset();
+		values.reset();
+		assertEquals(backmap.get(key), testmap.getAsync(key).get());
+		assertEquals(0, nodes.pulls + values.pulls);
+
+		// a key that isn't there pulls the path to its leaf, but no value
+		String absent = key + "~";
+		assertNull(testmap.getAsync(absent).get());
+		assertEquals(0, nodes.pulls + values.pulls);
+		testmap.deflate();
+		nodes.reset();
+		assertNull(testmap.getAsync(absent).get());
+		assertEquals(depth - 1, nodes.pulls);
+		assertEquals(0, values.pulls);
+
+		// many lookups at once, in concurrent mode, whilst evict() keeps
+		// turning the nodes they have just pulled back into ghosts
+		ExecutorService resolver = Executors.newFixedThreadPool(4);
+		try {
+			makeTestMap(0x400, 2, true);
+			testmap.setResolver(resolver);
+			testmap.setCacheSize(4);
+			Map<String, Future<String>> results = new HashMap<String, Future<String>>();
+			for (String k: backmap.keySet()) { results.put(k, testmap.getAsync(k)); }
+			for (Map.Entry<String, String> en: backmap.entrySet()) {
+				assertEquals(en.getValue(), results.get(en.getKey()).get());
+			}
+			assertTrue(nodes.pulls > 0);
+			testmap.setCacheSize(0);
+			testmap.inflate();
+			testmap.verifyTreeIntegrity();
+			assertEquals(backmap, testmap);
+		} finally {
+			resolver.shutdown();
+		}
+	}
+
+	/**
+	** Checks that the {@link SkeletonBTreeMap.SkeletonNode#ghosts} count of
+	** each loaded node under a node is right, and that the ghosts point back
+	** to the node that holds them.
+	*/
+	protected void assertSkeleton(BTreeMap<String, String>.Node node) {
+		if (node.isLeaf()) { return; }
+		int ghosts = 0;
+		for (BTreeMap<String, String>.Node sub: node.lnodes.values()) {
+			if (sub.entries == null) {
+				assertTrue(((SkeletonBTreeMap<String, String>.GhostNode)sub).parent == node);
+				++ghosts;
+			} else {
+				assertSkeleton(sub);
+			}
+		}
+		assertEquals(ghosts, ((SkeletonBTreeMap<String, String>.SkeletonNode)node).ghosts);
+	}
+
+	public void testEvict() throws Exception {
+		makeTestMap(0x400, 2);
+		testmap.inflate();
+		int depth = levelSizes(testmap.root).size();
+		testmap.deflate();
+		nodes.reset();
+		int cache = 2*depth;
+		testmap.setCacheSize(cache);
+
+		// no more than the cache size are kept, and the rest go back to being
+		// ghosts, which are pulled again the next time they are needed
+		String[] keys = backmap.keySet().toArray(new String[0]);
+		for (int round=0; round<2; ++round) {
+			nodes.reset();
+			for (int i=0; i<keys.length; i+=7) {
+				assertEquals(backmap.get(keys[i]), testmap.getAsync(keys[i]).get());
+				assertTrue(loadedNodes(testmap.root) <= cache);
+				assertEquals(loadedNodes(testmap.root), testmap.clock.size());
+				assertSkeleton(testmap.root);
+			}
+			assertTrue(nodes.pulls > keys.length/7);
+		}
+
+		// once the cache is full, a node that keeps being used stays loaded,
+		// whilst the others come and go around it. it needs room for a few
+		// paths, or else the ring is mostly their upper nodes, which can't be
+		// evicted, and the hand goes all the way round for each eviction
+		testmap.setCacheSize(cache = 4*depth);
+		for (int i=0; i<keys.length; i+=7) { testmap.getAsync(keys[i]).get(); }
+		String hot = keys[keys.length/2];
+		testmap.getAsync(hot).get();
+		for (int i=1; i<keys.length; i+=5) {
+			testmap.getAsync(keys[i]).get();
+			nodes.reset();
+			assertEquals(backmap.get(hot), testmap.getAsync(hot).get());
+			assertEquals(0, nodes.pulls);
+		}
+
+		// nodes that leave the tree are dropped from the ring when it gets
+		// round to them
+		testmap.deflate();
+		assertEquals(0, loadedNodes(testmap.root));
+		assertTrue(testmap.clock.size() > 0);
+		for (int i=0; i<keys.length; i+=3) {
+			assertEquals(backmap.get(keys[i]), testmap.getAsync(keys[i]).get());
+			assertTrue(loadedNodes(testmap.root) <= cache);
+		}
+		assertEquals(loadedNodes(testmap.root), testmap.clock.size());
+
+		// with no limit, nothing is evicted
+		testmap.setCacheSize(0);
+		assertEquals(0, testmap.clock.size());
+		testmap.inflate();
+		testmap.verifyTreeIntegrity();
+		assertEquals(backmap, testmap);
+		assertSkeleton(testmap.root);
+	}
+
+	/**
+	** Whether all the nodes on the path from the root to a key are loaded.
+	*/
+	protected boolean pathLoaded(String key) {
+		BTreeMap<String, String>.Node node = testmap.root;
+		while (!node.isLeaf() && !node.entries.containsKey(key)) {
+			node = node.selectNode(key);
+			if (node.entries == null) { return false; }
+		}
+		return true;
+	}
+
+	public void testPin() throws Exception {
+		makeTestMap(0x400, 2);
+		testmap.inflate();
+		List<Integer> sizes = levelSizes(testmap.root);
+		int depth = sizes.size();
+		testmap.deflate();
+		int cache = 2*depth;
+		testmap.setCacheSize(cache);
+		String[] keys = backmap.keySet().toArray(new String[0]);
+
+		// the pinned levels are loaded straight away, with their values, and
+		// are set aside rather than evicted
+		nodes.reset();
+		values.reset();
+		testmap.pinLevels(2);
+		assertEquals(sizes.get(1), (Integer)nodes.pulls);
+		assertTrue(values.pulls > 0);
+		for (int i=0; i<keys.length; i+=7) {
+			assertEquals(backmap.get(keys[i]), testmap.getAsync(keys[i]).get());
+			assertTrue(testmap.clock.size() <= cache);
+		}
+		assertEquals(sizes.get(1), (Integer)loadedNodes(testmap.root, 1));
+		assertEquals(sizes.get(1), (Integer)testmap.held.size());
+
+		// and can be evicted again once they are unpinned
+		testmap.pinLevels(0);
+		assertTrue(testmap.held.isEmpty());
+		for (int i=3; i<keys.length; i+=7) { testmap.getAsync(keys[i]).get(); }
+		assertTrue(loadedNodes(testmap.root) <= cache);
+		assertTrue(loadedNodes(testmap.root, 1) < sizes.get(1));
+
+		// likewise the path to a pinned key, which stays loaded whilst
+		// lookups for other keys come and go
+		String key = keys[keys.length/2];
+		testmap.pin(key);
+		assertTrue(pathLoaded(key));
+		for (int i=0; i<keys.length; i+=5) {
+			assertEquals(backmap.get(keys[i]), testmap.getAsync(keys[i]).get());
+			assertTrue(pathLoaded(key));
+			assertTrue(testmap.clock.size() <= cache);
+		}
+		assertFalse(testmap.held.isEmpty());
+		nodes.reset();
+		values.reset();
+		assertEquals(backmap.get(key), testmap.getAsync(key).get());
+		assertEquals(0, nodes.pulls + values.pulls);
+
+		// after it is unpinned, its path goes the same way as the others
+		testmap.unpin(key);
+		assertTrue(testmap.held.isEmpty());
+		for (int i=1; i<keys.length; i+=5) { testmap.getAsync(keys[i]).get(); }
+		assertFalse(pathLoaded(key));
+		assertTrue(loadedNodes(testmap.root) <= cache);
+		assertEquals(loadedNodes(testmap.root), testmap.clock.size());
+		assertSkeleton(testmap.root);
+	}
+
+	/**
+	** Returns the loaded nodes under a node whose first subnode is a ghost.
+	** After {@link #discardLeaves(BTreeMap.Node)}, these are the parents of
+	** the leaves.
+	*/
+	protected List<SkeletonBTreeMap<String, String>.SkeletonNode> ghostParents(BTreeMap<String, String>.Node node) {
+		List<SkeletonBTreeMap<String, String>.SkeletonNode> parents = new ArrayList<SkeletonBTreeMap<String, String>.SkeletonNode>();
+		if (node.isLeaf()) { return parents; }
+		BTreeMap<String, String>.Node first = node.lnodes.values().iterator().next();
+		if (first.entries == null) {
+			parents.add((SkeletonBTreeMap<String, String>.SkeletonNode)node);
+			return parents;
+		}
+		for (BTreeMap<String, String>.Node sub: node.lnodes.values()) {
+			if (sub.entries != null) { parents.addAll(ghostParents(sub)); }
+		}
+		return parents;
+	}
+
+	/**
+	** Returns the number of the tasks that have been cancelled.
+	*/
+	protected int cancelled(List<Runnable> tasks) {
+		int n = 0;
+		for (Runnable r: tasks) {
+			if (((java.util.concurrent.Future)r).isCancelled()) { ++n; }
+		}
+		return n;
+	}
+
+	public void testPrefetchBounds() throws Exception {
+		makeTestMap(0x400, 2);
+		testmap.inflate();
+		int depth = levelSizes(testmap.root).size();
+		discardLeaves(testmap.root);
+		List<SkeletonBTreeMap<String, String>.SkeletonNode> parents = ghostParents(testmap.root);
+		List<BTreeMap<String, String>.Node> ghosts = new ArrayList<BTreeMap<String, String>.Node>();
+		for (BTreeMap<String, String>.Node n: parents) { ghosts.addAll(n.lnodes.values()); }
+		assertTrue(ghosts.size() > SkeletonBTreeMap.PREFETCH_MAX);
+
+		// pulls that are only started when we say so
+		final List<Runnable> pending = new ArrayList<Runnable>();
+		testmap.setPrefetcher(new Executor() {
+			public void execute(Runnable r) { pending.add(r); }
+		});
+
+		// with no cache size, only the newest few are kept, and the rest are
+		// cancelled
+		for (BTreeMap<String, String>.Node n: ghosts) { testmap.prefetch(null, n); }
+		assertEquals(SkeletonBTreeMap.PREFETCH_MAX, testmap.prefetchedSize());
+		assertEquals(ghosts.size() - SkeletonBTreeMap.PREFETCH_MAX, cancelled(pending));
+		assertTrue(testmap.prefetched.containsKey(ghosts.get(ghosts.size()-1)));
+		assertFalse(testmap.prefetched.containsKey(ghosts.get(0)));
+
+		// turning prefetching off cancels the rest
+		testmap.setPrefetcher(null);
+		assertEquals(0, testmap.prefetchedSize());
+		assertEquals(ghosts.size(), cancelled(pending));
+
+		// when a node is discarded, so is what was prefetched for its ghosts
+		testmap.setPrefetcher(new Executor() {
+			public void execute(Runnable r) { pending.add(r); }
+		});
+		pending.clear();
+		SkeletonBTreeMap<String, String>.SkeletonNode node = parents.get(0);
+		for (BTreeMap<String, String>.Node n: node.lnodes.values()) { testmap.prefetch(node, n); }
+		assertEquals(node.lnodes.size(), testmap.prefetchedSize());
+		String rkey = node.rkey;
+		BTreeMap<String, String>.Node parent = testmap.root;
+		while (parent.lnodes.get(rkey) != node) { parent = parent.selectNode(node.entries.firstKey()); }
+		((SkeletonBTreeMap<String, String>.SkeletonNode)parent).discard(rkey);
+		assertEquals(0, testmap.prefetchedSize());
+		assertEquals(pending.size(), cancelled(pending));
+
+		// likewise when a node on the path to a changed key is pushed
+		pending.clear();
+		String key = parents.get(parents.size()-1).entries.firstKey();
+		assertEquals(backmap.get(key), testmap.getAsync(key).get());
+		node = parents.get(parents.size()-1);
+		for (BTreeMap<String, String>.Node n: node.lnodes.values()) { testmap.prefetch(node, n); }
+		assertTrue(testmap.prefetchedSize() > 0);
+		testmap.put(key, "changed");
+		backmap.put(key, "changed");
+		testmap.deflate(key);
+		assertEquals(0, testmap.prefetchedSize());
+		assertEquals(pending.size(), cancelled(pending));
+
+		// and when the whole tree is deflated
+		pending.clear();
+		testmap.inflate();
+		discardLeaves(testmap.root);
+		parents = ghostParents(testmap.root);
+		for (BTreeMap<String, String>.Node n: parents.get(0).lnodes.values()) { testmap.prefetch(parents.get(0), n); }
+		assertTrue(testmap.prefetchedSize() > 0);
+		testmap.deflate();
+		assertEquals(0, testmap.prefetchedSize());
+		assertEquals(pending.size(), cancelled(pending));
+
+		// with a cache size, they take up some of the room in it
+		testmap.setPrefetcher(prefetcher);
+		int cache = 4*depth;
+		testmap.setCacheSize(cache);
+		String[] keys = backmap.keySet().toArray(new String[0]);
+		for (int i=0; i<keys.length; i+=7) {
+			assertEquals(backmap.get(keys[i]), testmap.getAsync(keys[i]).get());
+			assertTrue(testmap.clock.size() + testmap.prefetchedSize() <= cache);
+			for (BTreeMap<String, String>.Node n: testmap.root.lnodes.values()) {
+				testmap.prefetch(testmap.root, n);
+			}
+			assertTrue(testmap.prefetchedSize() <= cache/4);
+		}
+
+		testmap.setCacheSize(0);
+		testmap.inflate();
+		testmap.verifyTreeIntegrity();
+		assertEquals(backmap, testmap);
+	}
+
+	public void testKeyFilter() throws Exception {
+		makeTestMap(0, 2);
+		testmap.setKeyFilter(0x2000, 4);
+		for (int i=0; i<0x400; ++i) {
+			String k = Generators.rndKey(), v = Generators.rndStr();
+			testmap.put(k, v);
+			backmap.put(k, v);
+		}
+		testmap.deflate();
+		nodes.reset();
+		values.reset();
+
+		// the filters of the subtrees are written with each node, and read
+		// back into its ghosts
+		int written = 0;
+		for (Map<String, Object> data: nodes.store.values()) {
+			if (!data.containsKey("subnodes")) { continue; }
+			List<byte[]> filters = (List<byte[]>)data.get("filters");
+			SkeletonBTreeMap<String, String>.SkeletonNode node = nodes.trans.rev(data);
+			assertEquals(node.lnodes.size(), filters.size());
+			int i = 0;
+			for (BTreeMap<String, String>.Node n: node.lnodes.values()) {
+				BloomFilter f = ((SkeletonBTreeMap<String, String>.GhostNode)n).filter;
+				assertTrue(Arrays.equals(filters.get(i++), f.toBytes()));
+				// and has every key in the subtree
+				for (String k: backmap.keySet()) {
+					if ((n.lkey == null || k.compareTo(n.lkey) > 0) && (n.rkey == null || k.compareTo(n.rkey) < 0)) {
+						assertTrue(f.has(k));
+					}
+				}
+				++written;
+			}
+		}
+		assertTrue(written > 0);
+		testmap.inflate();
+		assertEquals(backmap, testmap);
+
+		// lookups for keys that are not in the map stop at the first filter,
+		// without pulling anything, but those that are still find them
+		testmap.deflate();
+		nodes.reset();
+		values.reset();
+		List<String> absent = new ArrayList<String>();
+		for (int i=0; i<0x40; ++i) {
+			String k = Generators.rndKey();
+			if (backmap.containsKey(k)) { continue; }
+			// a false positive would pull nodes, and the odds are low
+			if (!((SkeletonBTreeMap<String, String>.GhostNode)testmap.root.selectNode(k)).mayContain(k)) { absent.add(k); }
+		}
+		assertTrue(absent.size() > 0x30);
+		for (String k: absent) {
+			assertNull(testmap.get(k));
+			assertFalse(testmap.containsKey(k));
+			assertNull(testmap.getAsync(k).get());
+		}
+		assertTrue(testmap.getAll(absent).isEmpty());
+		assertEquals(0, nodes.pulls + values.pulls);
+		String key = backmap.firstKey();
+		List<String> keys = new ArrayList<String>(absent);
+		keys.add(key);
+		assertEquals(backmap.get(key), testmap.getAll(keys).get(key));
+		assertEquals(backmap.get(key), testmap.getAsync(key).get());
+
+		// filters go by hash code, so they can't be used with a comparator,
+		// and any that are pulled are ignored
+		SkeletonBTreeMap<String, String> cmpmap = new SkeletonBTreeMap<String, String>(String.CASE_INSENSITIVE_ORDER, 2, false);
+		try {
+			cmpmap.setKeyFilter(0x2000, 4);
+			fail();
+		} catch (IllegalStateException e) { }
+		cmpmap.setKeyFilter(0, 0);
+		SkeletonBTreeMap<String, String>.GhostNode ghost = cmpmap.new GhostNode("a", "z");
+		ghost.filter = new BloomFilter(0x100, 4);
+		ghost.filter.put("key");
+		assertTrue(ghost.mayContain("KEY"));
+	}
+
+	/**
+	** Returns the depth of the loaded node that has a key, with the root at
+	** {@code 0}, or of the leaf that would have it.
+	*/
+	protected int depthOf(String key) {
+		BTreeMap<String, String>.Node node = testmap.root;
+		int depth = 0;
+		while (!node.isLeaf() && !node.entries.containsKey(key)) {
+			node = node.selectNode(key);
+			++depth;
+		}
+		return depth;
+	}
+
+	/**
+	** Returns the number of {@link BTreeMap#isFull(Node) full} nodes on the
+	** path to a key, which putting the key would split.
+	*/
+	protected int fullNodes(String key) {
+		BTreeMap<String, String>.Node node = testmap.root;
+		int n = 0;
+		for (;;) {
+			if (testmap.isFull(node)) { ++n; }
+			if (node.isLeaf() || node.entries.containsKey(key)) { return n; }
+			node = node.selectNode(key);
+		}
+	}
+
+	/**
+	** Puts a new value for a key into {@link #testmap}, which must be bare,
+	** committing it with {@link SkeletonBTreeMap#deflate(Object)} and
+	** checking what is pulled and pushed on the way.
+	**
+	** @return The number of nodes that the put split
+	*/
+	protected int pointUpdate(String key) throws TaskAbortException {
+		boolean present = backmap.containsKey(key);
+
+		// the path to the key is pulled, one node per level, and the value if
+		// there is one; the values of full nodes on the path are not needed
+		nodes.reset();
+		values.reset();
+		testmap.inflate(key);
+		int depth = depthOf(key);
+		assertEquals(depth, nodes.pulls);
+		assertEquals(present? 1: 0, values.pulls);
+		assertEquals(backmap.get(key), testmap.get(key));
+
+		// splitting a node only adds the new half, and a new root above the
+		// old one; the values it moves are not loaded
+		int splits = fullNodes(key);
+		boolean rootSplit = testmap.isFull(testmap.root);
+		String v = Generators.rndStr();
+		testmap.put(key, v);
+		backmap.put(key, v);
+		int loaded = loadedNodes(testmap.root);
+		assertEquals(depth + splits + (rootSplit? 1: 0), loaded);
+		assertEquals(present? 1: 0, values.pulls);
+
+		// after the update, the nodes on the path to the key apart from the
+		// root are pushed, along with the halves made by splits, and the value
+		testmap.deflate(key);
+		assertEquals(loaded, nodes.pushes);
+		if (splits == 0) {
+			for (int n: nodes.pushBatches) { assertEquals(1, n); }
+		}
+		assertEquals(1, values.pushes);
+		assertEquals(0, loadedNodes(testmap.root));
+
+		// and the next time, the new value is pulled; if nothing on the path
+		// has changed since, nothing is pushed, and only the node that has
+		// the key is dropped
+		nodes.reset();
+		values.reset();
+		testmap.inflate(key);
+		depth = depthOf(key);
+		assertEquals(depth, nodes.pulls);
+		assertEquals(v, testmap.get(key));
+		testmap.deflate(key);
+		assertEquals(0, nodes.pushes + values.pushes);
+		assertEquals(depth-1, loadedNodes(testmap.root));
+		testmap.deflate();
+		assertTrue(testmap.isBare());
+		return splits;
+	}
+
+	public void testPointUpdate() throws TaskAbortException {
+		makeTestMap(0x400, 2);
+		String[] keys = backmap.keySet().toArray(new String[0]);
+
+		// both keys that are in the map and new ones, so that some of the
+		// puts split the nodes on their path
+		int splits = 0;
+		for (int i=0; i<keys.length; i+=37) {
+			splits += pointUpdate(keys[i]);
+			String key;
+			do { key = Generators.rndKey(); } while (backmap.containsKey(key));
+			splits += pointUpdate(key);
+		}
+		assertTrue(splits > 0);
+
+		// the tree as a whole still has everything, including the values that
+		// splits moved without loading them
+		testmap.deflate();
+		assertTrue(testmap.isBare());
+		values.reset();
+		testmap.inflate();
+		testmap.verifyTreeIntegrity();
+		assertEquals(backmap, testmap);
+		assertEquals(backmap.size(), values.pulls);
+	}
+
+}
@@ -5,18 +5,124 @@ package plugins.Library.util;
 
 import junit.framework.TestCase;
 
+import plugins.Library.serial.IterableSerialiser;
+import plugins.Library.serial.MapSerialiser;
+import plugins.Library.serial.Serialiser.*;
+
 import java.util.Map;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.Random;
 
 /**
 ** @author infinity0
 */
 public class SkeletonPrefixTreeMapTest extends TestCase {
 
+	final static Random rand = new Random();
+
+	static class Key extends BytePrefixKey<Key> {
+		Key() { super(4); }
+		Key(byte[] h) { super(4, h); }
+		@Override public Key clone() { return new Key(hash); }
+	}
+
+	/**
+	** Keeps the subtrees in memory, and counts how many are pulled.
+	*/
+	static class TreeStore implements IterableSerialiser<SkeletonPrefixTreeMap<Key, Integer>> {
+
+		final Map<Object, SkeletonPrefixTreeMap<Key, Integer>> store = new HashMap<Object, SkeletonPrefixTreeMap<Key, Integer>>();
+		int id, pulls;
+
+		public void pull(PullTask<SkeletonPrefixTreeMap<Key, Integer>> task) {
+			++pulls;
+			task.data = store.get(task.meta);
+		}
+
+		public void push(PushTask<SkeletonPrefixTreeMap<Key, Integer>> task) {
+			task.meta = ++id;
+			store.put(task.meta, task.data);
+		}
+
+		public void pull(Iterable<PullTask<SkeletonPrefixTreeMap<Key, Integer>>> tasks) {
+			for (PullTask<SkeletonPrefixTreeMap<Key, Integer>> task: tasks) { pull(task); }
+		}
+
+		public void push(Iterable<PushTask<SkeletonPrefixTreeMap<Key, Integer>>> tasks) {
+			for (PushTask<SkeletonPrefixTreeMap<Key, Integer>> task: tasks) { push(task); }
+		}
+
+	}
+
+	/**
+	** Keeps the values in memory, and counts how many are pulled.
+	*/
+	static class ValueStore implements MapSerialiser<Key, Integer> {
+
+		final Map<Object, Integer> store = new HashMap<Object, Integer>();
+		int id, pulls;
+
+		public void pull(Map<Key, PullTask<Integer>> tasks, Object meta) {
+			for (PullTask<Integer> task: tasks.values()) {
+				task.data = store.get(task.meta);
+				++pulls;
+			}
+		}
+
+		public void push(Map<Key, PushTask<Integer>> tasks, Object meta) {
+			for (PushTask<Integer> task: tasks.values()) {
+				if (task.data == null) { continue; }
+				task.meta = ++id;
+				store.put(task.meta, task.data);
+			}
+		}
+
+	}
 
 	public void testBasic() {
 		// URGENT
 		// do this after Index is done, probably...
 	}
 
+	public void testGetAsync() throws Exception {
+		SkeletonPrefixTreeMap<Key, Integer> testmap = new SkeletonPrefixTreeMap<Key, Integer>(new Key());
+		TreeStore trees = new TreeStore();
+		ValueStore values = new ValueStore();
+		testmap.setSerialiser(trees, values);
+		Map<Key, Integer> backmap = new HashMap<Key, Integer>();
+		for (int i=0; i<0x1000; ++i) {
+			byte[] bs = new byte[4];
+			rand.nextBytes(bs);
+			Key k = new Key(bs);
+			testmap.put(k, i);
+			backmap.put(k, i);
+		}
+		testmap.deflate();
+		assertTrue(testmap.isBare());
+
+		// the subtrees on the way to the key are pulled, then the value, and
+		// after that nothing
+		Key key = backmap.keySet().iterator().next();
+		assertEquals(backmap.get(key), testmap.getAsync(key).get());
+		assertTrue(trees.pulls > 0);
+		assertEquals(1, values.pulls);
+		trees.pulls = values.pulls = 0;
+		assertEquals(backmap.get(key), testmap.getAsync(key).get());
+		assertEquals(0, trees.pulls + values.pulls);
+
+		// a key that isn't there pulls no values
+		Key absent = key.clone();
+		absent.set(3, key.get(3) ^ 1);
+		if (!backmap.containsKey(absent)) {
+			assertNull(testmap.getAsync(absent).get());
+			assertEquals(0, values.pulls);
+		}
+
+		// every key gets its value
+		for (Map.Entry<Key, Integer> en: backmap.entrySet()) {
+			assertEquals(en.getValue(), testmap.getAsync(en.getKey()).get());
+		}
+		assertTrue(testmap.isLive());
+	}
+
 }
@@ -5,8 +5,18 @@ package plugins.Library.util;
 
 import junit.framework.TestCase;
 
+import plugins.Library.serial.MapSerialiser;
+import plugins.Library.serial.Serialiser.*;
+
 import java.util.Map;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.IdentityHashMap;
 import java.util.SortedMap;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 
 /**
 ** @author infinity0
@@ -69,6 +79,74 @@ public class SkeletonTreeMapTest extends SortedMapTestSkeleton {
 
 	}
 
+	public void testEquals() {
+		fillSkelMap();
+		Map<String, Integer> treemap = new TreeMap<String, Integer>(skelmap);
+		Map<String, Integer> hashmap = new HashMap<String, Integer>(skelmap);
+
+		// a loaded skeleton map is equal to the same map of any other kind
+		assertTrue(skelmap.equals(treemap));
+		assertTrue(skelmap.equals(hashmap));
+		assertTrue(treemap.equals(skelmap));
+		assertTrue(hashmap.equals(skelmap));
+		assertEquals(treemap.hashCode(), skelmap.hashCode());
+		assertFalse(skelmap.equals(new HashMap<String, Integer>()));
+
+		String key = skelmap.firstKey();
+		hashmap.put(key, 456);
+		assertFalse(skelmap.equals(hashmap));
+		assertFalse(hashmap.equals(skelmap));
+
+		// a value that is not loaded can't be compared with anything but the
+		// metadata of another skeleton map
+		SkeletonTreeMap<String, Integer> other = new SkeletonTreeMap<String, Integer>(skelmap);
+		skelmap.putDummy(key, Boolean.TRUE);
+		other.putDummy(key, Boolean.TRUE);
+		assertTrue(skelmap.equals(other));
+		other.putDummy(key, Boolean.FALSE);
+		assertFalse(skelmap.equals(other));
+		try {
+			skelmap.equals(treemap);
+			fail();
+		} catch (DataNotLoadedException e) {
+			assertTrue(e.getParent() == skelmap);
+		}
+	}
+
+	public void testDummies() {
+		skelmap = new SkeletonTreeMap<String, Integer>();
+		for (int i=0; i<16; ++i) {
+			skelmap.putDummy("k" + Integer.toHexString(i), i);
+		}
+		assertTrue(skelmap.isBare() && skelmap.getDummy("k3").equals(3));
+		assertTrue(skelmap.put("k3", 123) == null);
+		assertTrue(skelmap.getDummy("k3") == null && skelmap.get("k3") == 123);
+		assertTrue(!skelmap.isBare() && !skelmap.isLive());
+
+		SkeletonTreeMap<String, Integer> copy = new SkeletonTreeMap<String, Integer>(skelmap);
+		assertTrue(copy.equals(skelmap) && copy.hashCode() == skelmap.hashCode());
+		assertTrue(copy.remove("k4") == null);
+		assertTrue(!copy.equals(skelmap));
+
+		// moving unloaded values out of the map is not allowed
+		SkeletonTreeMap<String, Integer> dst = new SkeletonTreeMap<String, Integer>();
+		try {
+			skelmap.moveTo(dst, 0, 8);
+			fail();
+		} catch (DataNotLoadedException e) {
+			assertTrue(e.getKey().equals("k0") && skelmap.size() == 16);
+		}
+		for (int i=0; i<8; ++i) {
+			skelmap.put("k" + Integer.toHexString(i), i);
+		}
+		skelmap.moveTo(dst, 0, 8);
+		assertTrue(dst.isLive() && dst.size() == 8);
+		assertTrue(skelmap.isBare() && skelmap.size() == 8);
+
+		skelmap.clear();
+		assertTrue(skelmap.isLive() && skelmap.isBare());
+	}
+
 	public void testIncompleteEntrySet() {
 		try {
 			for (Map.Entry<String, Integer> en: skelmap.entrySet()) {
@@ -123,4 +201,159 @@ public class SkeletonTreeMapTest extends SortedMapTestSkeleton {
 		}
 	}
 
+	/**
+	** Keeps values in memory, and notes what is pulled and pushed.
+	*/
+	static class MemorySerialiser implements MapSerialiser<String, Integer> {
+
+		final Map<Object, Integer> store = new HashMap<Object, Integer>();
+		/** The values pushed, by key */
+		final Map<String, Integer> pushed = new HashMap<String, Integer>();
+		/** The map-wide metadata and the number of keys of each pull */
+		final List<Object> pullMetas = new ArrayList<Object>();
+		final List<Integer> pullSizes = new ArrayList<Integer>();
+		int id = 0;
+
+		public void pull(Map<String, PullTask<Integer>> tasks, Object meta) {
+			pullMetas.add(meta);
+			pullSizes.add(tasks.size());
+			for (PullTask<Integer> t: tasks.values()) { t.data = store.get(t.meta); }
+		}
+
+		public void push(Map<String, PushTask<Integer>> tasks, Object meta) {
+			for (Map.Entry<String, PushTask<Integer>> en: tasks.entrySet()) {
+				PushTask<Integer> t = en.getValue();
+				if (t.data == null) { continue; }
+				t.meta = ++id;
+				store.put(t.meta, t.data);
+				pushed.put(en.getKey(), t.data);
+			}
+		}
+
+	}
+
+	public void testChangedValues() throws Exception {
+		MemorySerialiser srl = new MemorySerialiser();
+		Map<Object, Integer> store = srl.store;
+		Map<String, Integer> pushed = srl.pushed;
+		skelmap = new SkeletonTreeMap<String, Integer>();
+		skelmap.setSerialiser(srl);
+		for (int i=0; i<16; ++i) {
+			String k = "k" + Integer.toHexString(i);
+			store.put(k, i);
+			skelmap.putDummy(k, k);
+		}
+
+		// values that were only pulled are not pushed again
+		skelmap.inflate();
+		assertTrue(skelmap.isLive() && !skelmap.isChanged("k3"));
+		skelmap.put("k3", 123);
+		skelmap.put("k5", 5);
+		assertTrue(skelmap.isChanged("k3") && skelmap.isChanged("k5") && !skelmap.isChanged("k4"));
+		skelmap.deflate();
+		assertTrue(skelmap.isBare());
+		assertEquals(2, pushed.size());
+		assertEquals(Integer.valueOf(123), pushed.get("k3"));
+		assertEquals("k4", skelmap.getDummy("k4"));
+
+		// likewise for partial pushes
+		pushed.clear();
+		skelmap.inflate("k3");
+		skelmap.inflate("k4");
+		skelmap.deflate("k3");
+		assertTrue(pushed.isEmpty() && skelmap.get("k3") == 123);
+		skelmap.put("k4", 44);
+		skelmap.deflate("k4");
+		assertEquals(1, pushed.size());
+		assertEquals(Integer.valueOf(44), store.get(skelmap.getDummy("k4")));
+		assertTrue(skelmap.get("k3") == 123 && !skelmap.isChanged("k3"));
+
+		// a copy keeps track of the same values
+		SkeletonTreeMap<String, Integer> copy = new SkeletonTreeMap<String, Integer>(skelmap);
+		assertTrue(!copy.isChanged("k3"));
+		copy.remove("k3");
+		copy.put("k3", 123);
+		assertTrue(copy.isChanged("k3") && !skelmap.isChanged("k3"));
+	}
+
+	public void testInflateAll() throws Exception {
+		MemorySerialiser srl = new MemorySerialiser();
+		List<SkeletonTreeMap<String, Integer>> maps = new ArrayList<SkeletonTreeMap<String, Integer>>();
+		for (int m=0; m<6; ++m) {
+			SkeletonTreeMap<String, Integer> map = new SkeletonTreeMap<String, Integer>();
+			map.setSerialiser(srl);
+			// two groups of maps with the same metadata
+			map.setMeta((m < 4)? "a": "b");
+			for (int i=0; i<8; ++i) {
+				String k = "m" + m + "k" + i;
+				srl.store.put(k, m*8 + i);
+				map.putDummy(k, k);
+			}
+			maps.add(map);
+		}
+
+		// one pull for each metadata
+		SkeletonTreeMap.inflateAll(maps);
+		assertEquals(2, srl.pullMetas.size());
+		assertTrue(srl.pullMetas.containsAll(Arrays.asList("a", "b")));
+		assertTrue(srl.pullSizes.containsAll(Arrays.asList(32, 16)));
+		for (int m=0; m<6; ++m) {
+			SkeletonTreeMap<String, Integer> map = maps.get(m);
+			assertTrue(map.isLive());
+			for (int i=0; i<8; ++i) { assertEquals(Integer.valueOf(m*8 + i), map.get("m" + m + "k" + i)); }
+		}
+
+		// some of the keys of some of the maps
+		for (SkeletonTreeMap<String, Integer> map: maps) {
+			for (String k: map.keySet()) { map.putDummy(k, k); }
+		}
+		srl.pullMetas.clear();
+		srl.pullSizes.clear();
+		Map<SkeletonTreeMap<String, Integer>, Collection<String>> keys = new IdentityHashMap<SkeletonTreeMap<String, Integer>, Collection<String>>();
+		keys.put(maps.get(0), Arrays.asList("m0k1", "m0k2"));
+		keys.put(maps.get(1), Arrays.asList("m1k3"));
+		keys.put(maps.get(4), null);
+		SkeletonTreeMap.inflateAll(keys);
+		assertEquals(2, srl.pullMetas.size());
+		assertTrue(srl.pullSizes.containsAll(Arrays.asList(3, 8)));
+		assertTrue(maps.get(0).get("m0k1") == 1 && maps.get(0).getDummy("m0k0") != null);
+		assertTrue(maps.get(1).get("m1k3") == 11 && maps.get(4).isLive() && maps.get(5).isBare());
+
+		// a map that has a key in common with another of the same metadata is
+		// inflated on its own
+		SkeletonTreeMap<String, Integer> clash = new SkeletonTreeMap<String, Integer>();
+		clash.setSerialiser(srl);
+		clash.setMeta("b");
+		clash.putDummy("m5k0", "m5k0");
+		clash.putDummy("m6k0", "m6k0");
+		srl.store.put("m6k0", 48);
+		srl.pullMetas.clear();
+		srl.pullSizes.clear();
+		SkeletonTreeMap.inflateAll(Arrays.asList(maps.get(5), clash));
+		assertEquals(Arrays.asList((Object)"b", "b"), srl.pullMetas);
+		assertTrue(srl.pullSizes.containsAll(Arrays.asList(8, 2)));
+		assertTrue(maps.get(5).isLive() && clash.isLive());
+		assertTrue(clash.get("m5k0") == 40 && clash.get("m6k0") == 48);
+	}
+
+	public void testGetAsync() throws Exception {
+		MemorySerialiser srl = new MemorySerialiser();
+		skelmap = new SkeletonTreeMap<String, Integer>();
+		skelmap.setSerialiser(srl);
+		for (int i=0; i<16; ++i) {
+			String k = "k" + Integer.toHexString(i);
+			srl.store.put(k, i);
+			skelmap.putDummy(k, k);
+		}
+
+		// one pull for a dummy, and none after that, or for a missing key
+		assertEquals(Integer.valueOf(3), skelmap.getAsync("k3").get());
+		assertEquals(1, srl.pullSizes.size());
+		assertEquals(Integer.valueOf(3), skelmap.getAsync("k3").get());
+		assertNull(skelmap.getAsync("zzz").get());
+		assertEquals(1, srl.pullSizes.size());
+		assertTrue(skelmap.get("k3") == 3 && skelmap.getDummy("k4") != null);
+
+	}
+
 }
@@ -0,0 +1,103 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util;
+
+import junit.framework.TestCase;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.Iterator;
+
+/**
+** @author infinity0
+*/
+public class SortedArrayMapTest extends SortedMapTestSkeleton {
+
+	@Override public SortedMap<String, Integer> makeTestMap() {
+		return new SortedArrayMap<String, Integer>();
+	}
+
+	public void testMoveTo() {
+		SortedArrayMap<String, Integer> src = new SortedArrayMap<String, Integer>();
+		SortedArrayMap<String, Integer> dst = new SortedArrayMap<String, Integer>();
+		Map<String, Integer> backmap = new TreeMap<String, Integer>();
+		for (int i=0; i<0x100; ++i) {
+			String k = Generators.rndKey();
+			src.put(k, i);
+			backmap.put(k, i);
+		}
+		int s = src.size();
+
+		// move the upper half, then the lower half, then move it all back
+		src.moveTo(dst, s/2, s);
+		src.moveTo(dst, 0, s/2);
+		assertTrue(src.isEmpty() && dst.size() == s);
+		dst.moveTo(src, 0, s);
+		assertTrue(dst.isEmpty());
+		assertTrue(src.equals(backmap));
+
+		String prev = null;
+		for (String k: src.keySet()) {
+			assertTrue(prev == null || prev.compareTo(k) < 0);
+			prev = k;
+		}
+	}
+
+	public void testSubMaps() {
+		SortedArrayMap<String, Integer> map = new SortedArrayMap<String, Integer>();
+		TreeMap<String, Integer> backmap = new TreeMap<String, Integer>();
+		for (int i=0; i<0x100; ++i) {
+			String k = Generators.rndKey();
+			map.put(k, i);
+			backmap.put(k, i);
+		}
+		String[] bounds = new String[8];
+		for (int i=0; i<bounds.length; ++i) { bounds[i] = Generators.rndKey(); }
+		for (String l: bounds) {
+			assertEquals(backmap.headMap(l), map.headMap(l));
+			assertEquals(backmap.tailMap(l), map.tailMap(l));
+			for (String r: bounds) {
+				if (l.compareTo(r) > 0) {
+					try { map.subMap(l, r); fail(); } catch (IllegalArgumentException e) { }
+					continue;
+				}
+				SortedMap<String, Integer> sub = map.subMap(l, r);
+				SortedMap<String, Integer> bsub = backmap.subMap(l, r);
+				assertEquals(bsub, sub);
+				assertEquals(bsub.size(), sub.size());
+				if (!bsub.isEmpty()) {
+					assertEquals(bsub.firstKey(), sub.firstKey());
+					assertEquals(bsub.lastKey(), sub.lastKey());
+				}
+				assertEquals(bsub, map.tailMap(l).headMap(r));
+			}
+		}
+
+		// views write through, and see changes to the backing map
+		String l = map.keySet().toArray(new String[0])[0x40];
+		String r = map.keySet().toArray(new String[0])[0x80];
+		SortedMap<String, Integer> sub = map.subMap(l, r);
+		assertEquals(0x40, sub.size());
+		assertTrue(sub.containsKey(l) && !sub.containsKey(r));
+		assertNull(sub.get(r));
+		try { sub.put(r, 0); fail(); } catch (IllegalArgumentException e) { }
+		sub.put(l, -1);
+		assertEquals(Integer.valueOf(-1), map.get(l));
+		map.remove(l);
+		assertEquals(0x3F, sub.size());
+		int n = 0;
+		for (Iterator<String> it = sub.keySet().iterator(); it.hasNext();) {
+			it.next();
+			if (++n % 2 == 0) { it.remove(); }
+		}
+		assertEquals(0x3F - 0x1F, sub.size());
+		assertEquals(0x100 - 1 - 0x1F, map.size());
+		sub.clear();
+		assertTrue(sub.isEmpty());
+		assertEquals(0x100 - 0x40, map.size());
+		assertTrue(map.containsKey(r));
+	}
+
+}